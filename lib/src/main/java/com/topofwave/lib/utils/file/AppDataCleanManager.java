@@ -3,6 +3,7 @@ package com.topofwave.lib.utils.file;
 import java.io.File;
 
 import android.content.Context;
+import android.os.CancellationSignal;
 import android.webkit.CookieManager;
 import android.webkit.CookieSyncManager;
 
@@ -33,7 +34,7 @@ public class AppDataCleanManager {
      * @param context
      */
     public static boolean cleanDatabases(Context context) {
-        return FileUtils.deleteDirectory(new File(context.getFilesDir().getPath() + context.getPackageName() + "/databases"));
+        return FileUtils.deleteDirectory(DataCleanJob.getDirectory(context, DataCleanJob.Target.DATABASES));
     }
 
     /**
@@ -41,7 +42,7 @@ public class AppDataCleanManager {
      * @param context
      */
     public static boolean cleanSharedPreference(Context context) {
-        return FileUtils.deleteDirectory(new File(context.getFilesDir().getPath() + context.getPackageName() + "/shared_prefs"));
+        return FileUtils.deleteDirectory(DataCleanJob.getDirectory(context, DataCleanJob.Target.SHARED_PREFERENCES));
     }
 
     /**
@@ -73,18 +74,71 @@ public class AppDataCleanManager {
     }
 
     /**
-     * 清除本应用所有数据
+     * 获取内部和外部缓存目录的总大小。使用带缓存的{@link DirectorySizeCalculator}，未变化的目录不会重新扫描，适合在设置页面反复查询
+     * @param context
+     * @return 字节数
+     */
+    public static long getCacheSize(Context context) {
+        DirectorySizeCalculator calculator = DirectorySizeCalculator.getDefault();
+        long size = calculator.getSize(context.getCacheDir());
+        if(FileUtils.isSDCardWritable()) {
+            size += calculator.getSize(context.getExternalCacheDir());
+        }
+        return size;
+    }
+
+    /**
+     * 裁剪内部和外部缓存目录：删除超过maxAgeMillis未修改的文件，再从最旧的开始删除直到合计不超过targetBytes，保留较新的缓存。
+     * DiskLruCache和HttpResponseCache的目录不受影响，见{@link CacheTrimmer}
+     * @param context
+     * @param targetBytes 目标字节数，{@link CacheTrimmer#NO_LIMIT}表示不按容量删除
+     * @param maxAgeMillis 最长保留时间，{@link CacheTrimmer#NO_LIMIT}表示不按时间删除
+     * @return
+     */
+    public static CacheTrimmer.Result trim(Context context, long targetBytes, long maxAgeMillis) {
+        return trim(context, targetBytes, maxAgeMillis, null);
+    }
+
+    /**
+     * 裁剪内部和外部缓存目录，阻塞直到完成或取消，适合在应用空闲时于后台线程调用
+     * @param context
+     * @param targetBytes 目标字节数，{@link CacheTrimmer#NO_LIMIT}表示不按容量删除
+     * @param maxAgeMillis 最长保留时间，{@link CacheTrimmer#NO_LIMIT}表示不按时间删除
+     * @param signal 取消信号，可为null
+     * @return
+     */
+    public static CacheTrimmer.Result trim(Context context, long targetBytes, long maxAgeMillis, CancellationSignal signal) {
+        File external = FileUtils.isSDCardWritable() ? context.getExternalCacheDir() : null;
+        CacheTrimmer.Result result = CacheTrimmer.trim(new File[] {context.getCacheDir(), external}, targetBytes, maxAgeMillis, signal);
+        DebugLog.i(TAG, "trim cache: " + result);
+        return result;
+    }
+
+    /**
+     * 清除本应用所有数据，各目标并行清除，阻塞直到完成。界面中请使用{@link #cleanAPPlicationDataAsync(Context, DataCleanJob.Callback)}
      * @param context
      */
     public static boolean cleanAPPlicationData(Context context) {
-        boolean delete_1 = cleanInternalCache(context);
-        boolean delete_2 = cleanExternalCache(context);
-        boolean delete_3 = cleanDatabases(context);
-        boolean delete_4 = cleanSharedPreference(context);
-        boolean delete_5 = cleanFiles(context);
-        DebugLog.i("delete_1--" + delete_1 + "--delete_2--" + delete_2 + "--delete_3--" + delete_3 + "--delete_4--" + delete_4
-            + "--delete_5--" + delete_5);
-        return delete_1 && delete_2 && delete_3 && delete_4 && delete_5;
+        DataCleanJob job = new DataCleanJob(context).start(null);
+        try {
+            DataCleanJob.Result result = job.await();
+            DebugLog.i(TAG, result.toString());
+            return result.isSuccess();
+        } catch(InterruptedException e) {
+            job.cancel();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 在后台并行清除本应用所有数据，立即返回。进度和结果在主线程回调
+     * @param context
+     * @param callback 可为null
+     * @return 可用于取消或等待的任务
+     */
+    public static DataCleanJob cleanAPPlicationDataAsync(Context context, DataCleanJob.Callback callback) {
+        return new DataCleanJob(context).start(callback);
     }
 
     /**
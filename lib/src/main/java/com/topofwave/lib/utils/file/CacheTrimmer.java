@@ -0,0 +1,363 @@
+package com.topofwave.lib.utils.file;
+
+import android.os.CancellationSignal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @describe 按时间和容量裁剪缓存目录.
+ * <p>
+ * 先在{@link FileWorkers}上并行扫描所有目录，记录每个文件的大小和修改时间，然后按修改时间从旧到新排序：
+ * 超过最长保留时间的文件全部删除，再继续删除最旧的文件直到总大小不超过目标值。要删除的文件确定后分块并行删除。
+ * 与整个目录清空不同，最近使用的缓存会被保留。
+ * 系统在API 21之前无法取得文件的最后访问时间，这里以修改时间排序，需要按访问排序的缓存可以在读取时调用File.setLastModified。
+ * 不会删除目录本身，也不会跟随符号链接。
+ * 含有journal文件的目录(如{@link DiskLruCache}及基于它的HttpResponseCache)和{@link PackStore}的目录由存储自己管理，
+ * 删除其中的文件会与日志或索引不一致，这类目录连同子目录整个跳过，不计入扫描结果。
+ * 正在写入的临时文件(原子保存的{@link FileUtils#TEMP_SUFFIX}、断点续传的{@link ResumableSave#PART_SUFFIX}和
+ * {@link ResumableSave#CHECKPOINT_SUFFIX})也不计入。最近{@link #RECENT_WINDOW_MILLIS}内修改过的文件计入容量但不删除，
+ * 它们可能刚写完或正在写入。
+ * </p>
+ */
+public class CacheTrimmer {
+
+    /**
+     * 表示不限制容量或不限制时间
+     */
+    public static final long NO_LIMIT = - 1;
+
+    /**
+     * 在此时间内修改过的文件不删除：1分钟
+     */
+    static final long RECENT_WINDOW_MILLIS = 60 * 1000;
+
+    /**
+     * 每个删除任务处理的文件数
+     */
+    private static final int DELETE_CHUNK = 64;
+
+    /**
+     * 裁剪结果
+     */
+    public static class Result {
+
+        private final long filesScanned;
+
+        private final long bytesScanned;
+
+        private final long filesDeleted;
+
+        private final long bytesFreed;
+
+        private final long failures;
+
+        private final boolean canceled;
+
+        private final long elapsedMillis;
+
+        Result(long filesScanned, long bytesScanned, long filesDeleted, long bytesFreed, long failures, boolean canceled,
+            long elapsedMillis) {
+            this.filesScanned = filesScanned;
+            this.bytesScanned = bytesScanned;
+            this.filesDeleted = filesDeleted;
+            this.bytesFreed = bytesFreed;
+            this.failures = failures;
+            this.canceled = canceled;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * 扫描到的文件数
+         */
+        public long getFilesScanned() {
+            return filesScanned;
+        }
+
+        /**
+         * 裁剪前的总字节数
+         */
+        public long getBytesScanned() {
+            return bytesScanned;
+        }
+
+        public long getFilesDeleted() {
+            return filesDeleted;
+        }
+
+        /**
+         * 释放的字节数
+         */
+        public long getBytesFreed() {
+            return bytesFreed;
+        }
+
+        /**
+         * 裁剪后剩余的字节数
+         */
+        public long getBytesRemaining() {
+            return bytesScanned - bytesFreed;
+        }
+
+        /**
+         * 删除失败的文件数
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheTrimmer.Result[scanned=" + filesScanned + "/" + bytesScanned + ", deleted=" + filesDeleted + "/"
+                + bytesFreed + ", failures=" + failures + ", canceled=" + canceled + ", " + elapsedMillis + "ms]";
+        }
+    }
+
+    /**
+     * 扫描到的文件
+     */
+    private static class Item {
+
+        final File file;
+
+        final long lastModified;
+
+        final long length;
+
+        Item(File file, long lastModified, long length) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    private static final Comparator<Item> OLDEST_FIRST = new Comparator<Item>() {
+
+        @Override
+        public int compare(Item lhs, Item rhs) {
+            return lhs.lastModified < rhs.lastModified ? - 1 : (lhs.lastModified == rhs.lastModified ? 0 : 1);
+        }
+    };
+
+    private final Executor executor;
+
+    private final CancellationSignal signal;
+
+    private final List<Item> items = new ArrayList<Item>();
+
+    private final AtomicLong filesDeleted = new AtomicLong();
+
+    private final AtomicLong bytesFreed = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile boolean interrupted;
+
+    private CacheTrimmer(Executor executor, CancellationSignal signal) {
+        this.executor = executor;
+        this.signal = signal;
+    }
+
+    /**
+     * 裁剪目录，阻塞直到完成或取消。不要在{@link FileWorkers}的线程中调用
+     * @param dirs 要裁剪的目录，可包含null
+     * @param targetBytes 所有目录合计的目标字节数，{@link #NO_LIMIT}表示不按容量删除
+     * @param maxAgeMillis 最长保留时间，{@link #NO_LIMIT}表示不按时间删除
+     * @param signal 取消信号，可为null。取消后已删除的文件不会恢复
+     * @return
+     */
+    public static Result trim(File[] dirs, long targetBytes, long maxAgeMillis, CancellationSignal signal) {
+        long start = System.currentTimeMillis();
+        CacheTrimmer trimmer = new CacheTrimmer(FileWorkers.get(), signal);
+        Item[] sorted = trimmer.scan(dirs);
+        long total = 0;
+        for(Item item: sorted) {
+            total += item.length;
+        }
+        if( ! trimmer.isCanceled()) {
+            Arrays.sort(sorted, OLDEST_FIRST);
+            long expireBefore = maxAgeMillis == NO_LIMIT ? Long.MIN_VALUE : start - maxAgeMillis;
+            long recentAfter = start - RECENT_WINDOW_MILLIS;
+            long remaining = total;
+            int count = 0;
+            // 按时间排序，第一个最近修改的文件之后都不能删除
+            while(count < sorted.length && sorted[count].lastModified < recentAfter) {
+                boolean expired = sorted[count].lastModified < expireBefore;
+                boolean overBudget = targetBytes != NO_LIMIT && remaining > targetBytes;
+                if( ! expired && ! overBudget) {
+                    break;
+                }
+                remaining -= sorted[count].length;
+                count ++ ;
+            }
+            trimmer.deleteOldest(sorted, count);
+        }
+        return new Result(sorted.length, total, trimmer.filesDeleted.get(), trimmer.bytesFreed.get(), trimmer.failures.get(),
+            trimmer.isCanceled(), System.currentTimeMillis() - start);
+    }
+
+    private Item[] scan(File[] dirs) {
+        List<File> roots = new ArrayList<File>();
+        if(dirs != null) {
+            for(File dir: dirs) {
+                if(dir != null && dir.isDirectory() && ! FileUtils.isSymlink(dir)) {
+                    roots.add(dir);
+                }
+            }
+        }
+        if( ! roots.isEmpty()) {
+            CountDownLatch done = new CountDownLatch(1);
+            // 每个根目录一份，全部扫描完成时归零
+            AtomicInteger rootsPending = new AtomicInteger(roots.size());
+            for(File root: roots) {
+                executor.execute(new ScanTask(root, null, rootsPending, done));
+            }
+            await(done);
+        }
+        synchronized(items) {
+            return items.toArray(new Item[items.size()]);
+        }
+    }
+
+    private void deleteOldest(final Item[] sorted, int count) {
+        if(count == 0) {
+            return;
+        }
+        int chunks = (count + DELETE_CHUNK - 1) / DELETE_CHUNK;
+        final CountDownLatch done = new CountDownLatch(chunks);
+        for(int c = 0; c < chunks; c ++ ) {
+            final int from = c * DELETE_CHUNK;
+            final int to = Math.min(count, from + DELETE_CHUNK);
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    DiskSpaceManager space = DiskSpaceManager.getDefault();
+                    try {
+                        for(int i = from; i < to && ! isCanceled(); i ++ ) {
+                            if(sorted[i].file.delete()) {
+                                filesDeleted.incrementAndGet();
+                                bytesFreed.addAndGet(sorted[i].length);
+                                space.onDeleted(sorted[i].file, sorted[i].length);
+                            } else if(sorted[i].file.exists()) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        await(done);
+    }
+
+    private void await(CountDownLatch done) {
+        while(true) {
+            try {
+                done.await();
+                break;
+            } catch(InterruptedException e) {
+                // 调用线程被中断时尽快结束剩余任务，但仍等待它们退出
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 目录是否由DiskLruCache之类带日志的缓存或PackStore管理
+     */
+    static boolean isManaged(File dir) {
+        return new File(dir, DiskLruCache.JOURNAL_FILE).isFile() || new File(dir, PackStore.MARKER_FILE).isFile();
+    }
+
+    /**
+     * 是否是正在写入的临时文件
+     */
+    static boolean isInProgress(File file) {
+        String name = file.getName();
+        return name.endsWith(FileUtils.TEMP_SUFFIX) || name.endsWith(ResumableSave.PART_SUFFIX)
+            || name.endsWith(ResumableSave.CHECKPOINT_SUFFIX);
+    }
+
+    private boolean isCanceled() {
+        return interrupted || (signal != null && signal.isCanceled());
+    }
+
+    /**
+     * 扫描一个目录下的文件并为子目录派生任务。pending包含自身一份和每个子目录一份，归零时通知父目录
+     */
+    private class ScanTask implements Runnable {
+
+        private final File dir;
+
+        private final ScanTask parent;
+
+        private final AtomicInteger rootsPending;
+
+        private final CountDownLatch done;
+
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        ScanTask(File dir, ScanTask parent, AtomicInteger rootsPending, CountDownLatch done) {
+            this.dir = dir;
+            this.parent = parent;
+            this.rootsPending = rootsPending;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if(isCanceled() || isManaged(dir)) {
+                    return;
+                }
+                List<Item> found = new ArrayList<Item>();
+                for(File child: DirectoryWalker.children(dir)) {
+                    if(child.isDirectory()) {
+                        if( ! FileUtils.isSymlink(child)) {
+                            pending.incrementAndGet();
+                            executor.execute(new ScanTask(child, this, rootsPending, done));
+                        }
+                    } else if( ! isInProgress(child)) {
+                        found.add(new Item(child, child.lastModified(), child.length()));
+                    }
+                }
+                synchronized(items) {
+                    items.addAll(found);
+                }
+            } finally {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if(pending.decrementAndGet() != 0) {
+                return;
+            }
+            if(parent != null) {
+                parent.finish();
+            } else if(rootsPending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.topofwave.lib.utils.file;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @describe 后台并行清除应用数据的任务.
+ * <p>
+ * 各清除目标(内部缓存、外部缓存、数据库、SharedPreference、files)互不相关，每个目标由一个协调线程负责，
+ * 目录内部再由{@link DirectoryDeleter}在{@link FileWorkers}上并行删除。只清空目录内容，保留目录本身。
+ * 进度(已删除文件数和字节数)按固定间隔在主线程回调，完成后回调包含每个目标耗时的{@link Result}。
+ * 可以随时{@link #cancel()}，已删除的内容不会恢复。
+ * </p>
+ *
+ * <pre>
+ * DataCleanJob job = new DataCleanJob(context).start(callback);
+ * ...
+ * job.cancel();
+ * </pre>
+ */
+public class DataCleanJob {
+
+    /**
+     * 进度回调的最小间隔
+     */
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    /**
+     * 清除目标
+     */
+    public enum Target {
+        /**
+         * /data/data/packageName/cache
+         */
+        INTERNAL_CACHE,
+        /**
+         * /mnt/sdcard/android/data/packageName/cache，外部存储不可写时跳过
+         */
+        EXTERNAL_CACHE,
+        /**
+         * /data/data/packageName/databases
+         */
+        DATABASES,
+        /**
+         * /data/data/packageName/shared_prefs
+         */
+        SHARED_PREFERENCES,
+        /**
+         * /data/data/packageName/files
+         */
+        FILES
+    }
+
+    /**
+     * 任务回调，均在主线程执行
+     */
+    public interface Callback {
+
+        /**
+         * @param filesDeleted 目前为止删除的文件数
+         * @param bytesFreed 目前为止释放的字节数
+         */
+        void onProgress(long filesDeleted, long bytesFreed);
+
+        /**
+         * 全部目标完成或取消后回调一次
+         * @param result
+         */
+        void onComplete(Result result);
+    }
+
+    /**
+     * 清除结果
+     */
+    public static class Result {
+
+        private final Map<Target, DirectoryDeleter.Result> targets;
+
+        private final boolean canceled;
+
+        private final long elapsedMillis;
+
+        Result(Map<Target, DirectoryDeleter.Result> targets, boolean canceled, long elapsedMillis) {
+            this.targets = Collections.unmodifiableMap(targets);
+            this.canceled = canceled;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * 每个已执行目标的结果，包含该目标的耗时；被跳过的目标不在其中
+         */
+        public Map<Target, DirectoryDeleter.Result> getTargetResults() {
+            return targets;
+        }
+
+        /**
+         * @param target
+         * @return 目标被跳过时返回null
+         */
+        public DirectoryDeleter.Result getTargetResult(Target target) {
+            return targets.get(target);
+        }
+
+        public long getFilesDeleted() {
+            long files = 0;
+            for(DirectoryDeleter.Result result: targets.values()) {
+                files += result.getFilesDeleted();
+            }
+            return files;
+        }
+
+        public long getBytesFreed() {
+            long bytes = 0;
+            for(DirectoryDeleter.Result result: targets.values()) {
+                bytes += result.getBytesFreed();
+            }
+            return bytes;
+        }
+
+        public long getFailures() {
+            long failures = 0;
+            for(DirectoryDeleter.Result result: targets.values()) {
+                failures += result.getFailures();
+            }
+            return failures;
+        }
+
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        /**
+         * 整个任务的耗时
+         */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * 全部删除成功且未被取消
+         */
+        public boolean isSuccess() {
+            return getFailures() == 0 && ! canceled;
+        }
+
+        @Override
+        public String toString() {
+            return "DataCleanJob.Result" + targets + "[canceled=" + canceled + ", " + elapsedMillis + "ms]";
+        }
+    }
+
+    private final Context context;
+
+    private final Target[] targets;
+
+    private final CancellationSignal signal = new CancellationSignal();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private final AtomicLong filesDeleted = new AtomicLong();
+
+    private final AtomicLong bytesFreed = new AtomicLong();
+
+    private final AtomicLong lastProgressTime = new AtomicLong();
+
+    private final Map<Target, DirectoryDeleter.Result> results = new EnumMap<Target, DirectoryDeleter.Result>(Target.class);
+
+    private Handler handler;
+
+    private Callback callback;
+
+    private long startTime;
+
+    private boolean started;
+
+    private volatile Result result;
+
+    /**
+     * @param context
+     * @param targets 要清除的目标，不传表示全部
+     */
+    public DataCleanJob(Context context, Target... targets) {
+        this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        this.targets = targets == null || targets.length == 0 ? Target.values() : targets.clone();
+    }
+
+    /**
+     * 获取目标对应的目录
+     * @param context
+     * @param target
+     * @return 外部存储不可写时EXTERNAL_CACHE返回null
+     */
+    public static File getDirectory(Context context, Target target) {
+        switch(target) {
+            case INTERNAL_CACHE:
+                return context.getCacheDir();
+            case EXTERNAL_CACHE:
+                return FileUtils.isSDCardWritable() ? context.getExternalCacheDir() : null;
+            case DATABASES:
+                return new File(context.getFilesDir().getParentFile(), "databases");
+            case SHARED_PREFERENCES:
+                return new File(context.getFilesDir().getParentFile(), "shared_prefs");
+            case FILES:
+                return context.getFilesDir();
+            default:
+                throw new IllegalArgumentException("unknown target " + target);
+        }
+    }
+
+    /**
+     * 开始执行，立即返回。只能调用一次
+     * @param callback 可为null
+     * @return this
+     */
+    public DataCleanJob start(Callback callback) {
+        synchronized(this) {
+            if(started) {
+                throw new IllegalStateException("DataCleanJob already started");
+            }
+            started = true;
+        }
+        this.callback = callback;
+        this.handler = callback != null ? new Handler(Looper.getMainLooper()) : null;
+        this.startTime = System.currentTimeMillis();
+        final AtomicInteger remaining = new AtomicInteger(targets.length);
+        for(final Target target: targets) {
+            Thread worker = new Thread("data-clean-" + target.name().toLowerCase()) {
+
+                @Override
+                public void run() {
+                    try {
+                        clean(target);
+                    } finally {
+                        if(remaining.decrementAndGet() == 0) {
+                            complete();
+                        }
+                    }
+                }
+            };
+            worker.setDaemon(true);
+            worker.start();
+        }
+        return this;
+    }
+
+    /**
+     * 取消任务，正在删除的目录会尽快停止
+     */
+    public void cancel() {
+        signal.cancel();
+    }
+
+    public boolean isCanceled() {
+        return signal.isCanceled();
+    }
+
+    public boolean isDone() {
+        return result != null;
+    }
+
+    /**
+     * 目前为止删除的文件数
+     */
+    public long getFilesDeleted() {
+        return filesDeleted.get();
+    }
+
+    /**
+     * 目前为止释放的字节数
+     */
+    public long getBytesFreed() {
+        return bytesFreed.get();
+    }
+
+    /**
+     * 等待任务完成
+     * @return
+     * @throws InterruptedException
+     */
+    public Result await() throws InterruptedException {
+        done.await();
+        return result;
+    }
+
+    /**
+     * 等待任务完成
+     * @param timeoutMillis
+     * @return 超时返回null
+     * @throws InterruptedException
+     */
+    public Result await(long timeoutMillis) throws InterruptedException {
+        return done.await(timeoutMillis, TimeUnit.MILLISECONDS) ? result : null;
+    }
+
+    private void clean(Target target) {
+        File dir = getDirectory(context, target);
+        if(dir == null || signal.isCanceled()) {
+            return;
+        }
+        DirectoryDeleter.Result targetResult = DirectoryDeleter.delete(dir, false, signal, new DirectoryDeleter.Listener() {
+
+            @Override
+            public void onFileDeleted(long bytes) {
+                filesDeleted.incrementAndGet();
+                bytesFreed.addAndGet(bytes);
+                maybePostProgress();
+            }
+        });
+        synchronized(results) {
+            results.put(target, targetResult);
+        }
+    }
+
+    private void maybePostProgress() {
+        if(handler == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long last = lastProgressTime.get();
+        if(now - last >= PROGRESS_INTERVAL_MILLIS && lastProgressTime.compareAndSet(last, now)) {
+            postProgress();
+        }
+    }
+
+    private void postProgress() {
+        final long files = filesDeleted.get();
+        final long bytes = bytesFreed.get();
+        handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                callback.onProgress(files, bytes);
+            }
+        });
+    }
+
+    private void complete() {
+        final Result finished;
+        synchronized(results) {
+            finished = new Result(new EnumMap<Target, DirectoryDeleter.Result>(results), signal.isCanceled(),
+                System.currentTimeMillis() - startTime);
+        }
+        result = finished;
+        done.countDown();
+        if(handler != null) {
+            postProgress();
+            handler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    callback.onComplete(finished);
+                }
+            });
+        }
+    }
+}
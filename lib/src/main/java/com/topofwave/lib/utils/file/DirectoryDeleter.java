@@ -0,0 +1,272 @@
+package com.topofwave.lib.utils.file;
+
+import android.os.CancellationSignal;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @describe 进程内并行递归删除目录.
+ * <p>
+ * 每个子目录作为一个任务提交到共享线程池，子目录全部删除后再删除父目录，不需要fork rm -rf进程；
+ * 符号链接只删除链接本身。统计删除的文件数和释放的字节数，支持通过CancellationSignal取消。
+ * </p>
+ */
+public class DirectoryDeleter {
+
+    /**
+     * 删除结果
+     */
+    public static class Result {
+
+        private final long filesDeleted;
+
+        private final long dirsDeleted;
+
+        private final long bytesFreed;
+
+        private final long failures;
+
+        private final boolean canceled;
+
+        private final long elapsedMillis;
+
+        Result(long filesDeleted, long dirsDeleted, long bytesFreed, long failures, boolean canceled, long elapsedMillis) {
+            this.filesDeleted = filesDeleted;
+            this.dirsDeleted = dirsDeleted;
+            this.bytesFreed = bytesFreed;
+            this.failures = failures;
+            this.canceled = canceled;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * 删除的文件数(不含目录)
+         */
+        public long getFilesDeleted() {
+            return filesDeleted;
+        }
+
+        /**
+         * 删除的目录数
+         */
+        public long getDirsDeleted() {
+            return dirsDeleted;
+        }
+
+        /**
+         * 释放的字节数
+         */
+        public long getBytesFreed() {
+            return bytesFreed;
+        }
+
+        /**
+         * 删除失败的文件和目录数
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * 全部删除成功且未被取消
+         */
+        public boolean isSuccess() {
+            return failures == 0 && ! canceled;
+        }
+
+        @Override
+        public String toString() {
+            return "DirectoryDeleter.Result[files=" + filesDeleted + ", dirs=" + dirsDeleted + ", bytes=" + bytesFreed
+                + ", failures=" + failures + ", canceled=" + canceled + ", " + elapsedMillis + "ms]";
+        }
+    }
+
+    /**
+     * 删除进度监听，在删除线程中回调，实现需线程安全且尽量轻量
+     */
+    public interface Listener {
+
+        /**
+         * 每删除一个文件回调一次
+         * @param bytes 该文件的字节数
+         */
+        void onFileDeleted(long bytes);
+    }
+
+    private final Executor executor;
+
+    private final CancellationSignal signal;
+
+    private final boolean deleteRoot;
+
+    private final Listener listener;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private final AtomicLong filesDeleted = new AtomicLong();
+
+    private final AtomicLong dirsDeleted = new AtomicLong();
+
+    private final AtomicLong bytesFreed = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile boolean interrupted;
+
+    private DirectoryDeleter(Executor executor, boolean deleteRoot, CancellationSignal signal, Listener listener) {
+        this.executor = executor;
+        this.deleteRoot = deleteRoot;
+        this.signal = signal;
+        this.listener = listener;
+    }
+
+    /**
+     * 删除目录及其下全部内容
+     * @param dir
+     * @return
+     */
+    public static Result delete(File dir) {
+        return delete(dir, true, null);
+    }
+
+    /**
+     * 并行删除目录下全部内容，阻塞直到完成或取消。不要在{@link FileWorkers}的线程中调用
+     * @param dir 目录；若为文件则直接删除
+     * @param deleteRoot 是否同时删除dir本身，false时只清空
+     * @param signal 取消信号，可为null。取消后已删除的内容不会恢复，结果中isCanceled()为true
+     * @return
+     */
+    public static Result delete(File dir, boolean deleteRoot, CancellationSignal signal) {
+        return delete(dir, deleteRoot, signal, null);
+    }
+
+    /**
+     * 并行删除目录下全部内容，阻塞直到完成或取消。不要在{@link FileWorkers}的线程中调用
+     * @param dir 目录；若为文件则直接删除
+     * @param deleteRoot 是否同时删除dir本身，false时只清空
+     * @param signal 取消信号，可为null
+     * @param listener 进度监听，可为null
+     * @return
+     */
+    public static Result delete(File dir, boolean deleteRoot, CancellationSignal signal, Listener listener) {
+        long start = System.currentTimeMillis();
+        DirectoryDeleter deleter = new DirectoryDeleter(FileWorkers.get(), deleteRoot, signal, listener);
+        if(dir != null && dir.exists()) {
+            if(dir.isDirectory() && ! FileUtils.isSymlink(dir)) {
+                deleter.executor.execute(deleter.new DirTask(dir, null));
+                deleter.await();
+            } else if(deleteRoot) {
+                deleter.deleteFile(dir, dir.isDirectory());
+            }
+        }
+        DiskSpaceManager.getDefault().onDeleted(dir, deleter.bytesFreed.get());
+        return new Result(deleter.filesDeleted.get(), deleter.dirsDeleted.get(), deleter.bytesFreed.get(),
+            deleter.failures.get(), deleter.isCanceled(), System.currentTimeMillis() - start);
+    }
+
+    private void await() {
+        while(true) {
+            try {
+                done.await();
+                break;
+            } catch(InterruptedException e) {
+                // 调用线程被中断时尽快结束剩余任务，但仍等待它们退出
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isCanceled() {
+        return interrupted || (signal != null && signal.isCanceled());
+    }
+
+    /**
+     * @param link 是否为指向目录的符号链接，此时只删除链接，不统计目标大小
+     */
+    private void deleteFile(File file, boolean link) {
+        long length = link ? 0 : file.length();
+        if(file.delete()) {
+            filesDeleted.incrementAndGet();
+            bytesFreed.addAndGet(length);
+            if(listener != null) {
+                listener.onFileDeleted(length);
+            }
+        } else if(file.exists()) {
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * 删除一个目录下的文件并为子目录派生任务。pending包含自身一份和每个子目录一份，归零时删除目录并通知父目录
+     */
+    private class DirTask implements Runnable {
+
+        private final File dir;
+
+        private final DirTask parent;
+
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        DirTask(File dir, DirTask parent) {
+            this.dir = dir;
+            this.parent = parent;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if(isCanceled()) {
+                    return;
+                }
+                // 用DirectoryWalker逐个取得本层条目，子目录交给新任务并行处理
+                for(File child: DirectoryWalker.children(dir)) {
+                    if(isCanceled()) {
+                        return;
+                    }
+                    boolean isDir = child.isDirectory();
+                    if(isDir && ! FileUtils.isSymlink(child)) {
+                        pending.incrementAndGet();
+                        executor.execute(new DirTask(child, this));
+                    } else {
+                        deleteFile(child, isDir);
+                    }
+                }
+            } finally {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if(pending.decrementAndGet() != 0) {
+                return;
+            }
+            if( ! isCanceled() && (parent != null || deleteRoot)) {
+                if(dir.delete()) {
+                    dirsDeleted.incrementAndGet();
+                } else if(dir.exists()) {
+                    failures.incrementAndGet();
+                }
+            }
+            if(parent != null) {
+                parent.finish();
+            } else {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.topofwave.lib.utils.file;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @describe 并行计算目录大小，只读取文件元数据(File.length())，不打开文件.
+ * <p>
+ * 通过{@link #getDefault()}获取的实例会按"目录路径+修改时间"缓存每个目录下直接文件的大小和子目录列表，
+ * 目录修改时间未变时不再列出该目录，重复查询的开销只与发生变化的目录数有关。
+ * 目录修改时间只在增删、重命名其中的条目时改变，原地改写已有文件不会改变它。本库的写入(FileUtils的保存和复制、
+ * {@link WriteBehindQueue}、{@link PackStore}、{@link ResumableSave})会使默认实例中所在目录的缓存失效；
+ * 其他代码原地改写文件后需调用{@link #invalidate(File)}，{@link #newCachedInstance()}创建的实例也需要自己调用。
+ * </p>
+ */
+public class DirectorySizeCalculator {
+
+    /**
+     * 修改时间在这个时间窗口内的目录不缓存，避免文件系统时间精度不足导致漏掉紧接着发生的修改
+     */
+    private static final long RACY_WINDOW_MILLIS = 2000;
+
+    private static volatile DirectorySizeCalculator sDefault;
+
+    /**
+     * 目录绝对路径 -> 缓存项，为null表示不缓存
+     */
+    private final ConcurrentHashMap<String, Entry> index;
+
+    private final AtomicLong dirsListed = new AtomicLong();
+
+    private final AtomicLong dirsReused = new AtomicLong();
+
+    /**
+     * 单个目录的缓存项
+     */
+    private static class Entry {
+
+        final long lastModified;
+
+        final long fileBytes;
+
+        final String[] subdirs;
+
+        Entry(long lastModified, long fileBytes, String[] subdirs) {
+            this.lastModified = lastModified;
+            this.fileBytes = fileBytes;
+            this.subdirs = subdirs;
+        }
+    }
+
+    private DirectorySizeCalculator(boolean cached) {
+        this.index = cached ? new ConcurrentHashMap<String, Entry>() : null;
+    }
+
+    /**
+     * 获取带缓存的全局实例
+     * @return
+     */
+    public static DirectorySizeCalculator getDefault() {
+        if(sDefault == null) {
+            synchronized(DirectorySizeCalculator.class) {
+                if(sDefault == null) {
+                    sDefault = new DirectorySizeCalculator(true);
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * 创建一个新的带缓存实例
+     * @return
+     */
+    public static DirectorySizeCalculator newCachedInstance() {
+        return new DirectorySizeCalculator(true);
+    }
+
+    /**
+     * 不使用缓存，并行计算一次目录大小
+     * @param file 目录或文件
+     * @return 字节数，不存在返回0
+     */
+    public static long calculate(File file) {
+        return new DirectorySizeCalculator(false).getSize(file);
+    }
+
+    /**
+     * 计算目录大小，阻塞直到完成。不要在{@link FileWorkers}的线程中调用
+     * @param file 目录或文件
+     * @return 字节数，不存在返回0
+     */
+    public long getSize(File file) {
+        if(file == null || ! file.exists()) {
+            return 0;
+        }
+        if( ! file.isDirectory()) {
+            return file.length();
+        }
+        Walk walk = new Walk(FileWorkers.get());
+        walk.executor.execute(walk.new DirTask(file.getAbsoluteFile(), null));
+        walk.await();
+        return walk.total.get();
+    }
+
+    /**
+     * 使某个目录及其下所有子目录的缓存失效
+     * @param dir
+     */
+    public void invalidate(File dir) {
+        if(index == null || dir == null) {
+            return;
+        }
+        String path = dir.getAbsolutePath();
+        String prefix = path.endsWith(File.separator) ? path : path + File.separator;
+        for(String key: index.keySet()) {
+            if(key.equals(path) || key.startsWith(prefix)) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * 本库原地改写文件后调用，使默认实例中文件所在目录的缓存失效，不影响子目录。默认实例尚未创建时什么也不做
+     * @param file 改写的文件
+     */
+    static void onFileChanged(File file) {
+        DirectorySizeCalculator calculator = sDefault;
+        if(calculator == null || file == null) {
+            return;
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        if(dir != null) {
+            calculator.index.remove(dir.getPath());
+        }
+    }
+
+    /**
+     * 清空缓存
+     */
+    public void clear() {
+        if(index != null) {
+            index.clear();
+        }
+    }
+
+    /**
+     * 实际列出内容的目录数
+     */
+    public long getDirsListed() {
+        return dirsListed.get();
+    }
+
+    /**
+     * 命中缓存、未重新列出的目录数
+     */
+    public long getDirsReused() {
+        return dirsReused.get();
+    }
+
+    private Entry list(File dir, long lastModified) {
+        dirsListed.incrementAndGet();
+        long bytes = 0;
+        List<String> subdirs = new ArrayList<String>();
+        for(File child: new DirectoryWalker(dir).setMaxDepth(1).setIncludeDirectories(true)) {
+            if(child.isDirectory()) {
+                if( ! FileUtils.isSymlink(child)) {
+                    subdirs.add(child.getName());
+                }
+            } else {
+                bytes += child.length();
+            }
+        }
+        return new Entry(lastModified, bytes, subdirs.toArray(new String[subdirs.size()]));
+    }
+
+    /**
+     * 一次计算过程
+     */
+    private class Walk {
+
+        private final Executor executor;
+
+        private final AtomicLong total = new AtomicLong();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Walk(Executor executor) {
+            this.executor = executor;
+        }
+
+        void await() {
+            boolean interrupted = false;
+            while(true) {
+                try {
+                    done.await();
+                    break;
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * pending包含自身一份和每个子目录一份，归零时通知父目录
+         */
+        private class DirTask implements Runnable {
+
+            private final File dir;
+
+            private final DirTask parent;
+
+            private final AtomicInteger pending = new AtomicInteger(1);
+
+            DirTask(File dir, DirTask parent) {
+                this.dir = dir;
+                this.parent = parent;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    long lastModified = dir.lastModified();
+                    String path = dir.getPath();
+                    Entry entry = index != null ? index.get(path) : null;
+                    if(entry != null && entry.lastModified == lastModified && lastModified != 0) {
+                        dirsReused.incrementAndGet();
+                    } else {
+                        entry = list(dir, lastModified);
+                        if(index != null) {
+                            if(System.currentTimeMillis() - lastModified > RACY_WINDOW_MILLIS) {
+                                index.put(path, entry);
+                            } else {
+                                index.remove(path);
+                            }
+                        }
+                    }
+                    total.addAndGet(entry.fileBytes);
+                    for(String name: entry.subdirs) {
+                        pending.incrementAndGet();
+                        executor.execute(new DirTask(new File(dir, name), this));
+                    }
+                } finally {
+                    finish();
+                }
+            }
+
+            private void finish() {
+                if(pending.decrementAndGet() != 0) {
+                    return;
+                }
+                if(parent != null) {
+                    parent.finish();
+                } else {
+                    done.countDown();
+                }
+            }
+        }
+    }
+}
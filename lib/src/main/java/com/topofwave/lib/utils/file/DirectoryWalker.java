@@ -0,0 +1,203 @@
+package com.topofwave.lib.utils.file;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * @describe 惰性深度优先目录遍历器.
+ * <p>
+ * 每层目录只通过File.list()取得文件名数组，在迭代到某个条目时才创建对应的File对象，已访问的文件名立即释放，
+ * 内存占用只与当前路径深度和单个目录的条目数有关。支持过滤、剪枝、最大深度以及后序遍历(先子项后目录，适合删除)。
+ * 默认不跟随符号链接。
+ * </p>
+ *
+ * <pre>
+ * for(File file: new DirectoryWalker(dir).setPruneFilter(filter)) {
+ *     ...
+ * }
+ * </pre>
+ */
+public class DirectoryWalker implements Iterable<File> {
+
+    private final File root;
+
+    private FileFilter filter;
+
+    private FileFilter pruneFilter;
+
+    private int maxDepth = Integer.MAX_VALUE;
+
+    private boolean includeDirectories;
+
+    private boolean postOrder;
+
+    private boolean followLinks;
+
+    /**
+     * @param root 遍历的根目录，根目录本身不会被返回
+     */
+    public DirectoryWalker(File root) {
+        this.root = root;
+    }
+
+    /**
+     * 只返回filter接受的条目，不影响是否进入目录
+     */
+    public DirectoryWalker setFilter(FileFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * pruneFilter不接受的目录不会被进入
+     */
+    public DirectoryWalker setPruneFilter(FileFilter pruneFilter) {
+        this.pruneFilter = pruneFilter;
+        return this;
+    }
+
+    /**
+     * 最大深度，根目录的直接子项深度为1
+     */
+    public DirectoryWalker setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * 是否同时返回目录，默认只返回文件
+     */
+    public DirectoryWalker setIncludeDirectories(boolean includeDirectories) {
+        this.includeDirectories = includeDirectories;
+        return this;
+    }
+
+    /**
+     * 是否后序返回目录(目录在其全部子项之后返回)，默认先序
+     */
+    public DirectoryWalker setPostOrder(boolean postOrder) {
+        this.postOrder = postOrder;
+        return this;
+    }
+
+    /**
+     * 是否进入符号链接指向的目录，默认否
+     */
+    public DirectoryWalker setFollowLinks(boolean followLinks) {
+        this.followLinks = followLinks;
+        return this;
+    }
+
+    /**
+     * 只遍历dir的直接子项(文件和目录)，供按目录并行处理的删除、扫描任务使用
+     * @param dir
+     * @return
+     */
+    public static DirectoryWalker children(File dir) {
+        return new DirectoryWalker(dir).setMaxDepth(1).setIncludeDirectories(true);
+    }
+
+    @Override
+    public Iterator<File> iterator() {
+        return new Walk();
+    }
+
+    /**
+     * 一层目录的遍历状态
+     */
+    private static class Level {
+
+        final File dir;
+
+        final String[] names;
+
+        final int depth;
+
+        int index;
+
+        Level(File dir, String[] names, int depth) {
+            this.dir = dir;
+            this.names = names != null ? names : new String[0];
+            this.depth = depth;
+        }
+    }
+
+    private class Walk implements Iterator<File> {
+
+        private final ArrayList<Level> stack = new ArrayList<Level>();
+
+        private File next;
+
+        Walk() {
+            if(root != null && root.isDirectory()) {
+                stack.add(new Level(root, root.list(), 0));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(next == null) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public File next() {
+            if( ! hasNext()) {
+                throw new NoSuchElementException();
+            }
+            File result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private File advance() {
+            while( ! stack.isEmpty()) {
+                Level top = stack.get(stack.size() - 1);
+                if(top.index >= top.names.length) {
+                    stack.remove(stack.size() - 1);
+                    if(postOrder && top.depth > 0 && includeDirectories && accept(top.dir)) {
+                        return top.dir;
+                    }
+                    continue;
+                }
+                String name = top.names[top.index];
+                top.names[top.index ++ ] = null;
+                File file = new File(top.dir, name);
+                if( ! file.isDirectory()) {
+                    if(accept(file)) {
+                        return file;
+                    }
+                    continue;
+                }
+                int depth = top.depth + 1;
+                boolean descend =
+                    depth < maxDepth && (followLinks || ! FileUtils.isSymlink(file))
+                        && (pruneFilter == null || pruneFilter.accept(file));
+                if(descend) {
+                    stack.add(new Level(file, file.list(), depth));
+                    if(postOrder) {
+                        continue;
+                    }
+                }
+                if(includeDirectories && accept(file)) {
+                    return file;
+                }
+            }
+            return null;
+        }
+
+        private boolean accept(File file) {
+            return filter == null || filter.accept(file);
+        }
+    }
+}
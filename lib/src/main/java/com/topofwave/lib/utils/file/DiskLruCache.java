@@ -0,0 +1,837 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topofwave.lib.utils.file;
+
+import android.content.Context;
+
+import com.topofwave.lib.utils.debug.DebugLog;
+import com.topofwave.lib.utils.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * @describe 有容量上限的磁盘LRU缓存.
+ * <p>
+ * 每个键对应缓存目录下的一个文件，所有增删操作记录在journal日志中，启动时重放日志重建索引，不需要扫描目录。
+ * 写入通过{@link Editor}先写临时文件，commit时重命名为正式文件再记录日志，未提交的写入对读者不可见；
+ * 同一个键同时只允许一个Editor。读取返回{@link Snapshot}，它持有已打开的输入流，之后该条目被覆盖或淘汰也不影响正在读取的内容。
+ * 总字节数超过上限时在{@link FileWorkers}线程中按访问顺序淘汰最久未使用的条目。
+ * </p>
+ * <p>
+ * 键必须匹配[a-z0-9_-]{1,120}，URL等任意字符串可以先用MD5Utils.getMD5转换。
+ * </p>
+ *
+ * <pre>
+ * DiskLruCache cache = DiskLruCache.open(context, "images", 20 * 1024 * 1024);
+ * DiskLruCache.Editor editor = cache.edit(key);
+ * if(editor != null) {
+ *     OutputStream os = editor.newOutputStream();
+ *     ...
+ *     editor.commit();
+ * }
+ * </pre>
+ * <p>
+ * 改编自Jake Wharton的DiskLruCache(https://github.com/JakeWharton/DiskLruCache)，
+ * 其源自Android开源项目libcore中的同名类，按Apache License 2.0使用。
+ * </p>
+ */
+public class DiskLruCache implements Closeable {
+
+    static final String JOURNAL_FILE = "journal";
+
+    static final String JOURNAL_FILE_TEMP = "journal.tmp";
+
+    static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+
+    static final String MAGIC = "topofwave.DiskLruCache";
+
+    static final String VERSION = "1";
+
+    private static final Pattern KEY_PATTERN = Pattern.compile("[a-z0-9_-]{1,120}");
+
+    private static final String CLEAN = "CLEAN";
+
+    private static final String DIRTY = "DIRTY";
+
+    private static final String REMOVE = "REMOVE";
+
+    private static final String READ = "READ";
+
+    /**
+     * 冗余日志行数超过该值且超过条目数时重写日志
+     */
+    private static final int REBUILD_THRESHOLD = 2000;
+
+    private final File directory;
+
+    private final File journalFile;
+
+    private final File journalFileTmp;
+
+    private final File journalFileBackup;
+
+    private final int appVersion;
+
+    private long maxSize;
+
+    private long size;
+
+    private Writer journalWriter;
+
+    /**
+     * 按访问顺序排列，最久未使用的在前
+     */
+    private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    private int redundantOpCount;
+
+    /**
+     * 每次提交递增，用于判断Snapshot是否已过期
+     */
+    private long nextSequenceNumber;
+
+    private boolean cleanupScheduled;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long evictionCount;
+
+    private final Runnable cleanupCallable = new Runnable() {
+
+        @Override
+        public void run() {
+            synchronized(DiskLruCache.this) {
+                cleanupScheduled = false;
+                if(journalWriter == null) {
+                    return;
+                }
+                try {
+                    trimToSize();
+                    if(journalRebuildRequired()) {
+                        rebuildJournal();
+                        redundantOpCount = 0;
+                    }
+                } catch(IOException e) {
+                    DebugLog.e("DiskLruCache cleanup failed", e);
+                }
+            }
+        }
+    };
+
+    private DiskLruCache(File directory, int appVersion, long maxSize) {
+        this.directory = directory;
+        this.appVersion = appVersion;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
+        this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 在{@link FileUtils#getCacheDirectory(Context)}下打开(或创建)缓存
+     * @param context
+     * @param name 子目录名
+     * @param maxSize 最大字节数
+     * @return
+     * @throws IOException
+     */
+    public static DiskLruCache open(Context context, String name, long maxSize) throws IOException {
+        return open(new File(FileUtils.getCacheDirectory(context), name), 1, maxSize);
+    }
+
+    /**
+     * 打开(或创建)缓存
+     * @param directory 缓存目录，应由缓存独占
+     * @param appVersion 版本号变化时清空原有缓存
+     * @param maxSize 最大字节数
+     * @return
+     * @throws IOException
+     */
+    public static DiskLruCache open(File directory, int appVersion, long maxSize) throws IOException {
+        if(maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        // 上次重写日志时在重命名之间中断
+        File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
+        if(backupFile.exists()) {
+            File journalFile = new File(directory, JOURNAL_FILE);
+            if(journalFile.exists()) {
+                backupFile.delete();
+            } else {
+                renameTo(backupFile, journalFile, false);
+            }
+        }
+
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, maxSize);
+        if(cache.journalFile.exists()) {
+            try {
+                cache.readJournal();
+                cache.processJournal();
+                cache.journalWriter = newJournalWriter(cache.journalFile, true);
+                return cache;
+            } catch(IOException e) {
+                DebugLog.w("DiskLruCache " + directory + " is corrupt: " + e.getMessage() + ", removing");
+                cache.delete();
+            }
+        }
+
+        if( ! directory.isDirectory() && ! directory.mkdirs()) {
+            throw new IOException("Cannot create directory: " + directory);
+        }
+        cache = new DiskLruCache(directory, appVersion, maxSize);
+        cache.rebuildJournal();
+        return cache;
+    }
+
+    /**
+     * 读取条目
+     * @param key
+     * @return 不存在或尚未提交返回null
+     * @throws IOException
+     */
+    public synchronized Snapshot get(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if(entry == null || ! entry.readable) {
+            missCount ++ ;
+            return null;
+        }
+        InputStream in;
+        try {
+            in = new FileInputStream(entry.getCleanFile());
+        } catch(FileNotFoundException e) {
+            // 文件被外部删除
+            missCount ++ ;
+            return null;
+        }
+        hitCount ++ ;
+        redundantOpCount ++ ;
+        journalWriter.append(READ + ' ' + key + '\n');
+        if(journalRebuildRequired()) {
+            scheduleCleanup();
+        }
+        return new Snapshot(key, entry.sequenceNumber, in, entry.length);
+    }
+
+    /**
+     * 开始编辑条目
+     * @param key
+     * @return 同一个键已有未结束的Editor时返回null
+     * @throws IOException
+     */
+    public Editor edit(String key) throws IOException {
+        return edit(key, - 1);
+    }
+
+    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if(expectedSequenceNumber != - 1 && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+            return null;
+        }
+        if(entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        } else if(entry.currentEditor != null) {
+            return null;
+        }
+        Editor editor = new Editor(entry);
+        entry.currentEditor = editor;
+        // 先记录DIRTY，避免写入过程中崩溃后留下孤立文件
+        journalWriter.write(DIRTY + ' ' + key + '\n');
+        journalWriter.flush();
+        return editor;
+    }
+
+    /**
+     * 删除条目，正在编辑的条目不能删除
+     * @param key
+     * @return 删除成功返回true
+     * @throws IOException
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if(entry == null || entry.currentEditor != null) {
+            return false;
+        }
+        File file = entry.getCleanFile();
+        if(file.exists() && ! file.delete()) {
+            throw new IOException("failed to delete " + file);
+        }
+        size -= entry.length;
+        entry.length = 0;
+        redundantOpCount ++ ;
+        journalWriter.append(REMOVE + ' ' + key + '\n');
+        lruEntries.remove(key);
+        if(journalRebuildRequired()) {
+            scheduleCleanup();
+        }
+        return true;
+    }
+
+    /**
+     * 缓存目录
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 最大字节数
+     */
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 修改最大字节数，缩小时在后台淘汰
+     * @param maxSize
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        scheduleCleanup();
+    }
+
+    /**
+     * 已提交条目的总字节数，可能暂时超过上限，后台淘汰完成后回落
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * 命中次数
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * 未命中次数
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * 因超出容量被淘汰的条目数
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized boolean isClosed() {
+        return journalWriter == null;
+    }
+
+    /**
+     * 淘汰超出部分并把日志刷新到磁盘
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        checkNotClosed();
+        trimToSize();
+        journalWriter.flush();
+    }
+
+    /**
+     * 关闭缓存，未提交的Editor被放弃
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(journalWriter == null) {
+            return;
+        }
+        for(Entry entry: new ArrayList<Entry>(lruEntries.values())) {
+            if(entry.currentEditor != null) {
+                entry.currentEditor.abort();
+            }
+        }
+        trimToSize();
+        journalWriter.close();
+        journalWriter = null;
+    }
+
+    /**
+     * 关闭缓存并删除缓存目录中的全部内容
+     * @throws IOException
+     */
+    public void delete() throws IOException {
+        close();
+        DirectoryDeleter.delete(directory);
+    }
+
+    private void readJournal() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "US-ASCII"));
+        try {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            String appVersionString = reader.readLine();
+            String blank = reader.readLine();
+            if( ! MAGIC.equals(magic) || ! VERSION.equals(version) || ! Integer.toString(appVersion).equals(appVersionString)
+                || ! "".equals(blank)) {
+                throw new IOException("unexpected journal header: [" + magic + ", " + version + ", " + appVersionString + ", "
+                    + blank + "]");
+            }
+            int lineCount = 0;
+            String line;
+            while((line = reader.readLine()) != null) {
+                readJournalLine(line);
+                lineCount ++ ;
+            }
+            redundantOpCount = lineCount - lruEntries.size();
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        int firstSpace = line.indexOf(' ');
+        if(firstSpace == - 1) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+        int secondSpace = line.indexOf(' ', firstSpace + 1);
+        String command = line.substring(0, firstSpace);
+        String key = secondSpace == - 1 ? line.substring(firstSpace + 1) : line.substring(firstSpace + 1, secondSpace);
+        if(REMOVE.equals(command) && secondSpace == - 1) {
+            lruEntries.remove(key);
+            return;
+        }
+        Entry entry = lruEntries.get(key);
+        if(entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+        if(CLEAN.equals(command) && secondSpace != - 1) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            try {
+                entry.length = Long.parseLong(line.substring(secondSpace + 1));
+            } catch(NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+        } else if(DIRTY.equals(command) && secondSpace == - 1) {
+            entry.currentEditor = new Editor(entry);
+        } else if(READ.equals(command) && secondSpace == - 1) {
+            // 访问顺序已由get更新
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * 计算总大小，并删除上次未完成编辑留下的文件
+     */
+    private void processJournal() throws IOException {
+        deleteIfExists(journalFileTmp);
+        for(Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if(entry.currentEditor == null) {
+                size += entry.length;
+            } else {
+                entry.currentEditor = null;
+                deleteIfExists(entry.getCleanFile());
+                deleteIfExists(entry.getDirtyFile());
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * 只用当前条目重写日志，写完后替换旧日志
+     */
+    private synchronized void rebuildJournal() throws IOException {
+        if(journalWriter != null) {
+            journalWriter.close();
+        }
+        Writer writer = newJournalWriter(journalFileTmp, false);
+        try {
+            writer.write(MAGIC + "\n" + VERSION + "\n" + appVersion + "\n\n");
+            for(Entry entry: lruEntries.values()) {
+                if(entry.currentEditor != null) {
+                    writer.write(DIRTY + ' ' + entry.key + '\n');
+                } else {
+                    writer.write(CLEAN + ' ' + entry.key + ' ' + entry.length + '\n');
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if(journalFile.exists()) {
+            renameTo(journalFile, journalFileBackup, true);
+        }
+        renameTo(journalFileTmp, journalFile, false);
+        journalFileBackup.delete();
+        journalWriter = newJournalWriter(journalFile, true);
+    }
+
+    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+        Entry entry = editor.entry;
+        if(entry.currentEditor != editor) {
+            throw new IllegalStateException();
+        }
+        File dirty = entry.getDirtyFile();
+        if(success) {
+            if( ! editor.written || ! dirty.exists()) {
+                editor.abort();
+                throw new IllegalStateException("Newly created entry didn't create value for key " + entry.key);
+            }
+            File clean = entry.getCleanFile();
+            renameTo(dirty, clean, true);
+            long oldLength = entry.length;
+            entry.length = clean.length();
+            size = size - oldLength + entry.length;
+        } else {
+            deleteIfExists(dirty);
+        }
+
+        redundantOpCount ++ ;
+        entry.currentEditor = null;
+        if(entry.readable | success) {
+            entry.readable = true;
+            entry.sequenceNumber = nextSequenceNumber ++ ;
+            journalWriter.write(CLEAN + ' ' + entry.key + ' ' + entry.length + '\n');
+        } else {
+            lruEntries.remove(entry.key);
+            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+        }
+        journalWriter.flush();
+
+        if(size > maxSize || journalRebuildRequired()) {
+            scheduleCleanup();
+        }
+    }
+
+    private boolean journalRebuildRequired() {
+        return redundantOpCount >= REBUILD_THRESHOLD && redundantOpCount >= lruEntries.size();
+    }
+
+    private void scheduleCleanup() {
+        if( ! cleanupScheduled) {
+            cleanupScheduled = true;
+            FileWorkers.get().execute(cleanupCallable);
+        }
+    }
+
+    private void trimToSize() throws IOException {
+        while(size > maxSize) {
+            Map.Entry<String, Entry> toEvict = null;
+            for(Map.Entry<String, Entry> e: lruEntries.entrySet()) {
+                if(e.getValue().currentEditor == null) {
+                    toEvict = e;
+                    break;
+                }
+            }
+            if(toEvict == null) {
+                return;
+            }
+            if(remove(toEvict.getKey())) {
+                evictionCount ++ ;
+            }
+        }
+    }
+
+    private void checkNotClosed() {
+        if(journalWriter == null) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    private static void validateKey(String key) {
+        if( ! KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException("keys must match regex [a-z0-9_-]{1,120}: \"" + key + "\"");
+        }
+    }
+
+    private static Writer newJournalWriter(File file, boolean append) throws FileNotFoundException {
+        try {
+            return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), "US-ASCII"));
+        } catch(java.io.UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void deleteIfExists(File file) throws IOException {
+        if(file.exists() && ! file.delete()) {
+            throw new IOException("failed to delete " + file);
+        }
+    }
+
+    private static void renameTo(File from, File to, boolean deleteDestination) throws IOException {
+        if(deleteDestination) {
+            deleteIfExists(to);
+        }
+        if( ! from.renameTo(to)) {
+            throw new IOException("failed to rename " + from + " to " + to);
+        }
+    }
+
+    /**
+     * 条目的只读快照
+     */
+    public final class Snapshot implements Closeable {
+
+        private final String key;
+
+        private final long sequenceNumber;
+
+        private final InputStream in;
+
+        private final long length;
+
+        private Snapshot(String key, long sequenceNumber, InputStream in, long length) {
+            this.key = key;
+            this.sequenceNumber = sequenceNumber;
+            this.in = in;
+            this.length = length;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * 快照对应的输入流，读完后调用{@link #close()}
+         */
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        /**
+         * 字节数
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * 读取全部内容并关闭快照
+         * @return
+         * @throws IOException
+         */
+        public byte[] getBytes() throws IOException {
+            try {
+                return IOUtils.toByteArray(in, length);
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * 编辑该条目
+         * @return 快照创建后条目已被修改或正在被编辑时返回null
+         * @throws IOException
+         */
+        public Editor edit() throws IOException {
+            return DiskLruCache.this.edit(key, sequenceNumber);
+        }
+
+        @Override
+        public void close() {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * 条目的编辑器，必须以{@link #commit()}或{@link #abort()}结束
+     */
+    public final class Editor {
+
+        private final Entry entry;
+
+        private boolean written;
+
+        private boolean hasErrors;
+
+        private boolean committed;
+
+        private Editor(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * 获取写入新值的输出流，写入的内容在commit前对读者不可见
+         * @return
+         * @throws IOException
+         */
+        public OutputStream newOutputStream() throws IOException {
+            synchronized(DiskLruCache.this) {
+                if(entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                written = true;
+                File dirty = entry.getDirtyFile();
+                FileOutputStream out;
+                try {
+                    out = new FileOutputStream(dirty);
+                } catch(FileNotFoundException e) {
+                    // 缓存目录可能被外部删除
+                    directory.mkdirs();
+                    out = new FileOutputStream(dirty);
+                }
+                return new FaultHidingOutputStream(out);
+            }
+        }
+
+        /**
+         * 写入整个字节数组作为新值，仍需调用commit
+         * @param data
+         * @throws IOException
+         */
+        public void set(byte[] data) throws IOException {
+            OutputStream out = newOutputStream();
+            try {
+                out.write(data);
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+        }
+
+        /**
+         * 提交，使新值对读者可见。写入时发生过错误则放弃并删除该条目
+         * @throws IOException
+         */
+        public void commit() throws IOException {
+            if(hasErrors) {
+                completeEdit(this, false);
+                remove(entry.key);
+            } else {
+                completeEdit(this, true);
+            }
+            committed = true;
+        }
+
+        /**
+         * 放弃编辑，保留原有的值
+         * @throws IOException
+         */
+        public void abort() throws IOException {
+            completeEdit(this, false);
+        }
+
+        /**
+         * 尚未提交时放弃，适合放在finally中
+         */
+        public void abortUnlessCommitted() {
+            if( ! committed) {
+                try {
+                    abort();
+                } catch(IOException ignored) {
+                } catch(IllegalStateException ignored) {
+                }
+            }
+        }
+
+        private class FaultHidingOutputStream extends FilterOutputStream {
+
+            private FaultHidingOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int oneByte) {
+                try {
+                    out.write(oneByte);
+                } catch(IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) {
+                try {
+                    out.write(buffer, offset, length);
+                } catch(IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override
+            public void close() {
+                try {
+                    out.close();
+                } catch(IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override
+            public void flush() {
+                try {
+                    out.flush();
+                } catch(IOException e) {
+                    hasErrors = true;
+                }
+            }
+        }
+    }
+
+    private final class Entry {
+
+        private final String key;
+
+        private long length;
+
+        /**
+         * 至少提交过一次
+         */
+        private boolean readable;
+
+        private Editor currentEditor;
+
+        private long sequenceNumber;
+
+        private Entry(String key) {
+            this.key = key;
+        }
+
+        /**
+         * 键中不含'.'，加后缀后不会与journal文件重名
+         */
+        File getCleanFile() {
+            return new File(directory, key + ".0");
+        }
+
+        File getDirtyFile() {
+            return new File(directory, key + ".0.tmp");
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package com.topofwave.lib.utils.file;
+
+import android.os.Environment;
+import android.os.StatFs;
+import android.os.SystemClock;
+
+import com.topofwave.lib.utils.debug.DebugLog;
+
+import java.io.File;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @describe 磁盘剩余空间管理.
+ * <p>
+ * 按存储卷(默认注册内部存储/data和外部存储根目录)缓存StatFs读数，缓存在ttl内有效，过期后调用StatFs.restat重新读取。
+ * 本库自己的写入和删除(FileUtils的保存、复制、删除，DirectoryDeleter，CacheTrimmer)会即时增减缓存值，
+ * 因此两次读取之间即使没有重新stat也能反映本进程造成的变化；其他进程造成的变化在ttl后体现。
+ * 可以为卷注册低空间阈值，剩余空间降到阈值以下时在专用的回调线程上回调一次，回到阈值以上后重新生效，
+ * 回调中一般裁剪缓存。回调线程不属于{@link FileWorkers}，回调中可以调用{@link CacheTrimmer#trim}等会等待FileWorkers任务的方法。
+ * 大文件写入前可调用{@link #ensureSpace(File, long)}，空间不足时同步触发回调并重新读取。
+ * 无法读取卷信息(总字节数为0)时视为未知，不触发回调。
+ * </p>
+ */
+public class DiskSpaceManager {
+
+    /**
+     * 默认缓存有效期：2秒
+     */
+    public static final long DEFAULT_TTL_MILLIS = 2000;
+
+    /**
+     * 低空间回调
+     */
+    public interface LowSpaceListener {
+
+        /**
+         * 异步触发时在单独的回调线程上按顺序调用，{@link #ensureSpace(File, long)}触发时在调用线程上调用
+         * @param volume 卷根目录
+         * @param availableBytes 当前剩余字节数
+         * @param thresholdBytes 注册的阈值
+         */
+        void onLowSpace(File volume, long availableBytes, long thresholdBytes);
+    }
+
+    private static volatile DiskSpaceManager sDefault;
+
+    /**
+     * 低空间回调线程。回调通常会裁剪缓存并等待FileWorkers任务，不能在FileWorkers上执行，否则会等待排在自己后面的任务
+     */
+    private static volatile ThreadPoolExecutor sCallbackExecutor;
+
+    private final long ttlMillis;
+
+    private final CopyOnWriteArrayList<Volume> volumes = new CopyOnWriteArrayList<Volume>();
+
+    private final AtomicLong statCount = new AtomicLong();
+
+    private static class Threshold {
+
+        final long bytes;
+
+        final LowSpaceListener listener;
+
+        /**
+         * 已低于阈值并回调过，回到阈值以上前不再回调
+         */
+        boolean fired;
+
+        Threshold(long bytes, LowSpaceListener listener) {
+            this.bytes = bytes;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * 一个存储卷的缓存读数
+     */
+    private class Volume {
+
+        final File root;
+
+        final String prefix;
+
+        final CopyOnWriteArrayList<Threshold> thresholds = new CopyOnWriteArrayList<Threshold>();
+
+        private StatFs statFs;
+
+        private long available;
+
+        private long total;
+
+        /**
+         * 上次stat的时间，0表示需要重新读取
+         */
+        private long readAt;
+
+        Volume(File root) {
+            this.root = root;
+            String path = root.getAbsolutePath();
+            this.prefix = path.endsWith(File.separator) ? path : path + File.separator;
+        }
+
+        boolean contains(String path) {
+            return path.startsWith(prefix) || path.equals(root.getAbsolutePath());
+        }
+
+        synchronized long getAvailable() {
+            refreshIfStale();
+            return available;
+        }
+
+        synchronized long getTotal() {
+            refreshIfStale();
+            return total;
+        }
+
+        synchronized void invalidate() {
+            readAt = 0;
+        }
+
+        /**
+         * 调整缓存的剩余空间，正数表示释放，负数表示占用
+         */
+        void adjust(long delta) {
+            if(delta == 0) {
+                return;
+            }
+            synchronized(this) {
+                if(readAt == 0) {
+                    return;
+                }
+                available = Math.max(0, Math.min(total, available + delta));
+            }
+            checkThresholds(false);
+        }
+
+        private void refreshIfStale() {
+            long now = SystemClock.elapsedRealtime();
+            if(readAt != 0 && now - readAt < ttlMillis) {
+                return;
+            }
+            statCount.incrementAndGet();
+            long[] reading = new long[2];
+            statFs = stat(root, statFs, reading);
+            available = reading[0];
+            total = reading[1];
+            readAt = now;
+        }
+
+        /**
+         * @param sync true时在当前线程回调
+         * @return 是否回调了监听
+         */
+        boolean checkThresholds(boolean sync) {
+            if(thresholds.isEmpty() || getTotal() == 0) {
+                // 卷信息未知时不回调
+                return false;
+            }
+            final long current = getAvailable();
+            boolean notified = false;
+            for(final Threshold threshold: thresholds) {
+                boolean low = current < threshold.bytes;
+                synchronized(threshold) {
+                    if( ! low) {
+                        threshold.fired = false;
+                        continue;
+                    }
+                    if(threshold.fired && ! sync) {
+                        continue;
+                    }
+                    threshold.fired = true;
+                }
+                notified = true;
+                if(sync) {
+                    notifyListener(threshold, current);
+                } else {
+                    callbackExecutor().execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            notifyListener(threshold, current);
+                        }
+                    });
+                }
+            }
+            return notified;
+        }
+
+        private void notifyListener(Threshold threshold, long current) {
+            try {
+                threshold.listener.onLowSpace(root, current, threshold.bytes);
+            } catch(RuntimeException e) {
+                DebugLog.e("LowSpaceListener failed", e);
+            }
+        }
+    }
+
+    /**
+     * 获取全局实例，已注册内部存储和外部存储
+     * @return
+     */
+    public static DiskSpaceManager getDefault() {
+        if(sDefault == null) {
+            synchronized(DiskSpaceManager.class) {
+                if(sDefault == null) {
+                    DiskSpaceManager manager = new DiskSpaceManager(DEFAULT_TTL_MILLIS);
+                    manager.registerVolume(Environment.getDataDirectory());
+                    manager.registerVolume(Environment.getExternalStorageDirectory());
+                    sDefault = manager;
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    private static ThreadPoolExecutor callbackExecutor() {
+        if(sCallbackExecutor == null) {
+            synchronized(DiskSpaceManager.class) {
+                if(sCallbackExecutor == null) {
+                    ThreadPoolExecutor executor =
+                        new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "disk-space-callback");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+                    executor.allowCoreThreadTimeOut(true);
+                    sCallbackExecutor = executor;
+                }
+            }
+        }
+        return sCallbackExecutor;
+    }
+
+    /**
+     * @param ttlMillis 读数缓存有效期
+     */
+    public DiskSpaceManager(long ttlMillis) {
+        if(ttlMillis < 0) {
+            throw new IllegalArgumentException("ttlMillis < 0");
+        }
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * 注册一个需要缓存读数的卷，已注册时忽略
+     * @param root 卷根目录(挂载点)
+     */
+    public void registerVolume(File root) {
+        if(root == null) {
+            return;
+        }
+        synchronized(volumes) {
+            for(Volume volume: volumes) {
+                if(volume.root.getAbsolutePath().equals(root.getAbsolutePath())) {
+                    return;
+                }
+            }
+            volumes.add(new Volume(root));
+        }
+    }
+
+    /**
+     * 获取路径所在卷的剩余字节数
+     * @param path 卷内任意路径，不在已注册的卷内时直接stat该路径，不缓存
+     * @return 不可用时返回0
+     */
+    public long getAvailableBytes(File path) {
+        Volume volume = volumeFor(path);
+        if(volume != null) {
+            return volume.getAvailable();
+        }
+        statCount.incrementAndGet();
+        try {
+            return new StatFs(path.getAbsolutePath()).getAvailableBytes();
+        } catch(RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 获取路径所在卷的总字节数
+     * @param path
+     * @return 不可用时返回0
+     */
+    public long getTotalBytes(File path) {
+        Volume volume = volumeFor(path);
+        if(volume != null) {
+            return volume.getTotal();
+        }
+        statCount.incrementAndGet();
+        try {
+            return new StatFs(path.getAbsolutePath()).getTotalBytes();
+        } catch(RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 内部存储(/data)剩余字节数
+     */
+    public long getInternalAvailableBytes() {
+        File dir = Environment.getDataDirectory();
+        return dir == null ? 0 : getAvailableBytes(dir);
+    }
+
+    /**
+     * 外部存储剩余字节数
+     */
+    public long getExternalAvailableBytes() {
+        File dir = Environment.getExternalStorageDirectory();
+        return dir == null ? 0 : getAvailableBytes(dir);
+    }
+
+    /**
+     * 确认写入bytes字节前的空间：写入后会低于某个阈值时先同步回调低空间监听(在当前线程中裁剪缓存)，然后重新读取
+     * @param path 将要写入的路径
+     * @param bytes 将要写入的字节数
+     * @return 剩余空间足够，或无法取得卷信息时返回true
+     */
+    public boolean ensureSpace(File path, long bytes) {
+        Volume volume = volumeFor(path);
+        if(volume == null) {
+            return hasSpace(path, bytes);
+        }
+        if(volume.getTotal() == 0) {
+            // 卷未挂载或stat失败，交给实际写入去报错
+            return true;
+        }
+        long available = volume.getAvailable();
+        boolean belowThreshold = false;
+        for(Threshold threshold: volume.thresholds) {
+            if(available - bytes < threshold.bytes) {
+                belowThreshold = true;
+                break;
+            }
+        }
+        if( ! belowThreshold && available >= bytes) {
+            return true;
+        }
+        for(Threshold threshold: volume.thresholds) {
+            if(available - bytes < threshold.bytes) {
+                volume.notifyListener(threshold, available);
+            }
+        }
+        volume.invalidate();
+        return volume.getAvailable() >= bytes;
+    }
+
+    /**
+     * 不在已注册卷内的路径：stat最近的已存在的上级目录，无法取得卷信息时视为足够
+     */
+    private boolean hasSpace(File path, long bytes) {
+        File existing = path.getAbsoluteFile();
+        while(existing != null && ! existing.exists()) {
+            existing = existing.getParentFile();
+        }
+        if(existing == null) {
+            return true;
+        }
+        statCount.incrementAndGet();
+        try {
+            StatFs statFs = new StatFs(existing.getPath());
+            return statFs.getTotalBytes() == 0 || statFs.getAvailableBytes() >= bytes;
+        } catch(RuntimeException e) {
+            return true;
+        }
+    }
+
+    /**
+     * 注册低空间阈值
+     * @param path 卷内任意路径，所在卷未注册时以该路径为根注册
+     * @param thresholdBytes 剩余空间低于该值时回调
+     * @param listener
+     */
+    public void addLowSpaceListener(File path, long thresholdBytes, LowSpaceListener listener) {
+        Volume volume = volumeFor(path);
+        if(volume == null) {
+            registerVolume(path);
+            volume = volumeFor(path);
+        }
+        volume.thresholds.add(new Threshold(thresholdBytes, listener));
+        volume.checkThresholds(false);
+    }
+
+    /**
+     * 移除低空间监听
+     * @param listener
+     */
+    public void removeLowSpaceListener(LowSpaceListener listener) {
+        for(Volume volume: volumes) {
+            for(Threshold threshold: volume.thresholds) {
+                if(threshold.listener == listener) {
+                    volume.thresholds.remove(threshold);
+                }
+            }
+        }
+    }
+
+    /**
+     * 记录本进程写入了数据
+     * @param path 写入的文件
+     * @param bytes 增加的字节数，覆盖写入时为新旧长度之差
+     */
+    public void onWritten(File path, long bytes) {
+        Volume volume = volumeFor(path);
+        if(volume != null) {
+            volume.adjust( - bytes);
+        }
+    }
+
+    /**
+     * 记录本进程删除了数据
+     * @param path 删除的文件或目录
+     * @param bytes 释放的字节数
+     */
+    public void onDeleted(File path, long bytes) {
+        Volume volume = volumeFor(path);
+        if(volume != null) {
+            volume.adjust(bytes);
+        }
+    }
+
+    /**
+     * 使路径所在卷的缓存读数失效
+     * @param path
+     */
+    public void invalidate(File path) {
+        Volume volume = volumeFor(path);
+        if(volume != null) {
+            volume.invalidate();
+        }
+    }
+
+    /**
+     * 实际调用StatFs的次数
+     */
+    public long getStatCount() {
+        return statCount.get();
+    }
+
+    /**
+     * 读取卷的剩余字节数和总字节数
+     * @param root 卷根目录
+     * @param statFs 上次返回的StatFs，不为null时restat以免重新分配
+     * @param out 依次写入剩余字节数和总字节数，卷未挂载等情况下都为0
+     * @return 下次可以复用的StatFs
+     */
+    StatFs stat(File root, StatFs statFs, long[] out) {
+        try {
+            String path = root.getAbsolutePath();
+            if(statFs == null) {
+                statFs = new StatFs(path);
+            } else {
+                statFs.restat(path);
+            }
+            out[0] = statFs.getAvailableBytes();
+            out[1] = statFs.getTotalBytes();
+            return statFs;
+        } catch(RuntimeException e) {
+            // 卷未挂载等情况下StatFs抛出IllegalArgumentException
+            out[0] = 0;
+            out[1] = 0;
+            return null;
+        }
+    }
+
+    /**
+     * 找到包含该路径的最深的已注册卷
+     */
+    private Volume volumeFor(File path) {
+        if(path == null) {
+            return null;
+        }
+        String absolute = path.getAbsolutePath();
+        Volume best = null;
+        for(Volume volume: volumes) {
+            if(volume.contains(absolute) && (best == null || volume.prefix.length() > best.prefix.length())) {
+                best = volume;
+            }
+        }
+        return best;
+    }
+}
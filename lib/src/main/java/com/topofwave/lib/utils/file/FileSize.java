@@ -32,29 +32,12 @@ public class FileSize {
     }
 
     private void getFileSize() throws RuntimeException, IOException {
-        getFileSize(file);
+        // 每次重新计算，避免多次调用时重复累加
+        this.longSize = getFileSize(file);
     }
 
-    private void getFileSize(File file) {
-
-        if(file == null || ! file.exists()) {
-            return;
-        }
-
-        if(file.isFile()) {
-            this.longSize += file.length();
-            return;
-        }
-
-        File[] childArray = file.listFiles();
-        if(childArray == null || childArray.length == 0) {
-            return;
-        }
-
-        for(File child: childArray) {
-            getFileSize(child);
-        }
-
+    private long getFileSize(File file) {
+        return DirectorySizeCalculator.calculate(file);
     }
 
     public String toString() throws RuntimeException {
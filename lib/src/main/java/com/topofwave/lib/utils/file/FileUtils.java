@@ -1,19 +1,29 @@
 package com.topofwave.lib.utils.file;
 
 import com.topofwave.lib.utils.debug.DebugLog;
+import com.topofwave.lib.utils.io.ByteArrayPool;
+import com.topofwave.lib.utils.io.IOUtils;
 
 import android.content.Context;
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.CancellationSignal;
 import android.os.Environment;
-import android.os.StatFs;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * @describe 文件工具类.
@@ -73,22 +83,11 @@ public class FileUtils {
     }
 
     /**
-     * 获取SD卡剩余空间
+     * 获取SD卡剩余空间，读数由{@link DiskSpaceManager}缓存
      * @return
      */
     public static long getAvailableStorage() {
-
-        String storageDirectory = null;
-        storageDirectory = Environment.getExternalStorageDirectory().toString();
-
-        try {
-            StatFs stat = new StatFs(storageDirectory);
-            long avaliableSize = ((long)stat.getAvailableBlocks() * (long)stat.getBlockSize());
-            return avaliableSize;
-        } catch(RuntimeException ex) {
-            return 0;
-        }
-
+        return DiskSpaceManager.getDefault().getExternalAvailableBytes();
     }
 
     /**
@@ -101,15 +100,11 @@ public class FileUtils {
     }
     
     /**
-     * 获取内部存储区/data/剩余空间
+     * 获取内部存储区/data/剩余空间，读数由{@link DiskSpaceManager}缓存
      * @return Byte字节数
      */
     public static long getAvailableInternalMemorySize() {
-        File path = Environment.getDataDirectory();
-        StatFs stat = new StatFs(path.getPath());
-        long blockSize = (long)stat.getBlockSize();
-        long availableBlocks = (long)stat.getAvailableBlocks();
-        return availableBlocks * blockSize;
+        return DiskSpaceManager.getDefault().getInternalAvailableBytes();
     }
 
     /**
@@ -146,6 +141,23 @@ public class FileUtils {
         return appCacheDir;
     }
 
+    /**
+     * 默认每次transferTo的块大小：8MB
+     */
+    public static final int DEFAULT_COPY_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * 进度回调
+     */
+    public interface ProgressListener {
+
+        /**
+         * @param current 已处理的字节数
+         * @param total 总字节数
+         */
+        void onProgress(long current, long total);
+    }
+
     /**
      * 把源文件复制到目标文件中。
      * @param source 源文件
@@ -153,39 +165,79 @@ public class FileUtils {
      * @throws IOException 如果源文件不存在或者目标文件不可写入，抛出IO异常。
      */
     public static void copy(File source, File dest) throws IOException {
-        FileInputStream fileIS = null;
+        copy(source, dest, DEFAULT_COPY_CHUNK_SIZE, null, null);
+    }
+
+    /**
+     * 按块使用FileChannel.transferTo把源文件复制到目标文件中，支持超过2GB的文件，不会一次映射整个文件。
+     * @param source 源文件
+     * @param dest 目标文件，父目录不存在时自动创建
+     * @param chunkSize 每次传输的最大字节数
+     * @param listener 进度回调，可为null
+     * @param signal 取消信号，可为null。取消时删除未完成的目标文件并抛出OperationCanceledException
+     * @throws IOException 如果源文件不存在、目标文件不可写入，或复制过程中源文件变短(已删除未完成的目标文件)，抛出IO异常。
+     */
+    public static void copy(File source, File dest, int chunkSize, ProgressListener listener, CancellationSignal signal)
+        throws IOException {
+        if(chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize <= 0");
+        }
+        File dir = dest.getAbsoluteFile().getParentFile();
+        if(dir != null && ! dir.exists()) {
+            if(dir.mkdirs()) {
+                DebugLog.i("Directory created");
+            } else {
+                DebugLog.e("Directory not created");
+            }
+        }
+        long oldLength = dest.length();
+        ensureSpace(dest, source.length() - oldLength);
+        FileInputStream fileIS = new FileInputStream(source);
         FileOutputStream fileOS = null;
+        boolean completed = false;
         try {
-            fileIS = new FileInputStream(source);
             fileOS = new FileOutputStream(dest);
             FileChannel fic = fileIS.getChannel();
-            MappedByteBuffer mbuf = fic.map(FileChannel.MapMode.READ_ONLY, 0, source.length());
-            fic.close();
-            fileIS.close();
-            if( ! dest.exists()) {
-                String destPath = dest.getPath();
-                String destDir = destPath.substring(0, destPath.lastIndexOf(File.separatorChar));
-                File dir = new File(destDir);
-                if( ! dir.exists()) {
-                    if(dir.mkdirs()) {
-                        DebugLog.i("Directory created");
-                    } else {
-                        DebugLog.e("Directory not created");
+            FileChannel foc = fileOS.getChannel();
+            long size = fic.size();
+            long position = 0;
+            while(position < size) {
+                if(signal != null) {
+                    signal.throwIfCanceled();
+                }
+                long count = Math.min(chunkSize, size - position);
+                long transferred = fic.transferTo(position, count, foc);
+                if(transferred <= 0) {
+                    // 部分系统上transferTo可能返回0，改用transferFrom
+                    fic.position(position);
+                    transferred = foc.transferFrom(fic, position, count);
+                    if(transferred <= 0) {
+                        if(fic.size() <= position) {
+                            // 复制过程中源文件被截短，不能当作完成
+                            throw new IOException("Short copy of " + source + ": copied " + position + " of " + size
+                                + " bytes, source shrank to " + fic.size());
+                        }
+                        throw new IOException("Failed to copy " + source + " at offset " + position);
                     }
+                    foc.position(position + transferred);
+                }
+                position += transferred;
+                if(listener != null) {
+                    listener.onProgress(position, size);
                 }
             }
-            FileChannel foc = fileOS.getChannel();
-            foc.write(mbuf);
-            foc.close();
-            mbuf.clear();
-        } catch(Exception ex) {
-            DebugLog.e("Source File not exist !");
-        }finally{
-            if(fileOS != null){
-                fileOS.close();
-            }
-            if(fileIS != null){
-                fileIS.close();
+            completed = true;
+        } finally {
+            IOUtils.closeQuietly(fileIS);
+            if(fileOS != null) {
+                if(completed) {
+                    fileOS.close();
+                } else {
+                    IOUtils.closeQuietly(fileOS);
+                    dest.delete();
+                }
+                DiskSpaceManager.getDefault().onWritten(dest, dest.length() - oldLength);
+                DirectorySizeCalculator.onFileChanged(dest);
             }
         }
     }
@@ -200,6 +252,42 @@ public class FileUtils {
         copy(new File(source), new File(dest));
     }
 
+    /**
+     * 复制整个目录，使用{@link DirectoryWalker}逐个遍历，不跟随符号链接
+     * @param source 源目录
+     * @param dest 目标目录，不存在时自动创建，不能位于源目录内
+     * @param signal 取消信号，可为null
+     * @throws IOException 目标位于源目录内，或复制失败
+     */
+    public static void copyDirectory(File source, File dest, CancellationSignal signal) throws IOException {
+        if( ! source.isDirectory()) {
+            throw new IOException("Source is not a directory: " + source);
+        }
+        String sourceCanonical = source.getCanonicalPath();
+        String destCanonical = dest.getCanonicalPath();
+        if(destCanonical.equals(sourceCanonical) || destCanonical.startsWith(sourceCanonical + File.separator)) {
+            // 目标在源目录内时会把复制出的内容再次遍历，无限递归
+            throw new IOException("Cannot copy " + source + " into itself: " + dest);
+        }
+        if( ! dest.isDirectory() && ! dest.mkdirs()) {
+            throw new IOException("Cannot create directory: " + dest);
+        }
+        String sourcePath = source.getAbsolutePath();
+        for(File file: new DirectoryWalker(source).setIncludeDirectories(true)) {
+            if(signal != null) {
+                signal.throwIfCanceled();
+            }
+            File target = new File(dest, file.getAbsolutePath().substring(sourcePath.length() + 1));
+            if(file.isDirectory()) {
+                if( ! target.isDirectory() && ! target.mkdirs()) {
+                    throw new IOException("Cannot create directory: " + target);
+                }
+            } else {
+                copy(file, target, DEFAULT_COPY_CHUNK_SIZE, null, signal);
+            }
+        }
+    }
+
     /**
      * 保存一个输入流到指定路径中，保存完成后输入流将被关闭。
      * @param is
@@ -211,23 +299,48 @@ public class FileUtils {
     }
 
     /**
-     * 保存一个输入流到指定路径中
+     * 保存一个输入流到指定路径中。会截断已有文件从头写入，大文件下载需要断点续传时使用{@link ResumableSave}
      * @param is 输入流
      * @param path 路径
      * @param closeInputStream 是否关闭输入流
      * @throws IOException
      */
     public static void save(InputStream is, String path, boolean closeInputStream) throws IOException {
-        FileOutputStream os = new FileOutputStream(createFile(path));
-        byte[] cache = new byte[10 * 1024];
-        for(int len = 0; (len = is.read(cache)) != - 1;) {
-            os.write(cache, 0, len);
+        File file = new File(path);
+        long oldLength = file.length();
+        ensureSpace(file, is.available() - oldLength);
+        createFile(path);
+        FileOutputStream os = new FileOutputStream(file);
+        ByteArrayPool pool = ByteArrayPool.getDefault();
+        byte[] cache = pool.getBuf(10 * 1024);
+        long written = 0;
+        try {
+            for(int len = 0; (len = is.read(cache)) != - 1;) {
+                os.write(cache, 0, len);
+                written += len;
+            }
+        } finally {
+            pool.returnBuf(cache);
+            os.close();
+            DiskSpaceManager.getDefault().onWritten(file, written - oldLength);
+            DirectorySizeCalculator.onFileChanged(file);
         }
-        os.close();
         if(closeInputStream)
             is.close();
     }
 
+    /**
+     * 写入前确认剩余空间，不足时会先同步回调低空间监听裁剪缓存，仍然不足则抛出异常，避免写到一半才因磁盘已满失败
+     * @param target 将要写入的文件
+     * @param bytes 将要增加的字节数，输入流长度未知时按available()估计
+     * @throws IOException 空间不足
+     */
+    static void ensureSpace(File target, long bytes) throws IOException {
+        if( ! DiskSpaceManager.getDefault().ensureSpace(target, bytes)) {
+            throw new IOException("Not enough space to write " + bytes + " bytes to " + target);
+        }
+    }
+
     public static File createFile(String path) throws IOException {
         File distFile = new File(path);
         if( ! distFile.exists()) {
@@ -246,22 +359,259 @@ public class FileUtils {
      * @param path
      */
     public static void save(byte[] data, String path) throws IOException {
-        FileOutputStream os = new FileOutputStream(createFile(path));
-        os.write(data, 0, data.length);
-        os.close();
+        File file = new File(path);
+        long oldLength = file.length();
+        ensureSpace(file, data.length - oldLength);
+        createFile(path);
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data, 0, data.length);
+        } finally {
+            os.close();
+            DiskSpaceManager.getDefault().onWritten(file, file.length() - oldLength);
+            DirectorySizeCalculator.onFileChanged(file);
+        }
+    }
+
+    /**
+     * 异步保存一个字节数组，由{@link WriteBehindQueue#getDefault()}的后台线程写入。同一路径未写入前的旧数据会被新数据替换
+     * @param data 调用后不要再修改
+     * @param path
+     * @throws InterruptedException 积压已满、等待时被中断
+     */
+    public static void saveAsync(byte[] data, String path) throws InterruptedException {
+        WriteBehindQueue.getDefault().write(path, data);
     }
 
     /**
-     * 移动文件
+     * 原子保存字节数组：先写入同目录下的临时文件并fsync，再重命名为目标文件。写入过程中崩溃不会留下截断的目标文件
+     * @param data
+     * @param path
+     * @throws IOException
+     */
+    public static void saveAtomic(byte[] data, String path) throws IOException {
+        saveAtomic(data, path, false);
+    }
+
+    /**
+     * 原子保存字节数组
+     * @param data
+     * @param path
+     * @param groupCommit true时交给{@link GroupCommitWriter#getDefault()}，与并发的其他保存合并重命名和目录fsync，文件数据仍逐个fsync
+     * @throws IOException
+     */
+    public static void saveAtomic(byte[] data, String path, boolean groupCommit) throws IOException {
+        if(groupCommit) {
+            GroupCommitWriter.getDefault().save(data, path);
+            return;
+        }
+        File target = new File(path);
+        // 重命名前新旧文件同时存在，需要完整的空间
+        ensureSpace(target, data.length);
+        File temp = createTempSibling(target);
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(temp);
+            os.write(data, 0, data.length);
+            os.getFD().sync();
+            os.close();
+            os = null;
+            commitTemp(temp, target);
+            syncDirectory(target.getAbsoluteFile().getParentFile());
+        } finally {
+            if(os != null) {
+                IOUtils.closeQuietly(os);
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * 原子保存输入流，临时文件fsync后再重命名为目标文件
+     * @param is 输入流
+     * @param path 路径
+     * @param closeInputStream 是否关闭输入流
+     * @throws IOException
+     */
+    public static void saveAtomic(InputStream is, String path, boolean closeInputStream) throws IOException {
+        File target = new File(path);
+        ensureSpace(target, is.available());
+        File temp = createTempSibling(target);
+        FileOutputStream os = null;
+        ByteArrayPool pool = ByteArrayPool.getDefault();
+        byte[] cache = pool.getBuf(10 * 1024);
+        try {
+            os = new FileOutputStream(temp);
+            for(int len = 0; (len = is.read(cache)) != - 1;) {
+                os.write(cache, 0, len);
+            }
+            os.getFD().sync();
+            os.close();
+            os = null;
+            commitTemp(temp, target);
+            syncDirectory(target.getAbsoluteFile().getParentFile());
+        } finally {
+            pool.returnBuf(cache);
+            if(os != null) {
+                IOUtils.closeQuietly(os);
+                temp.delete();
+            }
+            if(closeInputStream)
+                is.close();
+        }
+    }
+
+    /**
+     * 原子保存使用的临时文件后缀
+     */
+    static final String TEMP_SUFFIX = ".save.tmp";
+
+    /**
+     * 修改时间早于进程启动前这么久的临时文件才会被清理，留出文件系统时间精度的余量
+     */
+    private static final long STALE_TEMP_SLACK_MILLIS = 2000;
+
+    private static final long PROCESS_START_MILLIS = System.currentTimeMillis();
+
+    /**
+     * 本进程中已清理过临时文件的目录
+     */
+    private static final Set<String> sSweptDirs = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * 在目标文件所在目录创建临时文件，保证之后的重命名在同一文件系统内。
+     * 每个目录在本进程中第一次使用时，先删除之前进程崩溃遗留的临时文件
+     */
+    static File createTempSibling(File target) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        if(dir != null && ! dir.exists()) {
+            dir.mkdirs();
+        }
+        if(dir != null && sSweptDirs.add(dir.getPath())) {
+            sweepStaleTemps(dir);
+        }
+        String prefix = target.getName();
+        if(prefix.length() < 3) {
+            prefix = prefix + "___";
+        }
+        return File.createTempFile(prefix, TEMP_SUFFIX, dir);
+    }
+
+    /**
+     * 删除目录中进程启动前就已存在的临时文件，本进程正在写入的临时文件不会被删除
+     * @return 删除的文件数
+     */
+    static int sweepStaleTemps(File dir) {
+        File[] files = dir.listFiles();
+        if(files == null) {
+            return 0;
+        }
+        int count = 0;
+        long before = PROCESS_START_MILLIS - STALE_TEMP_SLACK_MILLIS;
+        for(File file: files) {
+            if(file.getName().endsWith(TEMP_SUFFIX) && file.isFile() && file.lastModified() < before) {
+                long length = file.length();
+                if(file.delete()) {
+                    DiskSpaceManager.getDefault().onDeleted(file, length);
+                    count ++ ;
+                }
+            }
+        }
+        if(count > 0) {
+            DebugLog.i("FileUtils: removed " + count + " stale temp files in " + dir);
+        }
+        return count;
+    }
+
+    /**
+     * fsync目录，使其中的重命名、创建持久化。Android 5.0以下无法打开目录，此时直接返回false
+     * @return 是否已同步
+     */
+    static boolean syncDirectory(File dir) {
+        if(dir == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        return syncDirectoryLollipop(dir);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean syncDirectoryLollipop(File dir) {
+        FileDescriptor fd;
+        try {
+            fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+        } catch(ErrnoException e) {
+            DebugLog.w("FileUtils: cannot open " + dir + " for sync: " + e.getMessage());
+            return false;
+        }
+        try {
+            Os.fsync(fd);
+            return true;
+        } catch(ErrnoException e) {
+            DebugLog.w("FileUtils: cannot sync " + dir + ": " + e.getMessage());
+            return false;
+        } finally {
+            try {
+                Os.close(fd);
+            } catch(ErrnoException e) {
+                // 只读描述符，关闭失败不影响结果
+            }
+        }
+    }
+
+    /**
+     * 将已fsync的临时文件重命名为目标文件，失败时删除临时文件
+     */
+    static void commitTemp(File temp, File target) throws IOException {
+        long oldLength = target.length();
+        long newLength = temp.length();
+        if( ! temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Failed to rename " + temp + " to " + target);
+        }
+        DiskSpaceManager.getDefault().onWritten(target, newLength - oldLength);
+        DirectorySizeCalculator.onFileChanged(target);
+    }
+
+    /**
+     * 移动文件时实际采用的方式
+     */
+    public enum MoveMethod {
+        /**
+         * 同一文件系统内直接重命名，只修改元数据
+         */
+        RENAME,
+        /**
+         * 跨文件系统，复制后删除源文件
+         */
+        COPY
+    }
+
+    /**
+     * 移动文件。先尝试原子重命名，失败(如跨文件系统)时才复制后删除源文件
      * @param source
      * @param dest
+     * @return 实际采用的移动方式
      * @throws IOException
      */
-    public static void moveFile(String source, String dest) throws IOException {
-        copy(source, dest);
+    public static MoveMethod moveFile(String source, String dest) throws IOException {
         File src = new File(source);
+        File dst = new File(dest);
+        if( ! src.exists()) {
+            throw new IOException("Source file not exist: " + source);
+        }
+        File dir = dst.getAbsoluteFile().getParentFile();
+        if(dir != null && ! dir.exists()) {
+            dir.mkdirs();
+        }
+        if(src.renameTo(dst)) {
+            return MoveMethod.RENAME;
+        }
+        copy(src, dst);
         if(src.exists() && src.canRead()) {
+            long length = src.length();
             if(src.delete()) {
+                // copy已记录目标的写入，这里记录源文件释放的空间
+                DiskSpaceManager.getDefault().onDeleted(src, length);
                 DebugLog.i("Source file was deleted");
             } else {
                 src.deleteOnExit();
@@ -269,6 +619,7 @@ public class FileUtils {
         } else {
             DebugLog.w("Source file could not be accessed for removal");
         }
+        return MoveMethod.COPY;
     }
 
     /**
@@ -284,27 +635,18 @@ public class FileUtils {
     }
 
     /**
-     * 删除文件夹及其下内容
+     * 删除文件夹及其下内容，子目录并行递归删除
+     * @see DirectoryDeleter
      * @param dirFile
-     * @return
+     * @return 全部删除成功返回true
      */
     public static boolean deleteDirectory(File dirFile) {
-        boolean result = false;
-        if(dirFile != null && dirFile.isDirectory()) {
-            if(dirFile != null) {
-                for(File file: dirFile.listFiles()) {
-                    if( ! file.delete()) {
-                        file.deleteOnExit();
-                    }
-                }
-                if(dirFile.delete()) {
-                    result = true;
-                } else {
-                    dirFile.deleteOnExit();
-                }
-            }
+        if(dirFile == null || ! dirFile.isDirectory()) {
+            return false;
         }
-        return result;
+        DirectoryDeleter.Result result = DirectoryDeleter.delete(dirFile);
+        DebugLog.i(result.toString());
+        return result.isSuccess();
     }
 
     /**
@@ -312,7 +654,9 @@ public class FileUtils {
      * @param directory
      * @return 文件夹删除成功则返回true，文件夹不存在则返回false。
      * @throws IOException 如果文件夹不能被删除，则抛出异常。
+     * @deprecated 需要fork进程并轮询输出，请使用进程内并行删除的{@link DirectoryDeleter#delete(File)}
      */
+    @Deprecated
     public static boolean deleteDirectoryWithOSNative(String directory) throws IOException {
         boolean result = false;
         Process process = null;
@@ -344,6 +688,21 @@ public class FileUtils {
         return result;
     }
 
+    /**
+     * 判断是否为符号链接，遍历目录时用来避免跟随链接
+     * @param file
+     * @return
+     */
+    public static boolean isSymlink(File file) {
+        try {
+            File parent = file.getParentFile();
+            File canonicalDir = parent == null ? file : new File(parent.getCanonicalFile(), file.getName());
+            return ! canonicalDir.getCanonicalFile().equals(canonicalDir.getAbsoluteFile());
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
     /**
      * 删除文件
      * @param file
@@ -351,9 +710,12 @@ public class FileUtils {
      */
     public static boolean deleteFile(File file) {
         boolean result = false;
+        long length = file.length();
         result = file.delete();
         if( ! result)
             file.deleteOnExit();
+        else
+            DiskSpaceManager.getDefault().onDeleted(file, length);
         return result;
     }
 
@@ -444,25 +806,14 @@ public class FileUtils {
     }
 
     /**
-     * 计算文件夹大小
+     * 计算文件夹大小，并行遍历且只读取文件元数据
+     * @see DirectorySizeCalculator
      * @param directory
      * @return
      * @throws IOException
      */
     public static long getSize(File directory) throws IOException {
-
-        File[] files = directory.listFiles();
-        long size = 0;
-        for(File f: files) {
-            if(f.isDirectory())
-                size += getSize(f);
-            else {
-                FileInputStream fis = new FileInputStream(f);
-                size += fis.available();
-                fis.close();
-            }
-        }
-        return size;
+        return DirectorySizeCalculator.calculate(directory);
     }
 
     /**
@@ -470,24 +821,22 @@ public class FileUtils {
      * @return
      */
     private final static Thread stdOut(final Process p) {
-        final byte[] empty = new byte[128];
-        for(int b = 0; b < empty.length; b ++ ) {
-            empty[b] = (byte)0;
-        }
         Thread std = new Thread() {
 
             public void run() {
                 StringBuilder sb = new StringBuilder(1024);
-                byte[] buf = new byte[128];
+                ByteArrayPool pool = ByteArrayPool.getDefault();
+                byte[] buf = pool.getBuf(128);
                 BufferedInputStream bis = new BufferedInputStream(p.getInputStream());
                 try {
-                    while(bis.read(buf) != - 1) {
-                        sb.append(new String(buf).trim());
-                        System.arraycopy(empty, 0, buf, 0, buf.length);
+                    for(int len; (len = bis.read(buf)) != - 1;) {
+                        sb.append(new String(buf, 0, len).trim());
                     }
                     bis.close();
                 } catch(Exception e) {
                     DebugLog.e(String.format("%1$s", e));
+                } finally {
+                    pool.returnBuf(buf);
                 }
             }
         };
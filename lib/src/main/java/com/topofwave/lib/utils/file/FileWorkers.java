@@ -0,0 +1,53 @@
+package com.topofwave.lib.utils.file;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @describe 文件包内并行遍历、删除等任务共享的后台线程池.
+ * <p>
+ * 线程数为CPU核数(最多4个)，空闲30秒后回收，均为守护线程。提交到这里的任务不能阻塞等待其他任务，否则可能耗尽线程。
+ * </p>
+ */
+final class FileWorkers {
+
+    private static final int PARALLELISM = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static volatile ThreadPoolExecutor sExecutor;
+
+    private FileWorkers() {
+    }
+
+    static int parallelism() {
+        return PARALLELISM;
+    }
+
+    static ThreadPoolExecutor get() {
+        if(sExecutor == null) {
+            synchronized(FileWorkers.class) {
+                if(sExecutor == null) {
+                    ThreadPoolExecutor executor =
+                        new ThreadPoolExecutor(PARALLELISM, PARALLELISM, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            new ThreadFactory() {
+
+                                private final AtomicInteger count = new AtomicInteger();
+
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    Thread thread = new Thread(r, "file-worker-" + count.incrementAndGet());
+                                    thread.setDaemon(true);
+                                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                                    return thread;
+                                }
+                            });
+                    executor.allowCoreThreadTimeOut(true);
+                    sExecutor = executor;
+                }
+            }
+        }
+        return sExecutor;
+    }
+}
@@ -0,0 +1,267 @@
+package com.topofwave.lib.utils.file;
+
+import com.topofwave.lib.utils.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @describe 组提交的原子文件写入器，合并并发保存的重命名和目录fsync.
+ * <p>
+ * 每次保存先在调用者线程中写入并fsync同目录临时文件，各调用者的fsync并行进行，然后加入当前批次等待提交。
+ * 批次中第一个到达的调用者作为提交者，等上一批提交结束(以及可选的时间窗口)后关闭批次，把全部临时文件重命名为目标文件，
+ * 再对涉及的每个目录只fsync一次，使整批重命名一起持久化，最后唤醒同批次的其他调用者。
+ * 没有并发写入时不会额外等待；并发越多，上一批提交期间积累的文件越多，合并的目录fsync越多。
+ * </p>
+ * <p>
+ * 文件数据的fsync无法合并：Android 4.3(API 18)和Java都没有提供syncfs，对一个描述符fsync也不保证同一文件系统上其他文件的数据落盘，
+ * 所以每个文件仍由自己的调用者fsync一次。批次节省的只是目录fsync，以及各调用者逐个重命名、同步目录时的串行等待。
+ * </p>
+ * <p>
+ * {@link #save(byte[], String)}返回时数据已持久化(Android 5.0以下无法fsync目录，重命名本身不保证持久化)。
+ * 崩溃遗留的临时文件在之后第一次写入同一目录时清理，见{@link FileUtils#createTempSibling(File)}。
+ * </p>
+ */
+public class GroupCommitWriter {
+
+    /**
+     * 默认合并窗口：0，即只合并上一批提交期间到达的文件
+     */
+    public static final long DEFAULT_WINDOW_MILLIS = 0;
+
+    /**
+     * 默认每批最多文件数
+     */
+    public static final int DEFAULT_MAX_BATCH = 64;
+
+    private static volatile GroupCommitWriter sDefault;
+
+    private final long windowMillis;
+
+    private final int maxBatch;
+
+    private final Object lock = new Object();
+
+    private Batch current;
+
+    private boolean committing;
+
+    private final AtomicLong files = new AtomicLong();
+
+    private final AtomicLong commits = new AtomicLong();
+
+    private final AtomicLong dirSyncs = new AtomicLong();
+
+    /**
+     * 获取全局共享的写入器
+     * @return
+     */
+    public static GroupCommitWriter getDefault() {
+        if(sDefault == null) {
+            synchronized(GroupCommitWriter.class) {
+                if(sDefault == null) {
+                    sDefault = new GroupCommitWriter(DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_BATCH);
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param windowMillis 提交者在上一批完成后再额外等待其他文件加入批次的时间
+     * @param maxBatch 每批最多文件数，达到后立即提交
+     */
+    public GroupCommitWriter(long windowMillis, int maxBatch) {
+        if(windowMillis < 0 || maxBatch <= 0) {
+            throw new IllegalArgumentException("invalid window or batch size");
+        }
+        this.windowMillis = windowMillis;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * 原子保存字节数组，阻塞直到所在批次提交完成
+     * @param data
+     * @param path
+     * @throws IOException 空间不足，或写入、fsync、重命名失败
+     */
+    public void save(byte[] data, String path) throws IOException {
+        File target = new File(path);
+        FileUtils.ensureSpace(target, data.length);
+        File temp = FileUtils.createTempSibling(target);
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(temp);
+            os.write(data, 0, data.length);
+            os.getFD().sync();
+            os.close();
+        } catch(IOException e) {
+            IOUtils.closeQuietly(os);
+            temp.delete();
+            throw e;
+        }
+        Entry entry = new Entry(temp, target);
+        Batch batch;
+        boolean leader;
+        synchronized(lock) {
+            if(current == null) {
+                current = new Batch();
+                leader = true;
+            } else {
+                leader = false;
+            }
+            batch = current;
+            batch.entries.add(entry);
+            if(batch.entries.size() >= maxBatch) {
+                current = null;
+                lock.notifyAll();
+            }
+        }
+        if(leader) {
+            waitForBatch(batch);
+            try {
+                batch.commit();
+            } finally {
+                synchronized(lock) {
+                    committing = false;
+                    lock.notifyAll();
+                }
+            }
+        } else {
+            batch.await();
+        }
+        if(entry.error != null) {
+            throw entry.error;
+        }
+    }
+
+    /**
+     * 已提交的文件数
+     */
+    public long getFileCount() {
+        return files.get();
+    }
+
+    /**
+     * 已提交的批次数
+     */
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    /**
+     * 已执行的目录fsync次数，每批每个目录一次
+     */
+    public long getDirectorySyncCount() {
+        return dirSyncs.get();
+    }
+
+    /**
+     * 平均每批文件数
+     */
+    public float getAverageBatchSize() {
+        long c = commits.get();
+        return c == 0 ? 0 : (float)files.get() / c;
+    }
+
+    /**
+     * 等待上一批提交完成及合并窗口结束，然后关闭批次并占有提交权
+     */
+    private void waitForBatch(Batch batch) {
+        boolean interrupted = false;
+        synchronized(lock) {
+            while(committing) {
+                try {
+                    lock.wait();
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            long deadline = System.currentTimeMillis() + windowMillis;
+            long remaining = windowMillis;
+            while(current == batch && remaining > 0 && ! interrupted) {
+                try {
+                    lock.wait(remaining);
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if(current == batch) {
+                current = null;
+            }
+            committing = true;
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Entry {
+
+        final File temp;
+
+        final File target;
+
+        IOException error;
+
+        Entry(File temp, File target) {
+            this.temp = temp;
+            this.target = target;
+        }
+    }
+
+    private class Batch {
+
+        final List<Entry> entries = new ArrayList<Entry>();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * 批次关闭后才会调用，此时entries不再变化
+         */
+        void commit() {
+            try {
+                Set<File> dirs = new HashSet<File>();
+                for(Entry entry: entries) {
+                    try {
+                        FileUtils.commitTemp(entry.temp, entry.target);
+                        dirs.add(entry.target.getAbsoluteFile().getParentFile());
+                    } catch(IOException e) {
+                        entry.error = e;
+                    }
+                }
+                for(File dir: dirs) {
+                    FileUtils.syncDirectory(dir);
+                }
+                files.addAndGet(entries.size());
+                commits.incrementAndGet();
+                dirSyncs.addAndGet(dirs.size());
+            } finally {
+                done.countDown();
+            }
+        }
+
+        void await() {
+            boolean interrupted = false;
+            while(true) {
+                try {
+                    done.await();
+                    break;
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
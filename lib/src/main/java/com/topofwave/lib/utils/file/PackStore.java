@@ -0,0 +1,742 @@
+package com.topofwave.lib.utils.file;
+
+import com.topofwave.lib.utils.debug.DebugLog;
+import com.topofwave.lib.utils.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * @describe 日志结构的小文件打包存储.
+ * <p>
+ * 大量1~8KB的小数据不再各自占用一个文件，而是顺序追加到较大的段文件(seg-N.pack)中，省去每个文件的inode和open/close开销。
+ * 内存索引是开放寻址哈希表，只用long[]/int[]保存"键的64位哈希 -> 段号+偏移+记录长度"，不保存键字符串；
+ * 哈希相同时读取磁盘上的记录核对完整的键。读取使用FileChannel的定位读，可并发。
+ * 删除和覆盖产生的无效数据由后台压缩清理：存活比例低于阈值的旧段中的有效记录被复制到当前段，然后删除旧段。
+ * 启动时按顺序重放所有段重建索引，末尾写了一半的记录会被截断。
+ * 打开时在目录中创建标记文件{@link #MARKER_FILE}，{@link CacheTrimmer}据此跳过整个目录，不会单独删除段文件。
+ * </p>
+ * <p>
+ * 记录格式：magic(4) + 键长度(4) + 值长度(4，-1表示删除) + CRC32(4) + 键(UTF-8) + 值
+ * </p>
+ */
+public class PackStore implements Closeable {
+
+    /**
+     * 默认段文件大小上限：32MB
+     */
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * 存活数据比例低于该值的旧段会被压缩
+     */
+    public static final float COMPACT_THRESHOLD = 0.5f;
+
+    private static final int MAGIC = 0x50414B31;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int TOMBSTONE = - 1;
+
+    private static final String SEGMENT_PREFIX = "seg-";
+
+    private static final String SEGMENT_SUFFIX = ".pack";
+
+    /**
+     * 标记目录由PackStore管理
+     */
+    static final String MARKER_FILE = "packstore";
+
+    private final File dir;
+
+    private final long maxSegmentSize;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+    private final Index index = new Index();
+
+    private final AtomicBoolean compactScheduled = new AtomicBoolean();
+
+    private final Object compactLock = new Object();
+
+    private Segment active;
+
+    private boolean closed;
+
+    /**
+     * 一个段文件
+     */
+    private static class Segment {
+
+        final int id;
+
+        final File file;
+
+        final RandomAccessFile raf;
+
+        final FileChannel channel;
+
+        long size;
+
+        long liveBytes;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.size = channel.size();
+        }
+
+        void close() {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+
+    private PackStore(File dir, long maxSegmentSize) {
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * 打开(或创建)存储目录
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    public static PackStore open(File dir) throws IOException {
+        return open(dir, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * 打开(或创建)存储目录
+     * @param dir 存储目录
+     * @param maxSegmentSize 段文件大小上限，超过后新建段
+     * @return
+     * @throws IOException
+     */
+    public static PackStore open(File dir, long maxSegmentSize) throws IOException {
+        if( ! dir.isDirectory() && ! dir.mkdirs()) {
+            throw new IOException("Cannot create directory: " + dir);
+        }
+        File marker = new File(dir, MARKER_FILE);
+        if( ! marker.isFile() && ! marker.createNewFile()) {
+            throw new IOException("Cannot create marker: " + marker);
+        }
+        PackStore store = new PackStore(dir, maxSegmentSize);
+        try {
+            store.load();
+        } catch(IOException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * 写入或覆盖
+     * @param key
+     * @param value
+     * @throws IOException
+     */
+    public void put(String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        byte[] record = encode(keyBytes, value, 0, value.length);
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            long location = append(record);
+            replace(keyBytes, location, record.length);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 读取
+     * @param key
+     * @return 不存在返回null
+     * @throws IOException
+     */
+    public byte[] get(String key) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            long hash = hash(keyBytes);
+            for(int slot = index.first(hash); slot >= 0; slot = index.next(hash, slot)) {
+                byte[] record = read(index.locations[slot], index.lengths[slot]);
+                if(keyEquals(record, keyBytes)) {
+                    int valueLength = ByteBuffer.wrap(record).getInt(8);
+                    byte[] value = new byte[valueLength];
+                    System.arraycopy(record, HEADER_SIZE + keyBytes.length, value, 0, valueLength);
+                    return value;
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 是否存在
+     * @param key
+     * @return
+     * @throws IOException
+     */
+    public boolean contains(String key) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            return find(keyBytes) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 删除
+     * @param key
+     * @return 原来存在返回true
+     * @throws IOException
+     */
+    public boolean remove(String key) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            int slot = find(keyBytes);
+            if(slot < 0) {
+                return false;
+            }
+            append(encode(keyBytes, null, 0, 0));
+            segmentOf(index.locations[slot]).liveBytes -= index.lengths[slot];
+            index.delete(slot);
+            maybeCompact();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 条目数
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 有效记录占用的字节数
+     */
+    public long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            long live = 0;
+            for(Segment segment: segments.values()) {
+                live += segment.liveBytes;
+            }
+            return live;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 所有段文件的总字节数
+     */
+    public long getTotalBytes() {
+        lock.readLock().lock();
+        try {
+            long total = 0;
+            for(Segment segment: segments.values()) {
+                total += segment.size;
+            }
+            return total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 将当前段刷新到磁盘
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            active.channel.force(false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 在{@link FileWorkers}线程上压缩存活比例过低的旧段
+     */
+    public void compactInBackground() {
+        if( ! compactScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        FileWorkers.get().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                compactScheduled.set(false);
+                try {
+                    compact();
+                } catch(IOException e) {
+                    DebugLog.e("PackStore compaction failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 同步压缩存活比例过低的旧段
+     * @return 回收的字节数
+     * @throws IOException
+     */
+    public long compact() throws IOException {
+        synchronized(compactLock) {
+            long reclaimed = 0;
+            Segment victim;
+            while((victim = nextVictim()) != null) {
+                reclaimed += compactSegment(victim);
+            }
+            return reclaimed;
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            for(Segment segment: segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if(closed) {
+            throw new IOException("PackStore is closed");
+        }
+    }
+
+    private void load() throws IOException {
+        File[] files = dir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        List<Integer> ids = new ArrayList<Integer>();
+        if(files != null) {
+            for(File file: files) {
+                String name = file.getName();
+                try {
+                    ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch(NumberFormatException e) {
+                    DebugLog.w("Ignore unknown file " + name);
+                }
+            }
+        }
+        Collections.sort(ids);
+        for(int id: ids) {
+            Segment segment = new Segment(id, segmentFile(id));
+            segments.put(id, segment);
+            replay(segment);
+        }
+        if(segments.isEmpty()) {
+            newSegment(1);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    /**
+     * 顺序读取段中的记录重建索引，遇到损坏的记录时截断
+     */
+    private void replay(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        while(position + HEADER_SIZE <= segment.size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            int magic = header.getInt(0);
+            int keyLength = header.getInt(4);
+            int valueLength = header.getInt(8);
+            long length = HEADER_SIZE + (long)keyLength + Math.max(valueLength, 0);
+            if(magic != MAGIC || keyLength < 0 || valueLength < TOMBSTONE || position + length > segment.size) {
+                break;
+            }
+            byte[] record = new byte[(int)length];
+            readFully(segment.channel, ByteBuffer.wrap(record), position);
+            if( ! checkCrc(record)) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            System.arraycopy(record, HEADER_SIZE, keyBytes, 0, keyLength);
+            long location = location(segment.id, position);
+            if(valueLength == TOMBSTONE) {
+                int slot = find(keyBytes);
+                if(slot >= 0) {
+                    segmentOf(index.locations[slot]).liveBytes -= index.lengths[slot];
+                    index.delete(slot);
+                }
+            } else {
+                replace(keyBytes, location, (int)length);
+            }
+            position += length;
+        }
+        if(position < segment.size) {
+            DebugLog.w("Truncate " + segment.file + " at " + position + " of " + segment.size);
+            segment.channel.truncate(position);
+            segment.size = position;
+        }
+    }
+
+    /**
+     * 找到一个存活比例低于阈值的旧段
+     */
+    private Segment nextVictim() {
+        lock.readLock().lock();
+        try {
+            return closed ? null : findVictim();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 调用方须持有锁
+     */
+    private Segment findVictim() {
+        for(Segment segment: segments.values()) {
+            if(segment != active && segment.liveBytes < segment.size * COMPACT_THRESHOLD) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 将一个旧段中的有效记录复制到当前段后删除它。旧段不再被写入，可以不加锁顺序读取
+     */
+    private long compactSegment(Segment segment) throws IOException {
+        boolean oldest;
+        lock.readLock().lock();
+        try {
+            oldest = segments.firstKey() == segment.id;
+        } finally {
+            lock.readLock().unlock();
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        while(position + HEADER_SIZE <= segment.size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            int keyLength = header.getInt(4);
+            int valueLength = header.getInt(8);
+            int length = HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+            byte[] record = new byte[length];
+            readFully(segment.channel, ByteBuffer.wrap(record), position);
+            byte[] keyBytes = new byte[keyLength];
+            System.arraycopy(record, HEADER_SIZE, keyBytes, 0, keyLength);
+            long location = location(segment.id, position);
+            lock.writeLock().lock();
+            try {
+                if(closed) {
+                    return 0;
+                }
+                int slot = find(keyBytes);
+                if(valueLength == TOMBSTONE) {
+                    // 更早的段中可能还有该键的旧记录，需要保留删除标记；键已被重新写入时新记录会覆盖旧记录
+                    if( ! oldest && slot < 0) {
+                        append(record);
+                    }
+                } else if(slot >= 0 && index.locations[slot] == location) {
+                    long newLocation = append(record);
+                    segment.liveBytes -= length;
+                    active.liveBytes += length;
+                    index.locations[slot] = newLocation;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            position += length;
+        }
+        lock.writeLock().lock();
+        try {
+            if(closed) {
+                return 0;
+            }
+            active.channel.force(false);
+            segments.remove(segment.id);
+            segment.close();
+            if( ! segment.file.delete()) {
+                DebugLog.w("Cannot delete " + segment.file);
+            }
+            return segment.size;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 有需要压缩的旧段时安排后台压缩，调用方须持有锁
+     */
+    private void maybeCompact() {
+        if(findVictim() != null) {
+            compactInBackground();
+        }
+    }
+
+    /**
+     * 追加记录到当前段，必要时新建段。调用方须持有写锁
+     * @return 记录位置
+     */
+    private long append(byte[] record) throws IOException {
+        if(active.size > 0 && active.size + record.length > maxSegmentSize) {
+            newSegment(active.id + 1);
+            maybeCompact();
+        }
+        long position = active.size;
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while(buffer.hasRemaining()) {
+            active.channel.write(buffer, position + buffer.position());
+        }
+        active.size += record.length;
+        DirectorySizeCalculator.onFileChanged(active.file);
+        return location(active.id, position);
+    }
+
+    private void newSegment(int id) throws IOException {
+        Segment segment = new Segment(id, segmentFile(id));
+        segments.put(id, segment);
+        active = segment;
+    }
+
+    /**
+     * 更新键的位置，调用方须持有写锁
+     */
+    private void replace(byte[] keyBytes, long location, int length) throws IOException {
+        int slot = find(keyBytes);
+        if(slot >= 0) {
+            segmentOf(index.locations[slot]).liveBytes -= index.lengths[slot];
+            index.locations[slot] = location;
+            index.lengths[slot] = length;
+        } else {
+            index.insert(hash(keyBytes), location, length);
+        }
+        segmentOf(location).liveBytes += length;
+    }
+
+    /**
+     * 查找键所在的槽位，哈希相同时读取磁盘核对键
+     * @return 不存在返回-1
+     */
+    private int find(byte[] keyBytes) throws IOException {
+        long hash = hash(keyBytes);
+        for(int slot = index.first(hash); slot >= 0; slot = index.next(hash, slot)) {
+            byte[] head = read(index.locations[slot], HEADER_SIZE + keyBytes.length);
+            if(keyEquals(head, keyBytes)) {
+                return slot;
+            }
+        }
+        return - 1;
+    }
+
+    private byte[] read(long location, int length) throws IOException {
+        Segment segment = segmentOf(location);
+        byte[] data = new byte[length];
+        readFully(segment.channel, ByteBuffer.wrap(data), offsetOf(location));
+        return data;
+    }
+
+    private Segment segmentOf(long location) {
+        return segments.get((int)(location >>> 40));
+    }
+
+    private File segmentFile(int id) {
+        return new File(dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+    }
+
+    private static long location(int segmentId, long offset) {
+        return ((long)segmentId << 40) | offset;
+    }
+
+    private static long offsetOf(long location) {
+        return location & ((1L << 40) - 1);
+    }
+
+    private static byte[] encode(byte[] keyBytes, byte[] value, int offset, int length) {
+        int valueLength = value == null ? 0 : length;
+        byte[] record = new byte[HEADER_SIZE + keyBytes.length + valueLength];
+        System.arraycopy(keyBytes, 0, record, HEADER_SIZE, keyBytes.length);
+        if(value != null) {
+            System.arraycopy(value, offset, record, HEADER_SIZE + keyBytes.length, length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER_SIZE, record.length - HEADER_SIZE);
+        ByteBuffer.wrap(record).putInt(MAGIC).putInt(keyBytes.length).putInt(value == null ? TOMBSTONE : length)
+            .putInt((int)crc.getValue());
+        return record;
+    }
+
+    private static boolean checkCrc(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER_SIZE, record.length - HEADER_SIZE);
+        return ByteBuffer.wrap(record).getInt(12) == (int)crc.getValue();
+    }
+
+    private static boolean keyEquals(byte[] record, byte[] keyBytes) {
+        if(record.length < HEADER_SIZE + keyBytes.length || ByteBuffer.wrap(record).getInt(4) != keyBytes.length) {
+            return false;
+        }
+        for(int i = 0; i < keyBytes.length; i ++ ) {
+            if(record[HEADER_SIZE + i] != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 64位FNV-1a哈希
+     */
+    private static long hash(byte[] keyBytes) {
+        long h = 0xcbf29ce484222325L;
+        for(byte b: keyBytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * 开放寻址哈希表：hashes保存键哈希，locations保存段号<<40|偏移，lengths保存记录长度
+     */
+    private static class Index {
+
+        static final long EMPTY = - 1;
+
+        static final long DELETED = - 2;
+
+        long[] hashes = new long[16];
+
+        long[] locations = newLocations(16);
+
+        int[] lengths = new int[16];
+
+        int size;
+
+        /**
+         * 已占用的槽位数，含删除标记
+         */
+        int used;
+
+        int first(long hash) {
+            return next(hash, ((int)(hash ^ (hash >>> 32)) & (hashes.length - 1)) - 1);
+        }
+
+        /**
+         * 从slot之后查找下一个哈希相同的有效槽位
+         */
+        int next(long hash, int slot) {
+            int mask = hashes.length - 1;
+            int i = (slot + 1) & mask;
+            while(locations[i] != EMPTY) {
+                if(locations[i] >= 0 && hashes[i] == hash) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return - 1;
+        }
+
+        void insert(long hash, long location, int length) {
+            if((used + 1) * 4 >= hashes.length * 3) {
+                rehash(size * 2 >= hashes.length / 2 ? hashes.length * 2 : hashes.length);
+            }
+            int mask = hashes.length - 1;
+            int i = (int)(hash ^ (hash >>> 32)) & mask;
+            while(locations[i] >= 0) {
+                i = (i + 1) & mask;
+            }
+            if(locations[i] == EMPTY) {
+                used ++ ;
+            }
+            hashes[i] = hash;
+            locations[i] = location;
+            lengths[i] = length;
+            size ++ ;
+        }
+
+        void delete(int slot) {
+            locations[slot] = DELETED;
+            size -- ;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldHashes = hashes;
+            long[] oldLocations = locations;
+            int[] oldLengths = lengths;
+            hashes = new long[capacity];
+            locations = newLocations(capacity);
+            lengths = new int[capacity];
+            size = 0;
+            used = 0;
+            for(int i = 0; i < oldHashes.length; i ++ ) {
+                if(oldLocations[i] >= 0) {
+                    insert(oldHashes[i], oldLocations[i], oldLengths[i]);
+                }
+            }
+        }
+
+        private static long[] newLocations(int capacity) {
+            long[] array = new long[capacity];
+            for(int i = 0; i < capacity; i ++ ) {
+                array[i] = EMPTY;
+            }
+            return array;
+        }
+    }
+}
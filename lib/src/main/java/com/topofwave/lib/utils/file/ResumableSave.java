@@ -0,0 +1,360 @@
+package com.topofwave.lib.utils.file;
+
+import android.os.CancellationSignal;
+
+import com.topofwave.lib.utils.debug.DebugLog;
+import com.topofwave.lib.utils.io.ByteArrayPool;
+import com.topofwave.lib.utils.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * @describe 可断点续传的保存.
+ * <p>
+ * 数据先写入目标文件旁的path.part，每写入{@link #DEFAULT_CHECKPOINT_INTERVAL}字节fsync一次并原子更新检查点path.ckpt，
+ * 检查点记录已持久化的偏移量、这部分数据的CRC32以及资源标识(如ETag)。中断后再次{@link #open(String, String)}，
+ * 从检查点偏移量继续追加(下载时用Range: bytes=offset-请求剩余部分)，检查点之后写入的未确认数据会被截掉。
+ * {@link #finish(long)}重新读取整个.part校验CRC32，一致后重命名为目标文件并删除检查点。
+ * </p>
+ *
+ * <pre>
+ * ResumableSave save = ResumableSave.open(path, etag);
+ * connection.setRequestProperty("Range", "bytes=" + save.getOffset() + "-");
+ * save.append(connection.getInputStream(), null, null);
+ * save.finish(totalLength);
+ * </pre>
+ */
+public class ResumableSave implements Closeable {
+
+    /**
+     * 默认检查点间隔：1MB
+     */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 1024 * 1024;
+
+    static final String PART_SUFFIX = ".part";
+
+    static final String CHECKPOINT_SUFFIX = ".ckpt";
+
+    private static final int CHECKPOINT_MAGIC = 0x52534B31;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for(int n = 0; n < 256; n ++ ) {
+            int c = n;
+            for(int k = 0; k < 8; k ++ ) {
+                c = (c & 1) != 0 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;
+            }
+            CRC_TABLE[n] = c;
+        }
+    }
+
+    private final File target;
+
+    private final File part;
+
+    private final File checkpoint;
+
+    private final String validator;
+
+    private final int checkpointInterval;
+
+    private final RandomAccessFile raf;
+
+    /**
+     * 已写入.part的字节数
+     */
+    private long offset;
+
+    /**
+     * 已写入数据的CRC32
+     */
+    private int crc;
+
+    /**
+     * 最后一次检查点的偏移量
+     */
+    private long committedOffset;
+
+    private boolean resumed;
+
+    private ResumableSave(File target, String validator, int checkpointInterval) throws IOException {
+        this.target = target;
+        this.part = new File(target.getPath() + PART_SUFFIX);
+        this.checkpoint = new File(target.getPath() + CHECKPOINT_SUFFIX);
+        this.validator = validator == null ? "" : validator;
+        this.checkpointInterval = checkpointInterval;
+        File dir = target.getAbsoluteFile().getParentFile();
+        if(dir != null && ! dir.exists()) {
+            dir.mkdirs();
+        }
+        this.raf = new RandomAccessFile(part, "rw");
+    }
+
+    /**
+     * 打开保存，存在有效检查点时从检查点继续
+     * @param path 目标路径
+     * @param validator 资源标识(如ETag或Last-Modified)，与检查点中记录的不同时从头开始，可为null
+     * @return
+     * @throws IOException
+     */
+    public static ResumableSave open(String path, String validator) throws IOException {
+        return open(path, validator, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * 打开保存，存在有效检查点时从检查点继续
+     * @param path 目标路径
+     * @param validator 资源标识，可为null
+     * @param checkpointInterval 检查点间隔字节数
+     * @return
+     * @throws IOException
+     */
+    public static ResumableSave open(String path, String validator, int checkpointInterval) throws IOException {
+        if(checkpointInterval <= 0) {
+            throw new IllegalArgumentException("checkpointInterval <= 0");
+        }
+        ResumableSave save = new ResumableSave(new File(path), validator, checkpointInterval);
+        try {
+            save.restore();
+        } catch(IOException e) {
+            save.close();
+            throw e;
+        }
+        return save;
+    }
+
+    /**
+     * 获取已有检查点的偏移量，不打开文件
+     * @param path 目标路径
+     * @return 没有检查点返回0
+     */
+    public static long getCheckpointOffset(String path) {
+        try {
+            Checkpoint checkpoint = readCheckpoint(new File(path + CHECKPOINT_SUFFIX));
+            return checkpoint == null ? 0 : checkpoint.offset;
+        } catch(IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 下一个字节应写入的偏移量，续传时即Range的起始位置
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * 是否从之前的检查点继续
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * 目前为止写入数据的CRC32，与java.util.zip.CRC32结果相同
+     */
+    public long getChecksum() {
+        return crc & 0xffffffffL;
+    }
+
+    /**
+     * 追加输入流中的全部数据，不关闭输入流。输入流中断时已写入部分按检查点保留，抛出的异常由调用方决定是否重试
+     * @param is 从{@link #getOffset()}开始的数据
+     * @param listener 进度回调(current为已写入字节数，total为-1)，可为null
+     * @param signal 取消信号，可为null。取消时先写检查点再抛出OperationCanceledException
+     * @return 本次写入的字节数
+     * @throws IOException
+     */
+    public long append(InputStream is, FileUtils.ProgressListener listener, CancellationSignal signal) throws IOException {
+        ByteArrayPool pool = ByteArrayPool.getDefault();
+        byte[] buf = pool.getBuf(32 * 1024);
+        long start = offset;
+        try {
+            int len;
+            while(true) {
+                if(signal != null && signal.isCanceled()) {
+                    writeCheckpoint();
+                    signal.throwIfCanceled();
+                }
+                len = is.read(buf);
+                if(len == - 1) {
+                    break;
+                }
+                raf.write(buf, 0, len);
+                crc = updateCrc(crc, buf, 0, len);
+                offset += len;
+                if(offset - committedOffset >= checkpointInterval) {
+                    writeCheckpoint();
+                }
+                if(listener != null) {
+                    listener.onProgress(offset, - 1);
+                }
+            }
+            writeCheckpoint();
+        } catch(IOException e) {
+            // 尽量保留已收到的数据，下次从这里继续
+            try {
+                writeCheckpoint();
+            } catch(IOException ignored) {
+            }
+            throw e;
+        } finally {
+            pool.returnBuf(buf);
+            DirectorySizeCalculator.onFileChanged(part);
+        }
+        return offset - start;
+    }
+
+    /**
+     * 写入检查点：先fsync数据，再原子替换检查点文件
+     * @throws IOException
+     */
+    public void writeCheckpoint() throws IOException {
+        if(offset == committedOffset && checkpoint.exists()) {
+            return;
+        }
+        raf.getFD().sync();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(CHECKPOINT_MAGIC);
+        dos.writeLong(offset);
+        dos.writeInt(crc);
+        dos.writeUTF(validator);
+        dos.close();
+        FileUtils.saveAtomic(bos.toByteArray(), checkpoint.getPath());
+        committedOffset = offset;
+    }
+
+    /**
+     * 校验并完成保存：重新计算.part的CRC32，与写入时累计的一致后重命名为目标文件，删除检查点
+     * @param expectedLength 期望的总长度，-1表示不检查
+     * @return 目标文件
+     * @throws IOException 长度不符(可继续append后再调用)或校验失败(已删除.part和检查点，需要重新开始)
+     */
+    public File finish(long expectedLength) throws IOException {
+        if(expectedLength >= 0 && offset != expectedLength) {
+            writeCheckpoint();
+            throw new IOException("Incomplete: " + offset + " of " + expectedLength + " bytes");
+        }
+        raf.getFD().sync();
+        raf.close();
+        int actual = checksum(part, offset);
+        if(actual != crc) {
+            discard();
+            throw new IOException("Checksum mismatch for " + target + ": expected " + Integer.toHexString(crc) + ", got "
+                + Integer.toHexString(actual));
+        }
+        FileUtils.commitTemp(part, target);
+        checkpoint.delete();
+        return target;
+    }
+
+    /**
+     * 放弃保存，删除.part和检查点
+     */
+    public void discard() {
+        close();
+        part.delete();
+        checkpoint.delete();
+    }
+
+    /**
+     * 关闭文件，保留.part和检查点以便下次继续。调用前应先{@link #writeCheckpoint()}
+     */
+    @Override
+    public void close() {
+        IOUtils.closeQuietly(raf);
+    }
+
+    private void restore() throws IOException {
+        Checkpoint saved = null;
+        try {
+            saved = readCheckpoint(checkpoint);
+        } catch(IOException e) {
+            DebugLog.w("Ignore corrupt checkpoint " + checkpoint + ": " + e.getMessage());
+        }
+        if(saved != null && saved.validator.equals(validator) && saved.offset <= raf.length()) {
+            offset = saved.offset;
+            crc = saved.crc;
+            resumed = offset > 0;
+        } else {
+            offset = 0;
+            crc = 0;
+            checkpoint.delete();
+        }
+        committedOffset = offset;
+        // 检查点之后的数据没有确认过，丢弃
+        raf.setLength(offset);
+        raf.seek(offset);
+    }
+
+    private static Checkpoint readCheckpoint(File file) throws IOException {
+        if( ! file.exists()) {
+            return null;
+        }
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(IOUtils.toByteArray(file, 4096)));
+        if(dis.readInt() != CHECKPOINT_MAGIC) {
+            throw new IOException("bad checkpoint magic");
+        }
+        long offset = dis.readLong();
+        int crc = dis.readInt();
+        String validator = dis.readUTF();
+        return new Checkpoint(offset, crc, validator);
+    }
+
+    private static int checksum(File file, long length) throws IOException {
+        ByteArrayPool pool = ByteArrayPool.getDefault();
+        byte[] buf = pool.getBuf(64 * 1024);
+        InputStream is = new FileInputStream(file);
+        try {
+            int crc = 0;
+            long remaining = length;
+            int len;
+            while(remaining > 0 && (len = is.read(buf, 0, (int)Math.min(buf.length, remaining))) != - 1) {
+                crc = updateCrc(crc, buf, 0, len);
+                remaining -= len;
+            }
+            return crc;
+        } finally {
+            pool.returnBuf(buf);
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * 从已有的CRC32值继续计算，java.util.zip.CRC32不能从保存的值恢复
+     */
+    static int updateCrc(int crc, byte[] b, int off, int len) {
+        int c = ~ crc;
+        for(int i = off; i < off + len; i ++ ) {
+            c = CRC_TABLE[(c ^ b[i]) & 0xff] ^ (c >>> 8);
+        }
+        return ~ c;
+    }
+
+    private static class Checkpoint {
+
+        final long offset;
+
+        final int crc;
+
+        final String validator;
+
+        Checkpoint(long offset, int crc, String validator) {
+            this.offset = offset;
+            this.crc = crc;
+            this.validator = validator;
+        }
+    }
+}
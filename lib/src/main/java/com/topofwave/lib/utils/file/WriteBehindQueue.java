@@ -0,0 +1,420 @@
+package com.topofwave.lib.utils.file;
+
+import com.topofwave.lib.utils.debug.DebugLog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @describe 异步写回队列，代替在主线程直接调用FileUtils.save(byte[], String).
+ * <p>
+ * 写入请求先放入内存队列并立即返回，由单个后台I/O线程分批写入磁盘。同一路径在写入前被多次提交时只保留最新数据。
+ * 队列有字节数和条目数上限，超出时{@link #write(String, byte[])}阻塞等待(背压)，{@link #tryWrite(String, byte[])}直接返回false。
+ * {@link #flush()}等待调用前提交的所有数据写完。单个条目写入失败(包括抛出RuntimeException)只计入失败数，不影响其他条目。
+ * </p>
+ */
+public class WriteBehindQueue {
+
+    /**
+     * 默认最多积压的字节数：4MB
+     */
+    public static final long DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * 默认最多积压的条目数
+     */
+    public static final int DEFAULT_MAX_PENDING_ENTRIES = 1024;
+
+    /**
+     * 每批最多写入的条目数
+     */
+    private static final int BATCH_SIZE = 32;
+
+    private static volatile WriteBehindQueue sDefault;
+
+    private final long maxPendingBytes;
+
+    private final int maxPendingEntries;
+
+    private final boolean atomic;
+
+    private final Object lock = new Object();
+
+    /**
+     * 路径 -> 待写条目，按首次提交顺序排列
+     */
+    private final LinkedHashMap<String, Entry> pending = new LinkedHashMap<String, Entry>();
+
+    private List<Entry> inFlight = new ArrayList<Entry>();
+
+    private long pendingBytes;
+
+    private long nextSeq = 1;
+
+    private Thread writer;
+
+    private boolean closed;
+
+    private long written;
+
+    private long coalesced;
+
+    private long failed;
+
+    private long totalLatencyMillis;
+
+    private long maxLatencyMillis;
+
+    private static class Entry {
+
+        final String path;
+
+        /**
+         * 首次进入队列时的序号，合并后保持不变，保证队列按序号有序
+         */
+        final long seq;
+
+        byte[] data;
+
+        long enqueueTime;
+
+        Entry(String path, long seq, byte[] data, long enqueueTime) {
+            this.path = path;
+            this.seq = seq;
+            this.data = data;
+            this.enqueueTime = enqueueTime;
+        }
+    }
+
+    /**
+     * 获取全局共享的队列，直接写入目标文件
+     * @return
+     */
+    public static WriteBehindQueue getDefault() {
+        if(sDefault == null) {
+            synchronized(WriteBehindQueue.class) {
+                if(sDefault == null) {
+                    sDefault = new WriteBehindQueue(DEFAULT_MAX_PENDING_BYTES, DEFAULT_MAX_PENDING_ENTRIES, false);
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param maxPendingBytes 最多积压的字节数
+     * @param maxPendingEntries 最多积压的条目数
+     * @param atomic true时使用{@link FileUtils#saveAtomic(byte[], String)}写入
+     */
+    public WriteBehindQueue(long maxPendingBytes, int maxPendingEntries, boolean atomic) {
+        if(maxPendingBytes <= 0 || maxPendingEntries <= 0) {
+            throw new IllegalArgumentException("invalid backlog limits");
+        }
+        this.maxPendingBytes = maxPendingBytes;
+        this.maxPendingEntries = maxPendingEntries;
+        this.atomic = atomic;
+    }
+
+    /**
+     * 提交写入，队列已满时阻塞等待。调用后不要再修改data
+     * @param path
+     * @param data
+     * @throws InterruptedException
+     */
+    public void write(String path, byte[] data) throws InterruptedException {
+        synchronized(lock) {
+            while( ! offerLocked(path, data)) {
+                lock.wait();
+            }
+        }
+    }
+
+    /**
+     * 提交写入，队列已满时不等待
+     * @param path
+     * @param data
+     * @return 已放入队列返回true
+     */
+    public boolean tryWrite(String path, byte[] data) {
+        synchronized(lock) {
+            return offerLocked(path, data);
+        }
+    }
+
+    /**
+     * 获取尚未写入磁盘的最新数据，用于读到自己刚提交的写入
+     * @param path
+     * @return 没有待写数据时返回null
+     */
+    public byte[] peek(String path) {
+        synchronized(lock) {
+            Entry entry = pending.get(path);
+            if(entry != null) {
+                return entry.data;
+            }
+            for(int i = inFlight.size() - 1; i >= 0; i -- ) {
+                if(inFlight.get(i).path.equals(path)) {
+                    return inFlight.get(i).data;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 等待调用前提交的所有数据写完
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        await(0);
+    }
+
+    /**
+     * 等待调用前提交的所有数据写完
+     * @param timeoutMillis 超时时间，0表示一直等待
+     * @return 在超时前写完返回true
+     * @throws InterruptedException
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        synchronized(lock) {
+            long target = nextSeq - 1;
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while(lowestUnwrittenSeq() <= target) {
+                if(timeoutMillis <= 0) {
+                    lock.wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if(remaining <= 0) {
+                        return false;
+                    }
+                    lock.wait(remaining);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 写完已提交的数据后停止后台线程，之后的提交会被拒绝
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        synchronized(lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        flush();
+    }
+
+    /**
+     * 当前积压的条目数(含正在写入的批次)
+     */
+    public int getQueueDepth() {
+        synchronized(lock) {
+            return pending.size() + inFlight.size();
+        }
+    }
+
+    /**
+     * 当前积压的字节数(不含正在写入的批次)
+     */
+    public long getPendingBytes() {
+        synchronized(lock) {
+            return pendingBytes;
+        }
+    }
+
+    /**
+     * 已写入的条目数
+     */
+    public long getWrittenCount() {
+        synchronized(lock) {
+            return written;
+        }
+    }
+
+    /**
+     * 因同一路径被再次提交而省去的写入次数
+     */
+    public long getCoalescedCount() {
+        synchronized(lock) {
+            return coalesced;
+        }
+    }
+
+    /**
+     * 写入失败的条目数
+     */
+    public long getFailedCount() {
+        synchronized(lock) {
+            return failed;
+        }
+    }
+
+    /**
+     * 从提交到写完的平均延迟(毫秒)
+     */
+    public long getAverageLatencyMillis() {
+        synchronized(lock) {
+            long count = written + failed;
+            return count == 0 ? 0 : totalLatencyMillis / count;
+        }
+    }
+
+    /**
+     * 从提交到写完的最大延迟(毫秒)
+     */
+    public long getMaxLatencyMillis() {
+        synchronized(lock) {
+            return maxLatencyMillis;
+        }
+    }
+
+    private boolean offerLocked(String path, byte[] data) {
+        if(path == null || data == null) {
+            throw new IllegalArgumentException("path or data is null");
+        }
+        if(closed) {
+            throw new IllegalStateException("WriteBehindQueue is closed");
+        }
+        Entry entry = pending.get(path);
+        long now = System.currentTimeMillis();
+        if(entry != null) {
+            long delta = data.length - entry.data.length;
+            if(delta > 0 && pending.size() > 1 && pendingBytes + delta > maxPendingBytes) {
+                return false;
+            }
+            pendingBytes += delta;
+            entry.data = data;
+            entry.enqueueTime = now;
+            nextSeq ++ ;
+            coalesced ++ ;
+            return true;
+        }
+        if(pending.size() >= maxPendingEntries || ( ! pending.isEmpty() && pendingBytes + data.length > maxPendingBytes)) {
+            return false;
+        }
+        pending.put(path, new Entry(path, nextSeq ++ , data, now));
+        pendingBytes += data.length;
+        ensureWriterLocked();
+        lock.notifyAll();
+        return true;
+    }
+
+    /**
+     * 尚未写完的最小序号，队列为空时为nextSeq
+     */
+    private long lowestUnwrittenSeq() {
+        if( ! inFlight.isEmpty()) {
+            return inFlight.get(0).seq;
+        }
+        if( ! pending.isEmpty()) {
+            return pending.values().iterator().next().seq;
+        }
+        return nextSeq;
+    }
+
+    private void ensureWriterLocked() {
+        if(writer != null) {
+            return;
+        }
+        writer = new Thread("write-behind") {
+
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void drain() {
+        try {
+            while(true) {
+                List<Entry> batch;
+                synchronized(lock) {
+                    while(pending.isEmpty()) {
+                        if(closed) {
+                            return;
+                        }
+                        try {
+                            lock.wait();
+                        } catch(InterruptedException e) {
+                            return;
+                        }
+                    }
+                    batch = new ArrayList<Entry>(Math.min(BATCH_SIZE, pending.size()));
+                    Iterator<Map.Entry<String, Entry>> it = pending.entrySet().iterator();
+                    while(it.hasNext() && batch.size() < BATCH_SIZE) {
+                        Entry entry = it.next().getValue();
+                        it.remove();
+                        pendingBytes -= entry.data.length;
+                        batch.add(entry);
+                    }
+                    inFlight = batch;
+                    // 释放了积压空间
+                    lock.notifyAll();
+                }
+                int failures = 0;
+                for(Entry entry: batch) {
+                    try {
+                        save(entry.path, entry.data);
+                    } catch(IOException e) {
+                        failures ++ ;
+                        DebugLog.e("write-behind failed: " + entry.path, e);
+                    } catch(RuntimeException e) {
+                        // 如SecurityException，不能让写线程退出
+                        failures ++ ;
+                        DebugLog.e("write-behind failed: " + entry.path, e);
+                    }
+                }
+                synchronized(lock) {
+                    finishBatchLocked(batch, failures);
+                }
+            }
+        } finally {
+            synchronized(lock) {
+                if( ! inFlight.isEmpty()) {
+                    // 因Error等异常退出，未完成的批次计为失败，否则flush会一直等待
+                    finishBatchLocked(inFlight, inFlight.size());
+                }
+                writer = null;
+                if( ! pending.isEmpty()) {
+                    ensureWriterLocked();
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 写入一个条目，在后台线程中调用
+     */
+    void save(String path, byte[] data) throws IOException {
+        if(atomic) {
+            FileUtils.saveAtomic(data, path);
+        } else {
+            FileUtils.save(data, path);
+        }
+    }
+
+    private void finishBatchLocked(List<Entry> batch, int failures) {
+        long now = System.currentTimeMillis();
+        for(Entry entry: batch) {
+            long latency = now - entry.enqueueTime;
+            totalLatencyMillis += latency;
+            if(latency > maxLatencyMillis) {
+                maxLatencyMillis = latency;
+            }
+        }
+        written += batch.size() - failures;
+        failed += failures;
+        inFlight = new ArrayList<Entry>();
+        lock.notifyAll();
+    }
+}
@@ -0,0 +1,196 @@
+package com.topofwave.lib.utils.io;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @describe 按尺寸分级的byte[]缓冲池，供IOUtils、FileUtils等流读写循环复用，减少频繁分配带来的GC压力.
+ * <p>
+ * 缓冲区按2的幂分级(默认1KB~64KB)，{@link #getBuf(int)}返回长度不小于请求大小的数组，用完后通过{@link #returnBuf(byte[])}归还。
+ * 超出最大级别的请求直接分配，不进入池中。线程安全。
+ * </p>
+ */
+public class ByteArrayPool {
+
+    /**
+     * 最小级别：1KB
+     */
+    public static final int MIN_BUF_SIZE = 1024;
+
+    /**
+     * 默认最大级别：64KB
+     */
+    public static final int DEFAULT_MAX_BUF_SIZE = 64 * 1024;
+
+    /**
+     * 默认每个级别最多缓存的缓冲区个数
+     */
+    public static final int DEFAULT_MAX_BUFS_PER_CLASS = 8;
+
+    /**
+     * 默认池中最多缓存的总字节数：512KB
+     */
+    public static final long DEFAULT_MAX_POOL_BYTES = 512 * 1024;
+
+    private static volatile ByteArrayPool sDefault;
+
+    private final int maxBufSize;
+
+    private final int maxBufsPerClass;
+
+    private final long maxPoolBytes;
+
+    private final ArrayDeque<byte[]>[] classes;
+
+    private long pooledBytes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong discardCount = new AtomicLong();
+
+    /**
+     * 获取全局共享的缓冲池
+     * @return
+     */
+    public static ByteArrayPool getDefault() {
+        if(sDefault == null) {
+            synchronized(ByteArrayPool.class) {
+                if(sDefault == null) {
+                    sDefault = new ByteArrayPool(DEFAULT_MAX_BUF_SIZE, DEFAULT_MAX_BUFS_PER_CLASS, DEFAULT_MAX_POOL_BYTES);
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param maxBufSize 池化的最大缓冲区大小，向上取整为2的幂，不小于{@link #MIN_BUF_SIZE}
+     * @param maxBufsPerClass 每个级别最多缓存的缓冲区个数
+     * @param maxPoolBytes 池中最多缓存的总字节数
+     */
+    @SuppressWarnings("unchecked")
+    public ByteArrayPool(int maxBufSize, int maxBufsPerClass, long maxPoolBytes) {
+        if(maxBufSize <= 0 || maxBufsPerClass < 0 || maxPoolBytes < 0) {
+            throw new IllegalArgumentException("invalid pool caps");
+        }
+        this.maxBufSize = classSize(Math.max(maxBufSize, MIN_BUF_SIZE));
+        this.maxBufsPerClass = maxBufsPerClass;
+        this.maxPoolBytes = maxPoolBytes;
+        int count = classIndex(this.maxBufSize) + 1;
+        this.classes = new ArrayDeque[count];
+        for(int i = 0; i < count; i ++ ) {
+            classes[i] = new ArrayDeque<byte[]>();
+        }
+    }
+
+    /**
+     * 借出一个长度不小于size的缓冲区，内容未清零
+     * @param size 最小长度
+     * @return
+     */
+    public byte[] getBuf(int size) {
+        if(size < 0) {
+            throw new IllegalArgumentException("size < 0");
+        }
+        if(size > maxBufSize) {
+            missCount.incrementAndGet();
+            return new byte[size];
+        }
+        int len = classSize(size);
+        ArrayDeque<byte[]> deque = classes[classIndex(len)];
+        byte[] buf;
+        synchronized(this) {
+            buf = deque.pollLast();
+            if(buf != null) {
+                pooledBytes -= buf.length;
+            }
+        }
+        if(buf != null) {
+            hitCount.incrementAndGet();
+            return buf;
+        }
+        missCount.incrementAndGet();
+        return new byte[len];
+    }
+
+    /**
+     * 归还缓冲区。非本池级别尺寸的数组或池已满时直接丢弃
+     * @param buf
+     */
+    public void returnBuf(byte[] buf) {
+        if(buf == null) {
+            return;
+        }
+        int len = buf.length;
+        if(len < MIN_BUF_SIZE || len > maxBufSize || (len & (len - 1)) != 0) {
+            discardCount.incrementAndGet();
+            return;
+        }
+        ArrayDeque<byte[]> deque = classes[classIndex(len)];
+        synchronized(this) {
+            if(deque.size() < maxBufsPerClass && pooledBytes + len <= maxPoolBytes) {
+                deque.addLast(buf);
+                pooledBytes += len;
+                return;
+            }
+        }
+        discardCount.incrementAndGet();
+    }
+
+    /**
+     * 清空池中缓存的缓冲区
+     */
+    public synchronized void clear() {
+        for(ArrayDeque<byte[]> deque: classes) {
+            deque.clear();
+        }
+        pooledBytes = 0;
+    }
+
+    /**
+     * 命中次数，即复用已有缓冲区的次数
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * 未命中次数，即新分配缓冲区的次数
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 归还时因尺寸不符或池已满被丢弃的次数
+     */
+    public long getDiscardCount() {
+        return discardCount.get();
+    }
+
+    /**
+     * 当前池中缓存的总字节数
+     */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ByteArrayPool[hit=" + getHitCount() + ", miss=" + getMissCount() + ", discard=" + getDiscardCount()
+            + ", pooled=" + getPooledBytes() + "B]";
+    }
+
+    private static int classSize(int size) {
+        if(size <= MIN_BUF_SIZE) {
+            return MIN_BUF_SIZE;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static int classIndex(int classSize) {
+        return Integer.numberOfTrailingZeros(classSize) - Integer.numberOfTrailingZeros(MIN_BUF_SIZE);
+    }
+}
@@ -0,0 +1,377 @@
+package com.topofwave.lib.utils.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * @describe 增量式字符集探测器.
+ * <p>
+ * 直接在字节上逐块扫描BOM、&lt;meta charset&gt;、http-equiv的content以及&lt;?xml encoding&gt;声明，找到第一个匹配即停止；
+ * 扫描过程不生成String、不编译正则。探测完成后返回一个可重新读取的流：先回放已读取的字节，再接着读原始流，不做二次缓冲。
+ * </p>
+ */
+public class CharsetDetector {
+
+    /**
+     * 默认最多扫描的字节数
+     */
+    public static final int DEFAULT_SCAN_LIMIT = 4 * 1024;
+
+    /**
+     * 探测结果来源
+     */
+    public enum Source {
+        /**
+         * 字节顺序标记
+         */
+        BOM,
+        /**
+         * HTML meta标签
+         */
+        META,
+        /**
+         * XML声明
+         */
+        XML,
+        /**
+         * 未找到
+         */
+        NONE
+    }
+
+    /**
+     * 探测结果
+     */
+    public static class Result {
+
+        private final String charset;
+
+        private final Source source;
+
+        private final InputStream inputStream;
+
+        Result(String charset, Source source, InputStream inputStream) {
+            this.charset = charset;
+            this.source = source;
+            this.inputStream = inputStream;
+        }
+
+        /**
+         * @return 字符集名称，未找到时为null
+         */
+        public String getCharset() {
+            return charset;
+        }
+
+        public Source getSource() {
+            return source;
+        }
+
+        /**
+         * @return 从头开始的完整输入流(包含探测时已读取的字节)
+         */
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        /**
+         * 只需要字符集、不再读取内容时调用，把探测用的缓冲区归还给{@link ByteArrayPool}，不关闭原始流。
+         * 调用后不要再使用{@link #getInputStream()}
+         */
+        public void release() {
+            ((ReplayInputStream)inputStream).release();
+        }
+    }
+
+    private static final byte[] META = "meta".getBytes();
+
+    private static final byte[] XML = "?xml".getBytes();
+
+    private static final byte[] COMMENT = "!--".getBytes();
+
+    private static final byte[] BODY = "body".getBytes();
+
+    private static final byte[] HEAD_END = "/head".getBytes();
+
+    private static final byte[] CHARSET = "charset".getBytes();
+
+    private static final byte[] ENCODING = "encoding".getBytes();
+
+    private CharsetDetector() {
+    }
+
+    /**
+     * 探测输入流的字符集，最多扫描{@link #DEFAULT_SCAN_LIMIT}字节
+     * @param is
+     * @return
+     * @throws IOException
+     */
+    public static Result detect(InputStream is) throws IOException {
+        return detect(is, DEFAULT_SCAN_LIMIT);
+    }
+
+    /**
+     * 探测输入流的字符集
+     * @param is 输入流，之后应改用{@link Result#getInputStream()}读取
+     * @param scanLimit 最多扫描的字节数
+     * @return
+     * @throws IOException
+     */
+    public static Result detect(InputStream is, int scanLimit) throws IOException {
+        ByteArrayPool pool = ByteArrayPool.getDefault();
+        byte[] buf = pool.getBuf(scanLimit);
+        int limit = Math.min(scanLimit, buf.length);
+        Scanner scanner = new Scanner(buf);
+        int count = 0;
+        int resume = 0;
+        boolean bomChecked = false;
+        try {
+            while(true) {
+                boolean last = count >= limit;
+                if( ! last) {
+                    int read = is.read(buf, count, limit - count);
+                    if(read == - 1) {
+                        last = true;
+                    } else {
+                        count += read;
+                        last = count >= limit;
+                    }
+                }
+                if( ! bomChecked) {
+                    if(count < 3 && ! last) {
+                        continue;
+                    }
+                    bomChecked = true;
+                    String bom = detectBom(buf, count);
+                    if(bom != null) {
+                        scanner.charset = bom;
+                        scanner.source = Source.BOM;
+                        break;
+                    }
+                }
+                resume = scanner.scan(resume, count, last);
+                if(resume < 0 || last) {
+                    break;
+                }
+            }
+        } catch(IOException e) {
+            pool.returnBuf(buf);
+            throw e;
+        }
+        return new Result(scanner.charset, scanner.source, new ReplayInputStream(buf, count, is));
+    }
+
+    /**
+     * 在已读取的字节上查找标签，记录第一个匹配
+     */
+    private static class Scanner {
+
+        private final byte[] buf;
+
+        private String charset;
+
+        private Source source = Source.NONE;
+
+        Scanner(byte[] buf) {
+            this.buf = buf;
+        }
+
+        /**
+         * 扫描[from, to)区间内的标签
+         * @param last 是否已没有后续数据，为true时跨块的标签按已读部分处理
+         * @return 下一次应从哪里继续扫描；找到字符集或遇到body/head结束时返回-1
+         */
+        int scan(int from, int to, boolean last) {
+            int pos = from;
+            while(pos < to) {
+                if(buf[pos] != '<') {
+                    pos ++ ;
+                    continue;
+                }
+                if(startsWith(buf, pos + 1, to, COMMENT)) {
+                    int end = indexOf(buf, pos + 4, to, "-->");
+                    if(end < 0) {
+                        return last ? - 1 : pos;
+                    }
+                    pos = end + 3;
+                    continue;
+                }
+                int end = indexOf(buf, pos + 1, to, ">");
+                if(end < 0) {
+                    // 标签跨块，等待更多数据
+                    if( ! last) {
+                        return pos;
+                    }
+                    end = to;
+                }
+                if(startsWith(buf, pos + 1, end, META)) {
+                    charset = findAttr(buf, pos + 5, end, CHARSET);
+                    if(charset != null) {
+                        source = Source.META;
+                        return - 1;
+                    }
+                } else if(startsWith(buf, pos + 1, end, XML)) {
+                    charset = findAttr(buf, pos + 5, end, ENCODING);
+                    if(charset != null) {
+                        source = Source.XML;
+                        return - 1;
+                    }
+                } else if(startsWith(buf, pos + 1, end, BODY) || startsWith(buf, pos + 1, end, HEAD_END)) {
+                    // meta只能出现在head中
+                    return - 1;
+                }
+                pos = end + 1;
+            }
+            return pos;
+        }
+    }
+
+    private static String detectBom(byte[] buf, int count) {
+        if(count >= 3 && buf[0] == (byte)0xEF && buf[1] == (byte)0xBB && buf[2] == (byte)0xBF) {
+            return "UTF-8";
+        }
+        if(count >= 2) {
+            if(buf[0] == (byte)0xFE && buf[1] == (byte)0xFF) {
+                return "UTF-16BE";
+            }
+            if(buf[0] == (byte)0xFF && buf[1] == (byte)0xFE) {
+                return "UTF-16LE";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 在[from, to)中查找name，跳过空白和'='及引号后读取取值
+     */
+    private static String findAttr(byte[] buf, int from, int to, byte[] name) {
+        for(int i = from; i + name.length <= to; i ++ ) {
+            if( ! startsWith(buf, i, to, name)) {
+                continue;
+            }
+            int p = skipSpaces(buf, i + name.length, to);
+            if(p >= to || buf[p] != '=') {
+                continue;
+            }
+            p = skipSpaces(buf, p + 1, to);
+            if(p < to && (buf[p] == '"' || buf[p] == '\'')) {
+                p ++ ;
+            }
+            int start = p;
+            while(p < to && isCharsetChar(buf[p])) {
+                p ++ ;
+            }
+            if(p > start) {
+                return new String(buf, start, p - start).trim();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isCharsetChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_'
+            || b == '.' || b == ':';
+    }
+
+    private static int skipSpaces(byte[] buf, int p, int to) {
+        while(p < to && (buf[p] == ' ' || buf[p] == '\t' || buf[p] == '\r' || buf[p] == '\n')) {
+            p ++ ;
+        }
+        return p;
+    }
+
+    /**
+     * 忽略大小写比较
+     */
+    private static boolean startsWith(byte[] buf, int pos, int to, byte[] lowerCase) {
+        if(pos + lowerCase.length > to) {
+            return false;
+        }
+        for(int i = 0; i < lowerCase.length; i ++ ) {
+            byte b = buf[pos + i];
+            if(b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if(b != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, String target) {
+        int len = target.length();
+        outer: for(int i = from; i + len <= to; i ++ ) {
+            for(int j = 0; j < len; j ++ ) {
+                if(buf[i + j] != target.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return - 1;
+    }
+
+    /**
+     * 先回放探测时读取的字节，再继续读取原始流；回放完成后缓冲区归还给{@link ByteArrayPool}
+     */
+    private static class ReplayInputStream extends InputStream {
+
+        private byte[] prefix;
+
+        private final int count;
+
+        private int pos;
+
+        private final InputStream in;
+
+        ReplayInputStream(byte[] prefix, int count, InputStream in) {
+            this.prefix = prefix;
+            this.count = count;
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(prefix != null) {
+                if(pos < count) {
+                    return prefix[pos ++ ] & 0xff;
+                }
+                release();
+            }
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(prefix != null) {
+                if(pos < count) {
+                    int n = Math.min(len, count - pos);
+                    System.arraycopy(prefix, pos, b, off, n);
+                    pos += n;
+                    return n;
+                }
+                release();
+            }
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (prefix != null ? count - pos : 0) + in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+            in.close();
+        }
+
+        private void release() {
+            if(prefix != null) {
+                ByteArrayPool.getDefault().returnBuf(prefix);
+                prefix = null;
+            }
+        }
+    }
+}
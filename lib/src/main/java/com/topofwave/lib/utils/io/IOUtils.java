@@ -4,9 +4,7 @@ import com.topofwave.lib.utils.debug.DebugLog;
 
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
-import android.util.Base64;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
@@ -15,8 +13,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -130,64 +132,180 @@ public class IOUtils {
     public static byte[] toByteArray(InputStream is) throws IOException {
         if(null == is)
             return null;
-        byte[] cache = new byte[1 * 1024];
+        ByteArrayPool pool = ByteArrayPool.getDefault();
+        byte[] cache = pool.getBuf(1 * 1024);
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        for(int length; (length = is.read(cache)) != - 1;) {
-            buffer.write(cache, 0, length);
+        try {
+            for(int length; (length = is.read(cache)) != - 1;) {
+                buffer.write(cache, 0, length);
+            }
+        } finally {
+            pool.returnBuf(cache);
         }
         is.close();
         return buffer.toByteArray();
     }
 
     /**
-     * 获取InputStream的编码格式
+     * 不限制最大长度
+     */
+    public static final long NO_LIMIT = - 1;
+
+    /**
+     * 按长度提示首次分配的最大字节数，之后随数据实际到达再扩容
+     */
+    private static final int MAX_INITIAL_ALLOCATION = 64 * 1024;
+
+    /**
+     * 将InputStream转换成字节数组。已知长度时(File.length()、Content-Length等)按提示长度填充数组：首次最多分配64KB，
+     * 数据实际到达后按倍数扩容但不超过提示长度，长度相符时结果就是填满的数组，不再拷贝；虚报的长度不会导致一次性分配大数组。
+     * 实际长度与提示不符时安全回退。
+     * @param is InputStream对象
+     * @param lengthHint 预期长度，小于0表示未知
+     * @return 字节数组
+     * @throws IOException
+     */
+    public static byte[] toByteArray(InputStream is, long lengthHint) throws IOException {
+        return toByteArray(is, lengthHint, NO_LIMIT);
+    }
+
+    /**
+     * 将InputStream转换成字节数组，读取完成后输入流将被关闭。
+     * @param is InputStream对象
+     * @param lengthHint 预期长度，小于0表示未知
+     * @param maxBytes 允许读取的最大字节数，超出则抛出IOException而不是耗尽内存；{@link #NO_LIMIT}表示不限制
+     * @return 字节数组
+     * @throws IOException
+     */
+    public static byte[] toByteArray(InputStream is, long lengthHint, long maxBytes) throws IOException {
+        if(null == is)
+            return null;
+        try {
+            return readFully(is, lengthHint, maxBytes, MAX_INITIAL_ALLOCATION);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * 读取文件全部内容。FileChannel的大小是准确的，按该大小一次分配，读取期间文件长度变化时安全回退
+     * @param file 文件
+     * @param maxBytes 允许读取的最大字节数，{@link #NO_LIMIT}表示不限制
+     * @return 字节数组
+     * @throws IOException 文件不存在、不可读或超出maxBytes
+     */
+    public static byte[] toByteArray(File file, long maxBytes) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            long size;
+            try {
+                size = fis.getChannel().size();
+            } catch(IOException e) {
+                size = - 1;
+            }
+            return readFully(fis, size, maxBytes, Integer.MAX_VALUE);
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * @param maxInitial 按提示长度首次分配的最大字节数，提示长度可信时为Integer.MAX_VALUE
+     */
+    private static byte[] readFully(InputStream is, long lengthHint, long maxBytes, int maxInitial) throws IOException {
+        if(maxBytes >= 0 && lengthHint > maxBytes) {
+            throw new IOException("Stream length " + lengthHint + " exceeds limit " + maxBytes);
+        }
+        if(lengthHint < 0 || lengthHint > Integer.MAX_VALUE - 8) {
+            return readUnknownLength(is, null, 0, maxBytes);
+        }
+        int expected = (int)lengthHint;
+        byte[] data = new byte[Math.min(expected, maxInitial)];
+        int offset = 0;
+        while(true) {
+            if(offset == data.length) {
+                if(data.length == expected) {
+                    break;
+                }
+                // 只为已经到达的数据扩容，不超过提示长度
+                data = Arrays.copyOf(data, (int)Math.min(expected, data.length * 2L));
+            }
+            int len = is.read(data, offset, data.length - offset);
+            if(len == - 1) {
+                // 实际比提示短
+                return Arrays.copyOf(data, offset);
+            }
+            offset += len;
+        }
+        int next = is.read();
+        if(next == - 1) {
+            return data;
+        }
+        // 实际比提示长，带着已读数据回退到扩容读取
+        if(maxBytes >= 0 && offset + 1L > maxBytes) {
+            throw new IOException("Stream exceeds limit " + maxBytes);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length + 1024);
+        baos.write(data, 0, offset);
+        baos.write(next);
+        return readUnknownLength(is, baos, offset + 1L, maxBytes);
+    }
+
+    private static byte[] readUnknownLength(InputStream is, ByteArrayOutputStream baos, long read, long maxBytes)
+        throws IOException {
+        if(baos == null) {
+            baos = new ByteArrayOutputStream();
+        }
+        ByteArrayPool pool = ByteArrayPool.getDefault();
+        byte[] buffer = pool.getBuf(4 * 1024);
+        try {
+            for(int len; (len = is.read(buffer)) != - 1;) {
+                read += len;
+                if(maxBytes >= 0 && read > maxBytes) {
+                    throw new IOException("Stream exceeds limit " + maxBytes);
+                }
+                baos.write(buffer, 0, len);
+            }
+        } finally {
+            pool.returnBuf(buffer);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * 获取InputStream的编码格式，依次识别BOM、meta标签和XML声明，都没有时返回GBK。
+     * 会读取输入流开头最多{@link CharsetDetector#DEFAULT_SCAN_LIMIT}字节，需要继续读取内容时请使用{@link CharsetDetector#detect(InputStream)}
      * @param is
      * @return
      * @throws IOException
      */
     public static String getStreamEncoding(InputStream is) throws IOException {
-        BufferedInputStream bis = new BufferedInputStream(is);
-        bis.mark(2);
-        byte[] first3bytes = new byte[3];
-        bis.read(first3bytes);
-        bis.reset();
-        String encoding = null;
-        if(first3bytes[0] == (byte)0xEF && first3bytes[1] == (byte)0xBB && first3bytes[2] == (byte)0xBF) {
-            encoding = "utf-8";
-        } else if(first3bytes[0] == (byte)0xFF && first3bytes[1] == (byte)0xFE) {
-            encoding = "unicode";
-        } else if(first3bytes[0] == (byte)0xFE && first3bytes[1] == (byte)0xFF) {
-            encoding = "utf-16be";
-        } else if(first3bytes[0] == (byte)0xFF && first3bytes[1] == (byte)0xFF) {
-            encoding = "utf-16le";
-        } else {
-            encoding = "GBK";
-        }
-        return encoding;
+        CharsetDetector.Result result = CharsetDetector.detect(is);
+        result.release();
+        return result.getCharset() == null ? "GBK" : result.getCharset();
     }
 
     private final static int FIND_CHARSET_CACHE_SIZE = 4 * 1024;
 
     private final static String CHARSET_REGX = "<meta.*charset=\"?([a-zA-Z0-9-_/]+)\"?";
 
+    private final static Pattern CHARSET_PATTERN = Pattern.compile(CHARSET_REGX);
+
     /**
-     * 获取HTML的编码格式
+     * 获取HTML的编码格式，依次识别BOM、meta标签和XML声明。需要继续读取内容时请使用{@link CharsetDetector#detect(InputStream)}
      * @param is
      * @return
      * @throws IOException
      */
     public static String getEncodingFromHTML(InputStream is) throws IOException {
-        BufferedInputStream bis = new BufferedInputStream(is);
-        bis.mark(FIND_CHARSET_CACHE_SIZE);
-        byte[] cache = new byte[FIND_CHARSET_CACHE_SIZE];
-        bis.read(cache);
-        bis.reset();
-        return getHtmlCharset(new String(cache));
+        CharsetDetector.Result result = CharsetDetector.detect(is, FIND_CHARSET_CACHE_SIZE);
+        result.release();
+        return result.getCharset();
     }
 
     public static String getHtmlCharset(String content) {
         String encoding = null;
-        Matcher m = Pattern.compile(CHARSET_REGX).matcher(content);
+        Matcher m = CHARSET_PATTERN.matcher(content);
         if(m.find()) {
             encoding = m.group(1);
         }
@@ -201,17 +319,7 @@ public class IOUtils {
      */
     public static String audioToString(String filePath) {
         try {
-            File tmpFile = new File(filePath);
-            BufferedInputStream in = new BufferedInputStream(new FileInputStream(tmpFile));
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-            byte[] buffer = new byte[in.available()];
-            int length;
-            while((length = in.read(buffer)) != - 1) {
-                baos.write(buffer, 0, length);
-            }
-            byte[] b = baos.toByteArray();
-            return Base64.encodeToString(b, Base64.DEFAULT);
+            return encodeBase64ToString(new File(filePath));
         } catch(Exception e) {
             DebugLog.i(e.getMessage());
         }
@@ -225,23 +333,181 @@ public class IOUtils {
      */
     public static String fileToString(String filePath) {
         try {
-            File tmpFile = new File(filePath);
-            BufferedInputStream in = new BufferedInputStream(new FileInputStream(tmpFile));
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-            byte[] buffer = new byte[in.available()];
-            int length;
-            while((length = in.read(buffer)) != - 1) {
-                baos.write(buffer, 0, length);
-            }
-            byte[] b = baos.toByteArray();
-            return Base64.encodeToString(b, Base64.DEFAULT);
+            return encodeBase64ToString(new File(filePath));
         } catch(Exception e) {
             DebugLog.i(e.getMessage());
         }
         return null;
     }
 
+    /**
+     * Base64每行的原始字节数(76个字符)
+     */
+    private final static int BASE64_LINE_BYTES = 57;
+
+    private final static int BASE64_LINE_CHARS = 76;
+
+    /**
+     * 每次编码的原始字节数，必须是整行的倍数，保证分块编码结果与整体编码一致
+     */
+    private final static int BASE64_CHUNK_BYTES = BASE64_LINE_BYTES * 64;
+
+    private final static byte[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+        .getBytes();
+
+    /**
+     * 文件Base64编码成字符串，结果与Base64.encodeToString(bytes, Base64.DEFAULT)相同，但不需要先把整个文件读入内存
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static String encodeBase64ToString(File file) throws IOException {
+        long length = base64Length(file.length());
+        if(length > Integer.MAX_VALUE) {
+            throw new IOException("File too large to encode into a String: " + file.length());
+        }
+        StringWriter writer = new StringWriter((int)length);
+        encodeBase64(file, writer);
+        return writer.toString();
+    }
+
+    /**
+     * 将文件按块Base64编码(Base64.DEFAULT格式)写入输出流，内存占用与文件大小无关
+     * @param file 源文件
+     * @param os 输出流，不会被关闭
+     * @throws IOException
+     */
+    public static void encodeBase64(File file, OutputStream os) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            encodeBase64(is, os);
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
+    /**
+     * 将文件按块Base64编码(Base64.DEFAULT格式)写入Writer，内存占用与文件大小无关
+     * @param file 源文件
+     * @param writer 输出，不会被关闭
+     * @throws IOException
+     */
+    public static void encodeBase64(File file, Writer writer) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            encodeBase64(is, writer);
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
+    /**
+     * 将输入流按块Base64编码(Base64.DEFAULT格式)写入输出流
+     * @param is 输入流，不会被关闭
+     * @param os 输出流，不会被关闭
+     * @throws IOException
+     */
+    public static void encodeBase64(InputStream is, OutputStream os) throws IOException {
+        encodeBase64(is, os, null);
+    }
+
+    /**
+     * 将输入流按块Base64编码(Base64.DEFAULT格式)写入Writer
+     * @param is 输入流，不会被关闭
+     * @param writer 输出，不会被关闭
+     * @throws IOException
+     */
+    public static void encodeBase64(InputStream is, Writer writer) throws IOException {
+        encodeBase64(is, null, writer);
+    }
+
+    private static void encodeBase64(InputStream is, OutputStream os, Writer writer) throws IOException {
+        ByteArrayPool pool = ByteArrayPool.getDefault();
+        byte[] in = pool.getBuf(BASE64_CHUNK_BYTES);
+        byte[] out = pool.getBuf((int)base64Length(BASE64_CHUNK_BYTES));
+        char[] chars = writer != null ? new char[(int)base64Length(BASE64_CHUNK_BYTES)] : null;
+        try {
+            int len;
+            while((len = readChunk(is, in, BASE64_CHUNK_BYTES)) > 0) {
+                int outLen = encodeBase64Chunk(in, len, out);
+                if(writer != null) {
+                    for(int i = 0; i < outLen; i ++ ) {
+                        chars[i] = (char)out[i];
+                    }
+                    writer.write(chars, 0, outLen);
+                } else {
+                    os.write(out, 0, outLen);
+                }
+                if(len < BASE64_CHUNK_BYTES) {
+                    break;
+                }
+            }
+        } finally {
+            pool.returnBuf(in);
+            pool.returnBuf(out);
+        }
+    }
+
+    /**
+     * 读满len个字节，除非到达流末尾
+     */
+    private static int readChunk(InputStream is, byte[] buffer, int len) throws IOException {
+        int offset = 0;
+        while(offset < len) {
+            int read = is.read(buffer, offset, len - offset);
+            if(read == - 1) {
+                break;
+            }
+            offset += read;
+        }
+        return offset;
+    }
+
+    /**
+     * 编码一块数据，每76个字符换行，末尾不足一行时也补换行
+     */
+    private static int encodeBase64Chunk(byte[] in, int len, byte[] out) {
+        int op = 0;
+        int lineChars = 0;
+        int i = 0;
+        for(; i + 3 <= len; i += 3) {
+            int d = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8) | (in[i + 2] & 0xff);
+            out[op ++ ] = BASE64_ALPHABET[(d >> 18) & 63];
+            out[op ++ ] = BASE64_ALPHABET[(d >> 12) & 63];
+            out[op ++ ] = BASE64_ALPHABET[(d >> 6) & 63];
+            out[op ++ ] = BASE64_ALPHABET[d & 63];
+            lineChars += 4;
+            if(lineChars == BASE64_LINE_CHARS) {
+                out[op ++ ] = '\n';
+                lineChars = 0;
+            }
+        }
+        int rest = len - i;
+        if(rest > 0) {
+            int d = (in[i] & 0xff) << 16;
+            if(rest == 2) {
+                d |= (in[i + 1] & 0xff) << 8;
+            }
+            out[op ++ ] = BASE64_ALPHABET[(d >> 18) & 63];
+            out[op ++ ] = BASE64_ALPHABET[(d >> 12) & 63];
+            out[op ++ ] = rest == 2 ? BASE64_ALPHABET[(d >> 6) & 63] : (byte)'=';
+            out[op ++ ] = '=';
+            lineChars += 4;
+        }
+        if(lineChars > 0) {
+            out[op ++ ] = '\n';
+        }
+        return op;
+    }
+
+    /**
+     * Base64.DEFAULT格式编码后的字符数(含换行)
+     */
+    private static long base64Length(long inputLength) {
+        long chars = (inputLength + 2) / 3 * 4;
+        return chars + (chars + BASE64_LINE_CHARS - 1) / BASE64_LINE_CHARS;
+    }
+
     /**
      * 将输入流中的数据全部读取出来, 一次性返回
      * @param is
@@ -250,15 +516,32 @@ public class IOUtils {
      */
     public static byte[] load(InputStream is) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int len;
-        while((len = is.read(buffer)) != - 1)
-            baos.write(buffer, 0, len);
+        ByteArrayPool pool = ByteArrayPool.getDefault();
+        byte[] buffer = pool.getBuf(1024);
+        try {
+            int len;
+            while((len = is.read(buffer)) != - 1)
+                baos.write(buffer, 0, len);
+        } finally {
+            pool.returnBuf(buffer);
+        }
         baos.close();
         is.close();
         return baos.toByteArray();
     }
 
+    /**
+     * 将输入流中的数据全部读取出来, 一次性返回。已知长度时按长度一次分配
+     * @param is
+     * @param lengthHint 预期长度(如Content-Length)，小于0表示未知
+     * @param maxBytes 允许读取的最大字节数，{@link #NO_LIMIT}表示不限制
+     * @return
+     * @throws IOException
+     */
+    public static byte[] load(InputStream is, long lengthHint, long maxBytes) throws IOException {
+        return toByteArray(is, lengthHint, maxBytes);
+    }
+
     /**
      * 根据文件得到字节流
      * @param file
@@ -269,12 +552,7 @@ public class IOUtils {
             return null;
         }
         try {
-            FileInputStream fis = new FileInputStream(file);
-            int len = fis.available();
-            byte[] bytes = new byte[len];
-            fis.read(bytes);
-            fis.close();
-            return bytes;
+            return toByteArray(file, NO_LIMIT);
         } catch(Exception e) {
 
         }
@@ -283,26 +561,158 @@ public class IOUtils {
     }
 
     /**
-     * 比较网络流和本地数据大小
+     * 比较网络流和本地数据大小。优先通过HEAD请求的Content-Length判断，无法获取时流式计数，不把响应体读入内存
      * @param file
      * @param url
      * @return
      * @throws IOException
      */
     public static boolean compareFileAndStream(File file, String url) throws IOException {
+        return compareFileAndStream(file, url, false);
+    }
+
+    /**
+     * 比较网络流和本地文件
+     * @param file 本地文件
+     * @param url 网络地址
+     * @param compareContent false只比较大小；true在大小一致时再按块比较内容，遇到第一个不同即返回
+     * @return
+     * @throws IOException
+     */
+    public static boolean compareFileAndStream(File file, String url, boolean compareContent) throws IOException {
         if( ! file.exists() || url == null) {
             return false;
         }
         URL uri = new URL(url);
+        long fileLength = file.length();
+        long remoteLength = getRemoteLength(uri);
+        if(remoteLength >= 0 && remoteLength != fileLength) {
+            return false;
+        }
+        if(remoteLength >= 0 && ! compareContent) {
+            return true;
+        }
         // 打开连接
         HttpURLConnection connection = (HttpURLConnection)uri.openConnection();
-        InputStream in = connection.getInputStream();
-        byte[] ins = load(in);
-        byte[] fis = getFileByte(file);
-        if(ins.length == fis.length)
-            return true;
-        return false;
+        try {
+            long contentLength = getContentLength(connection);
+            if(contentLength >= 0 && contentLength != fileLength) {
+                return false;
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                if( ! compareContent) {
+                    return skipAtMost(in, fileLength + 1) == fileLength;
+                }
+                InputStream fis = new FileInputStream(file);
+                try {
+                    return contentEquals(in, fis);
+                } finally {
+                    closeQuietly(fis);
+                }
+            } finally {
+                closeQuietly(in);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 按块比较两个流的内容，遇到第一个不同即返回false。流不会被关闭
+     * @param is1
+     * @param is2
+     * @return 两个流内容完全相同返回true
+     * @throws IOException
+     */
+    public static boolean contentEquals(InputStream is1, InputStream is2) throws IOException {
+        ByteArrayPool pool = ByteArrayPool.getDefault();
+        byte[] buf1 = pool.getBuf(8 * 1024);
+        byte[] buf2 = pool.getBuf(8 * 1024);
+        try {
+            while(true) {
+                int len1 = readChunk(is1, buf1, buf1.length);
+                int len2 = readChunk(is2, buf2, buf2.length);
+                if(len1 != len2) {
+                    return false;
+                }
+                for(int i = 0; i < len1; i ++ ) {
+                    if(buf1[i] != buf2[i]) {
+                        return false;
+                    }
+                }
+                if(len1 < buf1.length) {
+                    return true;
+                }
+            }
+        } finally {
+            pool.returnBuf(buf1);
+            pool.returnBuf(buf2);
+        }
+    }
+
+    /**
+     * 发送HEAD请求获取资源大小
+     * @return 资源大小，未知或请求失败返回-1
+     */
+    private static long getRemoteLength(URL uri) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection)uri.openConnection();
+            connection.setRequestMethod("HEAD");
+            if(connection.getResponseCode() / 100 != 2) {
+                return - 1;
+            }
+            return getContentLength(connection);
+        } catch(IOException e) {
+            DebugLog.i("HEAD failed: " + e.getMessage());
+            return - 1;
+        } finally {
+            if(connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * 读取Content-Length，支持超过2GB的取值；经过gzip等编码的响应大小与实体不符，视为未知
+     */
+    private static long getContentLength(HttpURLConnection connection) {
+        String encoding = connection.getHeaderField("Content-Encoding");
+        if(encoding != null && ! "identity".equalsIgnoreCase(encoding)) {
+            return - 1;
+        }
+        String length = connection.getHeaderField("Content-Length");
+        if(length == null) {
+            return - 1;
+        }
+        try {
+            return Long.parseLong(length.trim());
+        } catch(NumberFormatException e) {
+            return - 1;
+        }
+    }
 
+    /**
+     * 读取并丢弃最多max个字节
+     * @return 实际读取的字节数
+     */
+    private static long skipAtMost(InputStream is, long max) throws IOException {
+        ByteArrayPool pool = ByteArrayPool.getDefault();
+        byte[] buffer = pool.getBuf(8 * 1024);
+        long total = 0;
+        try {
+            while(total < max) {
+                int len = is.read(buffer, 0, (int)Math.min(buffer.length, max - total));
+                if(len == - 1) {
+                    break;
+                }
+                total += len;
+            }
+        } finally {
+            pool.returnBuf(buffer);
+        }
+        return total;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,309 @@
+package com.topofwave.lib.utils.net;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiManager;
+
+import com.topofwave.lib.utils.debug.DebugLog;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @describe 网络状态监视器.
+ * <p>
+ * 只注册一次CONNECTIVITY_ACTION和WIFI_STATE_CHANGED_ACTION广播，每次收到广播时查询一遍ConnectivityManager，
+ * 生成不可变的{@link State}并放入volatile字段。之后的查询直接读取这个快照，不加锁，也不再访问系统服务或遍历getAllNetworkInfo()。
+ * WIFI开关不一定改变活动网络，不会触发CONNECTIVITY_ACTION，所以另外监听WIFI状态广播以更新wifiAvailable。
+ * 状态发生变化时按顺序通知{@link Listener}。{@link NetworkUtils}中的网络状态方法都通过这里读取。
+ * </p>
+ */
+public class ConnectivityMonitor {
+
+    private static volatile ConnectivityMonitor sDefault;
+
+    private final Context context;
+
+    private volatile State state;
+
+    /**
+     * 每次收到广播或调用refresh()时加一，状态快照相同时也会变化
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            refresh();
+        }
+    };
+
+    /**
+     * 网络状态变化回调
+     */
+    public interface Listener {
+
+        /**
+         * 在刷新状态的线程中持有监视器的锁回调，各次变化按发生顺序逐个通知，由广播触发时为主线程。
+         * 不要执行耗时操作，也不要等待其他会调用{@link #refresh()}的线程
+         * @param previous 变化前的状态
+         * @param current 变化后的状态
+         */
+        void onConnectivityChanged(State previous, State current);
+    }
+
+    /**
+     * 某一时刻的网络状态，不可变
+     */
+    public static final class State {
+
+        private final NetType type;
+
+        private final boolean connected;
+
+        private final boolean connectedOrConnecting;
+
+        private final boolean wifiAvailable;
+
+        private final boolean mobileAvailable;
+
+        private final boolean mobileEnabled;
+
+        private final boolean roaming;
+
+        private final long timestamp;
+
+        State(NetType type, boolean connected, boolean connectedOrConnecting, boolean wifiAvailable, boolean mobileAvailable,
+            boolean mobileEnabled, boolean roaming, long timestamp) {
+            this.type = type;
+            this.connected = connected;
+            this.connectedOrConnecting = connectedOrConnecting;
+            this.wifiAvailable = wifiAvailable;
+            this.mobileAvailable = mobileAvailable;
+            this.mobileEnabled = mobileEnabled;
+            this.roaming = roaming;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * 当前活动网络的类型，没有活动网络时为{@link NetType#NET_NONE}
+         */
+        public NetType getType() {
+            return type;
+        }
+
+        /**
+         * 活动网络是否已连接(可传输数据)
+         */
+        public boolean isConnected() {
+            return connected;
+        }
+
+        /**
+         * 是否有网络已连接或正在连接
+         */
+        public boolean isConnectedOrConnecting() {
+            return connectedOrConnecting;
+        }
+
+        public boolean isWifiConnected() {
+            return connected && type == NetType.NET_WIFI;
+        }
+
+        public boolean isMobileConnected() {
+            return connected && type == NetType.NET_MOBILE;
+        }
+
+        /**
+         * 参见{@link NetworkUtils#isWifiAvailable(Context)}
+         */
+        public boolean isWifiAvailable() {
+            return wifiAvailable;
+        }
+
+        /**
+         * 参见{@link NetworkUtils#isMobileAvailable(Context)}
+         */
+        public boolean isMobileAvailable() {
+            return mobileAvailable;
+        }
+
+        /**
+         * 移动网络开关是否打开
+         */
+        public boolean isMobileEnabled() {
+            return mobileEnabled;
+        }
+
+        /**
+         * 参见{@link NetworkUtils#isAvailable(Context)}
+         */
+        public boolean isAvailable() {
+            return wifiAvailable || (mobileAvailable && mobileEnabled);
+        }
+
+        /**
+         * 活动网络是否处于漫游状态
+         */
+        public boolean isRoaming() {
+            return roaming;
+        }
+
+        /**
+         * 生成此快照的时间
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * 除时间外的状态是否相同
+         */
+        boolean sameAs(State other) {
+            return other != null && type == other.type && connected == other.connected
+                && connectedOrConnecting == other.connectedOrConnecting && wifiAvailable == other.wifiAvailable
+                && mobileAvailable == other.mobileAvailable && mobileEnabled == other.mobileEnabled && roaming == other.roaming;
+        }
+
+        @Override
+        public String toString() {
+            return "ConnectivityMonitor.State[" + type + ", connected=" + connected + ", connecting=" + connectedOrConnecting
+                + ", wifiAvailable=" + wifiAvailable + ", mobileAvailable=" + mobileAvailable + ", mobileEnabled="
+                + mobileEnabled + ", roaming=" + roaming + "]";
+        }
+    }
+
+    /**
+     * 获取全局实例，首次调用时注册广播
+     * @param context
+     * @return
+     */
+    public static ConnectivityMonitor getDefault(Context context) {
+        if(sDefault == null) {
+            synchronized(ConnectivityMonitor.class) {
+                if(sDefault == null) {
+                    ConnectivityMonitor monitor = new ConnectivityMonitor(context.getApplicationContext());
+                    monitor.register();
+                    sDefault = monitor;
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    private ConnectivityMonitor(Context context) {
+        this.context = context;
+        this.state = read(context);
+    }
+
+    private void register() {
+        try {
+            IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+            filter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
+            context.registerReceiver(receiver, filter);
+        } catch(RuntimeException e) {
+            // 注册失败时保留初始快照，仍可通过refresh()更新
+            DebugLog.e("ConnectivityMonitor: cannot register receiver", e);
+        }
+    }
+
+    /**
+     * 当前网络状态快照
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * 刷新次数，每次收到网络广播都会变化。同一网络下重新获取地址等变化不一定反映在{@link State}中，
+     * 依赖这类信息的缓存可以记下此值，不相等时重新查询
+     */
+    public int getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * 添加状态变化回调
+     */
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 重新查询网络状态，有变化时通知回调。收到广播时自动调用
+     * @return 新的状态
+     */
+    public synchronized State refresh() {
+        generation.incrementAndGet();
+        State previous = state;
+        State current = read(context);
+        if(current.sameAs(previous)) {
+            return previous;
+        }
+        state = current;
+        DebugLog.i("ConnectivityMonitor: " + previous + " -> " + current);
+        // 持有锁通知，并发的刷新不会让较旧的状态晚于较新的状态送达
+        for(Listener listener: listeners) {
+            listener.onConnectivityChanged(previous, current);
+        }
+        return current;
+    }
+
+    /**
+     * 一次遍历ConnectivityManager生成快照
+     */
+    static State read(Context context) {
+        long now = System.currentTimeMillis();
+        try {
+            ConnectivityManager manager = NetworkUtils.getConnManager(context);
+            NetworkInfo active = manager.getActiveNetworkInfo();
+            NetType type = NetType.NET_NONE;
+            if(active != null) {
+                switch(active.getType()) {
+                    case ConnectivityManager.TYPE_WIFI:
+                        type = NetType.NET_WIFI;
+                        break;
+                    case ConnectivityManager.TYPE_MOBILE:
+                        type = NetType.NET_MOBILE;
+                        break;
+                    default:
+                        type = NetType.NET_OTHER;
+                        break;
+                }
+            }
+            boolean connectedOrConnecting = false;
+            Boolean wifiAvailable = null;
+            Boolean mobileAvailable = null;
+            NetworkInfo[] nets = manager.getAllNetworkInfo();
+            if(nets != null) {
+                for(NetworkInfo net: nets) {
+                    connectedOrConnecting |= net.isConnectedOrConnecting();
+                    // 与原实现一致，取同类型的第一个
+                    if(wifiAvailable == null && net.getType() == ConnectivityManager.TYPE_WIFI) {
+                        wifiAvailable = net.isAvailable();
+                    } else if(mobileAvailable == null && net.getType() == ConnectivityManager.TYPE_MOBILE) {
+                        mobileAvailable = net.isAvailable();
+                    }
+                }
+            }
+            return new State(type, active != null && active.isConnected(), connectedOrConnecting,
+                wifiAvailable != null && wifiAvailable, mobileAvailable != null && mobileAvailable,
+                NetworkUtils.isMobileDataEnabled(manager), active != null && active.isRoaming(), now);
+        } catch(Exception e) {
+            DebugLog.e("ConnectivityMonitor: cannot read network state", e);
+            // 与原getConnectedType一致，查询失败时视为其他网络
+            return new State(NetType.NET_OTHER, false, false, false, false, true, false, now);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package com.topofwave.lib.utils.net;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.topofwave.lib.utils.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * @describe 可复用的HTTP客户端.
+ * <p>
+ * 基于HttpURLConnection，系统实现本身按主机维护keep-alive连接池，前提是响应体被完整读取并关闭输入流，且不调用disconnect()；
+ * 本类保证这一点，只在出错时断开连接。每个主机的并发请求数受限，超出的请求排队等待，避免为同一主机建立过多连接。
+ * 请求时声明支持gzip和deflate并自行解码，响应体使用ByteArrayPool中的缓冲区读取。统一设置连接和读取超时。
+ * 非2xx响应同样返回{@link Response}，只有网络错误才抛出IOException。
+ * </p>
+ */
+public class HttpClient {
+
+    /**
+     * 默认每个主机的最大并发请求数
+     */
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+
+    /**
+     * 默认响应体上限：8MB
+     */
+    public static final long DEFAULT_MAX_BODY_BYTES = 8 * 1024 * 1024;
+
+    private static volatile HttpClient sDefault;
+
+    private int connectTimeout = 15 * 1000;
+
+    private int readTimeout = 20 * 1000;
+
+    private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+
+    private long maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+
+    private final ConcurrentHashMap<String, Semaphore> hostLimits = new ConcurrentHashMap<String, Semaphore>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+
+    /**
+     * HTTP响应，响应体已完整读入内存
+     */
+    public static class Response {
+
+        private final String url;
+
+        private final int code;
+
+        private final Map<String, List<String>> headers;
+
+        private final byte[] body;
+
+        private final long latencyMillis;
+
+        Response(String url, int code, Map<String, List<String>> headers, byte[] body, long latencyMillis) {
+            this.url = url;
+            this.code = code;
+            this.headers = headers;
+            this.body = body;
+            this.latencyMillis = latencyMillis;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        /**
+         * 状态码是否为2xx
+         */
+        public boolean isSuccessful() {
+            return code / 100 == 2;
+        }
+
+        /**
+         * 全部响应头
+         */
+        public Map<String, List<String>> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * 获取响应头，名称不区分大小写，多个值时返回最后一个
+         * @param name
+         * @return 不存在返回null
+         */
+        public String getHeader(String name) {
+            for(Map.Entry<String, List<String>> entry: headers.entrySet()) {
+                if(name.equalsIgnoreCase(entry.getKey()) && ! entry.getValue().isEmpty()) {
+                    return entry.getValue().get(entry.getValue().size() - 1);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 解码后的响应体，没有响应体时为空数组
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * 按Content-Type中的charset解码响应体，未声明时使用UTF-8
+         * @return
+         */
+        public String getBodyAsString() {
+            String charset = "UTF-8";
+            String contentType = getHeader("Content-Type");
+            if(contentType != null) {
+                int index = contentType.toLowerCase().indexOf("charset=");
+                if(index >= 0) {
+                    charset = contentType.substring(index + 8).replace("\"", "").split(";")[0].trim();
+                }
+            }
+            try {
+                return new String(body, charset);
+            } catch(UnsupportedEncodingException e) {
+                return new String(body);
+            }
+        }
+
+        /**
+         * 从发出请求到读完响应体的耗时
+         */
+        public long getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "HttpClient.Response[" + code + " " + url + ", " + body.length + " bytes, " + latencyMillis + "ms]";
+        }
+    }
+
+    /**
+     * 获取全局共享的客户端
+     * @return
+     */
+    public static HttpClient getDefault() {
+        if(sDefault == null) {
+            synchronized(HttpClient.class) {
+                if(sDefault == null) {
+                    sDefault = new HttpClient();
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    public HttpClient setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    public HttpClient setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * 每个主机的最大并发请求数，只对之后首次访问的主机生效
+     */
+    public HttpClient setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if(maxRequestsPerHost <= 0) {
+            throw new IllegalArgumentException("maxRequestsPerHost <= 0");
+        }
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        return this;
+    }
+
+    /**
+     * 解码后响应体的最大字节数，超出时抛出IOException
+     */
+    public HttpClient setMaxBodyBytes(long maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+        return this;
+    }
+
+    /**
+     * GET请求
+     * @param url
+     * @return
+     * @throws IOException
+     */
+    public Response get(String url) throws IOException {
+        return execute("GET", url, null, null, null);
+    }
+
+    /**
+     * GET请求
+     * @param url
+     * @param headers 附加请求头，可为null
+     * @return
+     * @throws IOException
+     */
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        return execute("GET", url, headers, null, null, null);
+    }
+
+    /**
+     * 可取消的GET请求
+     * @param url
+     * @param headers 附加请求头，可为null
+     * @param signal 取消信号，可为null
+     * @return
+     * @throws IOException
+     */
+    public Response get(String url, Map<String, String> headers, CancellationSignal signal) throws IOException {
+        return execute("GET", url, headers, null, null, signal);
+    }
+
+    /**
+     * POST请求
+     * @param url
+     * @param body 请求体
+     * @param contentType 请求体类型
+     * @return
+     * @throws IOException
+     */
+    public Response post(String url, byte[] body, String contentType) throws IOException {
+        return execute("POST", url, null, body, contentType);
+    }
+
+    /**
+     * 执行请求
+     * @param method
+     * @param url
+     * @param headers 附加请求头，可为null
+     * @param body 请求体，可为null
+     * @param contentType 请求体类型，body为null时忽略
+     * @return
+     * @throws IOException 网络错误、超时或响应体超出上限
+     */
+    public Response execute(String method, String url, Map<String, String> headers, byte[] body, String contentType)
+        throws IOException {
+        return execute(method, url, headers, body, contentType, null);
+    }
+
+    /**
+     * 执行可取消的请求
+     * @param method
+     * @param url
+     * @param headers 附加请求头，可为null
+     * @param body 请求体，可为null
+     * @param contentType 请求体类型，body为null时忽略
+     * @param signal 取消信号，可为null。取消时断开连接并抛出OperationCanceledException，期间会占用它的OnCancelListener
+     * @return
+     * @throws IOException 网络错误、超时或响应体超出上限
+     */
+    public Response execute(String method, String url, Map<String, String> headers, byte[] body, String contentType,
+        CancellationSignal signal) throws IOException {
+        if(signal != null) {
+            signal.throwIfCanceled();
+        }
+        URL uri = new URL(url);
+        Semaphore limit = hostLimit(uri);
+        try {
+            limit.acquire();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + uri.getHost());
+        }
+        long start = System.currentTimeMillis();
+        requestCount.incrementAndGet();
+        HttpURLConnection connection = null;
+        boolean success = false;
+        try {
+            connection = (HttpURLConnection)uri.openConnection();
+            if(signal != null) {
+                final HttpURLConnection canceled = connection;
+                // 在其他线程断开连接，阻塞中的读写随即抛出IOException
+                signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+
+                    @Override
+                    public void onCancel() {
+                        canceled.disconnect();
+                    }
+                });
+                // 排队等待主机配额期间已取消
+                signal.throwIfCanceled();
+            }
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setRequestMethod(method);
+            // 手动声明后HttpURLConnection不再自动解压，由decode处理
+            connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            if(headers != null) {
+                for(Map.Entry<String, String> header: headers.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            if(body != null) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                if(contentType != null) {
+                    connection.setRequestProperty("Content-Type", contentType);
+                }
+                OutputStream os = connection.getOutputStream();
+                try {
+                    os.write(body);
+                } finally {
+                    os.close();
+                }
+            }
+            int code = connection.getResponseCode();
+            InputStream in = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            byte[] data;
+            if(in == null || ! hasBody(method, code, connection.getContentLength())) {
+                // 空响应体不能交给GZIPInputStream，它会在读取头部时抛出EOFException
+                IOUtils.closeQuietly(in);
+                data = new byte[0];
+            } else {
+                String encoding = connection.getHeaderField("Content-Encoding");
+                long lengthHint = encoding == null ? connection.getContentLength() : - 1;
+                // 读完并关闭输入流后连接回到连接池
+                data = IOUtils.toByteArray(decode(in, encoding), lengthHint, maxBodyBytes);
+            }
+            bytesReceived.addAndGet(data.length);
+            Map<String, List<String>> responseHeaders = connection.getHeaderFields();
+            long latency = System.currentTimeMillis() - start;
+            totalLatencyMillis.addAndGet(latency);
+            success = true;
+            return new Response(url, code, responseHeaders == null ? Collections.<String, List<String>> emptyMap()
+                : responseHeaders, data, latency);
+        } catch(IOException e) {
+            if(signal != null && signal.isCanceled()) {
+                throw new OperationCanceledException();
+            }
+            throw e;
+        } finally {
+            if(signal != null) {
+                signal.setOnCancelListener(null);
+            }
+            if( ! success) {
+                failureCount.incrementAndGet();
+                if(connection != null) {
+                    connection.disconnect();
+                }
+            }
+            limit.release();
+        }
+    }
+
+    /**
+     * 已发出的请求数
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * 因网络错误失败的请求数
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * 解码后收到的响应体总字节数
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * 成功请求的平均耗时(毫秒)
+     */
+    public long getAverageLatencyMillis() {
+        long count = requestCount.get() - failureCount.get();
+        return count <= 0 ? 0 : totalLatencyMillis.get() / count;
+    }
+
+    /**
+     * 响应是否带有响应体：HEAD、204、304和Content-Length为0的响应没有
+     */
+    static boolean hasBody(String method, int code, long contentLength) {
+        return ! "HEAD".equals(method) && code != HttpURLConnection.HTTP_NO_CONTENT
+            && code != HttpURLConnection.HTTP_NOT_MODIFIED && contentLength != 0;
+    }
+
+    private Semaphore hostLimit(URL uri) {
+        String key = hostLimitKey(uri);
+        Semaphore limit = hostLimits.get(key);
+        if(limit == null) {
+            Semaphore created = new Semaphore(maxRequestsPerHost, true);
+            limit = hostLimits.putIfAbsent(key, created);
+            if(limit == null) {
+                limit = created;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * 省略端口和显式写出默认端口是同一个主机
+     */
+    String hostLimitKey(URL uri) {
+        int port = uri.getPort() == - 1 ? uri.getDefaultPort() : uri.getPort();
+        return uri.getProtocol() + "://" + uri.getHost() + ":" + port;
+    }
+
+    /**
+     * 按Content-Encoding解码响应体
+     */
+    static InputStream decode(InputStream in, String encoding) throws IOException {
+        if(encoding == null || "identity".equalsIgnoreCase(encoding)) {
+            return in;
+        }
+        if("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(in, 8 * 1024);
+        }
+        if("deflate".equalsIgnoreCase(encoding)) {
+            // 规范要求zlib格式，但部分服务器发送不带头的原始deflate数据
+            BufferedInputStream buffered = new BufferedInputStream(in, 8 * 1024);
+            buffered.mark(2);
+            int cmf = buffered.read();
+            int flg = buffered.read();
+            buffered.reset();
+            boolean zlib = cmf >= 0 && flg >= 0 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+            final Inflater inflater = new Inflater( ! zlib);
+            return new InflaterInputStream(buffered, inflater, 8 * 1024) {
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        throw new IOException("Unsupported Content-Encoding: " + encoding);
+    }
+}
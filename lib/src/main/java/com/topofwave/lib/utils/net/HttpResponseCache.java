@@ -0,0 +1,544 @@
+package com.topofwave.lib.utils.net;
+
+import android.content.Context;
+
+import com.topofwave.lib.utils.debug.DebugLog;
+import com.topofwave.lib.utils.encrypt.MD5Utils;
+import com.topofwave.lib.utils.file.DiskLruCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @describe HTTP GET响应缓存.
+ * <p>
+ * 响应保存在FileUtils.getCacheDirectory下的{@link DiskLruCache}中，最近使用的条目同时保存在按字节数限制的内存LRU中。
+ * 遵循Cache-Control(no-store、no-cache、max-age)和Expires，没有显式有效期但有Last-Modified时按(Date - Last-Modified)的10%估算。
+ * 过期条目带着If-None-Match/If-Modified-Since重新请求，服务器返回304时更新有效期并直接使用本地内容。
+ * 带有Vary(Accept-Encoding除外)的响应不缓存。统计命中率以及命中和访问网络时的平均耗时。
+ * </p>
+ */
+public class HttpResponseCache {
+
+    /**
+     * 默认磁盘缓存大小：10MB
+     */
+    public static final long DEFAULT_DISK_BYTES = 10 * 1024 * 1024;
+
+    /**
+     * 默认内存缓存大小：1MB
+     */
+    public static final long DEFAULT_MEMORY_BYTES = 1024 * 1024;
+
+    static final String DIRECTORY = "http";
+
+    private static final int ENTRY_MAGIC = 0x48524331;
+
+    /**
+     * 需要保存的响应头，其余丢弃
+     */
+    private static final String[] STORED_HEADERS = {"Cache-Control", "Content-Type", "Date", "ETag", "Expires", "Last-Modified",
+        "Age", "Pragma"};
+
+    private final DiskLruCache disk;
+
+    private final HttpClient client;
+
+    private final long maxMemoryBytes;
+
+    /**
+     * 内存缓存，按访问顺序排列
+     */
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    private long memoryBytes;
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong memoryHitCount = new AtomicLong();
+
+    private final AtomicLong conditionalHitCount = new AtomicLong();
+
+    private final AtomicLong networkCount = new AtomicLong();
+
+    private final AtomicLong hitLatencyMillis = new AtomicLong();
+
+    private final AtomicLong networkLatencyMillis = new AtomicLong();
+
+    /**
+     * 缓存的响应
+     */
+    private static class Entry {
+
+        final String url;
+
+        final int code;
+
+        final Map<String, List<String>> headers;
+
+        final byte[] body;
+
+        /**
+         * 收到响应(或304)的本地时间
+         */
+        final long receivedAt;
+
+        /**
+         * 在此本地时间之前无需重新验证，创建时由响应头计算一次，命中时不再解析
+         */
+        final long freshUntil;
+
+        Entry(String url, int code, Map<String, List<String>> headers, byte[] body, long receivedAt) {
+            this.url = url;
+            this.code = code;
+            this.headers = headers;
+            this.body = body;
+            this.receivedAt = receivedAt;
+            this.freshUntil = computeFreshUntil(this);
+        }
+
+        String header(String name) {
+            List<String> values = headers.get(name);
+            return values == null || values.isEmpty() ? null : values.get(values.size() - 1);
+        }
+
+        long size() {
+            return body.length + 512;
+        }
+    }
+
+    /**
+     * 在{@link com.topofwave.lib.utils.file.FileUtils#getCacheDirectory(Context)}/http下打开缓存，使用默认的HttpClient
+     * @param context
+     * @return
+     * @throws IOException
+     */
+    public static HttpResponseCache open(Context context) throws IOException {
+        return new HttpResponseCache(DiskLruCache.open(context, DIRECTORY, DEFAULT_DISK_BYTES), HttpClient.getDefault(),
+            DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * @param disk 磁盘缓存，应专用于HTTP响应
+     * @param client 发出请求的客户端
+     * @param maxMemoryBytes 内存缓存大小，0表示不使用内存缓存
+     */
+    public HttpResponseCache(DiskLruCache disk, HttpClient client, long maxMemoryBytes) {
+        this.disk = disk;
+        this.client = client;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * 通过缓存执行GET请求
+     * @param url
+     * @return 缓存命中、304重新验证或网络返回的响应
+     * @throws IOException
+     */
+    public HttpClient.Response get(String url) throws IOException {
+        long start = System.currentTimeMillis();
+        requestCount.incrementAndGet();
+        String key = MD5Utils.getMD5(url);
+        Entry cached;
+        synchronized(this) {
+            cached = memory.get(key);
+        }
+        boolean fromMemory = cached != null;
+        if( ! fromMemory) {
+            cached = lookupDisk(key, url);
+        }
+        if(cached != null && System.currentTimeMillis() < cached.freshUntil) {
+            hitCount.incrementAndGet();
+            if(fromMemory) {
+                memoryHitCount.incrementAndGet();
+            }
+            return hit(cached, start);
+        }
+
+        Map<String, String> conditions = null;
+        if(cached != null) {
+            conditions = new HashMap<String, String>();
+            String etag = cached.header("ETag");
+            String lastModified = cached.header("Last-Modified");
+            if(etag != null) {
+                conditions.put("If-None-Match", etag);
+            }
+            if(lastModified != null) {
+                conditions.put("If-Modified-Since", lastModified);
+            }
+            if(conditions.isEmpty()) {
+                conditions = null;
+            }
+        }
+
+        networkCount.incrementAndGet();
+        HttpClient.Response response = client.get(url, conditions);
+        long receivedAt = System.currentTimeMillis();
+        if(response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            // 用304中的新头部刷新有效期，内容不变
+            Map<String, List<String>> headers = new HashMap<String, List<String>>(cached.headers);
+            headers.putAll(storedHeaders(response.getHeaders()));
+            Entry refreshed = new Entry(url, cached.code, headers, cached.body, receivedAt);
+            store(key, refreshed);
+            conditionalHitCount.incrementAndGet();
+            networkLatencyMillis.addAndGet(receivedAt - start);
+            return toResponse(refreshed, receivedAt - start);
+        }
+        networkLatencyMillis.addAndGet(receivedAt - start);
+        if(isCacheable(response)) {
+            store(key, new Entry(url, response.getCode(), storedHeaders(response.getHeaders()), response.getBody(), receivedAt));
+        } else if(cached != null && response.isSuccessful()) {
+            // 资源已变为不可缓存；出错的响应不影响已有条目
+            remove(key);
+        }
+        return response;
+    }
+
+    /**
+     * 删除某个URL的缓存
+     * @param url
+     */
+    public void invalidate(String url) {
+        remove(MD5Utils.getMD5(url));
+    }
+
+    /**
+     * 清空内存缓存
+     */
+    public synchronized void evictMemory() {
+        memory.clear();
+        memoryBytes = 0;
+    }
+
+    /**
+     * 请求总数
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * 未访问网络直接命中的次数(含内存命中)
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * 内存命中的次数
+     */
+    public long getMemoryHitCount() {
+        return memoryHitCount.get();
+    }
+
+    /**
+     * 服务器返回304、使用本地内容的次数
+     */
+    public long getConditionalHitCount() {
+        return conditionalHitCount.get();
+    }
+
+    /**
+     * 访问网络的次数(含304)
+     */
+    public long getNetworkCount() {
+        return networkCount.get();
+    }
+
+    /**
+     * 命中率：直接命中与304之和占请求总数的比例
+     */
+    public float getHitRatio() {
+        long requests = requestCount.get();
+        return requests == 0 ? 0 : (float)(hitCount.get() + conditionalHitCount.get()) / requests;
+    }
+
+    /**
+     * 直接命中时的平均耗时(毫秒)
+     */
+    public float getAverageHitLatencyMillis() {
+        long hits = hitCount.get();
+        return hits == 0 ? 0 : (float)hitLatencyMillis.get() / hits;
+    }
+
+    /**
+     * 访问网络时的平均耗时(毫秒)
+     */
+    public float getAverageNetworkLatencyMillis() {
+        long count = networkCount.get();
+        return count == 0 ? 0 : (float)networkLatencyMillis.get() / count;
+    }
+
+    private HttpClient.Response hit(Entry entry, long start) {
+        long latency = System.currentTimeMillis() - start;
+        hitLatencyMillis.addAndGet(latency);
+        return toResponse(entry, latency);
+    }
+
+    private static HttpClient.Response toResponse(Entry entry, long latency) {
+        return new HttpClient.Response(entry.url, entry.code, entry.headers, entry.body, latency);
+    }
+
+    private Entry lookupDisk(String key, String url) {
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = disk.get(key);
+            if(snapshot == null) {
+                return null;
+            }
+            Entry entry = decode(snapshot.getBytes());
+            if( ! url.equals(entry.url)) {
+                return null;
+            }
+            putMemory(key, entry);
+            return entry;
+        } catch(IOException e) {
+            DebugLog.w("Ignore unreadable cache entry for " + url + ": " + e.getMessage());
+            return null;
+        } finally {
+            if(snapshot != null) {
+                snapshot.close();
+            }
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        putMemory(key, entry);
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = disk.edit(key);
+            if(editor == null) {
+                // 另一个线程正在写入同一个条目
+                return;
+            }
+            editor.set(encode(entry));
+            editor.commit();
+        } catch(IOException e) {
+            DebugLog.w("Cannot store cache entry for " + entry.url + ": " + e.getMessage());
+        } finally {
+            if(editor != null) {
+                editor.abortUnlessCommitted();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        synchronized(this) {
+            Entry removed = memory.remove(key);
+            if(removed != null) {
+                memoryBytes -= removed.size();
+            }
+        }
+        try {
+            disk.remove(key);
+        } catch(IOException e) {
+            DebugLog.w("Cannot remove cache entry: " + e.getMessage());
+        }
+    }
+
+    private synchronized void putMemory(String key, Entry entry) {
+        if(entry.size() > maxMemoryBytes) {
+            return;
+        }
+        Entry previous = memory.put(key, entry);
+        memoryBytes += entry.size();
+        if(previous != null) {
+            memoryBytes -= previous.size();
+        }
+        Iterator<Entry> it = memory.values().iterator();
+        while(memoryBytes > maxMemoryBytes && it.hasNext()) {
+            memoryBytes -= it.next().size();
+            it.remove();
+        }
+    }
+
+    /**
+     * 计算有效期截止的本地时间：receivedAt + 有效期 - 收到时已有的age
+     */
+    static long computeFreshUntil(Entry entry) {
+        String cacheControl = entry.header("Cache-Control");
+        if(hasDirective(cacheControl, "no-cache") || "no-cache".equalsIgnoreCase(entry.header("Pragma"))) {
+            return Long.MIN_VALUE;
+        }
+        long date = parseDate(entry.header("Date"));
+        long servedDate = date > 0 ? date : entry.receivedAt;
+        long age = Math.max(0, entry.receivedAt - servedDate);
+        long ageHeader = parseSeconds(entry.header("Age"));
+        if(ageHeader > 0) {
+            age = Math.max(age, ageHeader * 1000);
+        }
+
+        long lifetime;
+        long maxAge = directiveSeconds(cacheControl, "max-age");
+        if(maxAge >= 0) {
+            lifetime = maxAge * 1000;
+        } else {
+            long expires = parseDate(entry.header("Expires"));
+            long lastModified = parseDate(entry.header("Last-Modified"));
+            if(expires > 0) {
+                lifetime = expires - servedDate;
+            } else if(lastModified > 0 && lastModified < servedDate) {
+                lifetime = (servedDate - lastModified) / 10;
+            } else {
+                lifetime = 0;
+            }
+        }
+        return entry.receivedAt + lifetime - age;
+    }
+
+    private static boolean isCacheable(HttpClient.Response response) {
+        if(response.getCode() != 200) {
+            return false;
+        }
+        String cacheControl = response.getHeader("Cache-Control");
+        if(hasDirective(cacheControl, "no-store")) {
+            return false;
+        }
+        String vary = response.getHeader("Vary");
+        if(vary != null && ! "accept-encoding".equalsIgnoreCase(vary.trim())) {
+            return false;
+        }
+        return response.getHeader("ETag") != null || response.getHeader("Last-Modified") != null
+            || directiveSeconds(cacheControl, "max-age") > 0 || response.getHeader("Expires") != null;
+    }
+
+    private static Map<String, List<String>> storedHeaders(Map<String, List<String>> headers) {
+        Map<String, List<String>> stored = new HashMap<String, List<String>>();
+        for(Map.Entry<String, List<String>> header: headers.entrySet()) {
+            if(header.getKey() == null) {
+                continue;
+            }
+            for(String name: STORED_HEADERS) {
+                if(name.equalsIgnoreCase(header.getKey())) {
+                    stored.put(name, new ArrayList<String>(header.getValue()));
+                }
+            }
+        }
+        return stored;
+    }
+
+    private static boolean hasDirective(String cacheControl, String directive) {
+        if(cacheControl == null) {
+            return false;
+        }
+        for(String part: cacheControl.split(",")) {
+            String name = part.trim();
+            int eq = name.indexOf('=');
+            if(eq >= 0) {
+                name = name.substring(0, eq).trim();
+            }
+            if(directive.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 指令的秒数，不存在或无法解析返回-1
+     */
+    private static long directiveSeconds(String cacheControl, String directive) {
+        if(cacheControl == null) {
+            return - 1;
+        }
+        for(String part: cacheControl.split(",")) {
+            int eq = part.indexOf('=');
+            if(eq >= 0 && directive.equalsIgnoreCase(part.substring(0, eq).trim())) {
+                return parseSeconds(part.substring(eq + 1).replace("\"", ""));
+            }
+        }
+        return - 1;
+    }
+
+    private static long parseSeconds(String value) {
+        if(value == null) {
+            return - 1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch(NumberFormatException e) {
+            return - 1;
+        }
+    }
+
+    /**
+     * 解析RFC 1123日期
+     * @return 无法解析返回-1
+     */
+    private static long parseDate(String value) {
+        if(value == null) {
+            return - 1;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value.trim());
+            return date.getTime();
+        } catch(ParseException e) {
+            return - 1;
+        }
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(entry.body.length + 512);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(ENTRY_MAGIC);
+        dos.writeUTF(entry.url);
+        dos.writeInt(entry.code);
+        dos.writeLong(entry.receivedAt);
+        dos.writeInt(entry.headers.size());
+        for(Map.Entry<String, List<String>> header: entry.headers.entrySet()) {
+            dos.writeUTF(header.getKey());
+            dos.writeInt(header.getValue().size());
+            for(String value: header.getValue()) {
+                dos.writeUTF(value);
+            }
+        }
+        dos.writeInt(entry.body.length);
+        dos.write(entry.body);
+        dos.close();
+        return bos.toByteArray();
+    }
+
+    private static Entry decode(byte[] data) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if(dis.readInt() != ENTRY_MAGIC) {
+            throw new IOException("bad cache entry");
+        }
+        String url = dis.readUTF();
+        int code = dis.readInt();
+        long receivedAt = dis.readLong();
+        int headerCount = dis.readInt();
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        for(int i = 0; i < headerCount; i ++ ) {
+            String name = dis.readUTF();
+            int valueCount = dis.readInt();
+            List<String> values = new ArrayList<String>(valueCount);
+            for(int j = 0; j < valueCount; j ++ ) {
+                values.add(dis.readUTF());
+            }
+            headers.put(name, values);
+        }
+        byte[] body = new byte[dis.readInt()];
+        dis.readFully(body);
+        return new Entry(url, code, headers, body, receivedAt);
+    }
+}
@@ -10,17 +10,51 @@ import android.net.wifi.WifiManager;
 
 import java.lang.reflect.Method;
 import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.util.Enumeration;
 
 /**
  * @describe 网络通用工具类.
+ * <p>
+ * 网络状态相关的方法读取{@link ConnectivityMonitor}维护的快照，不再每次查询ConnectivityManager。
+ * </p>
  * @author adison
  * @date: 2014-10-23 上午10:48:19 <br/>
  */
 public class NetworkUtils {
 
+    /**
+     * ConnectivityManager.getMobileDataEnabled，只反射查找一次
+     */
+    private static volatile Method sGetMobileDataEnabled;
+
+    private static volatile boolean sMobileDataMethodMissing;
+
+    private static final String LOCALHOST = "127.0.0.1";
+
+    /**
+     * 缓存的本机IP，{@link ConnectivityMonitor#getGeneration()}变化后失效
+     */
+    private static volatile CachedIp sIpAddress;
+
+    private static final class CachedIp {
+
+        final String ip;
+
+        /**
+         * 开始查询时的广播计数，查询期间收到广播时缓存随即失效
+         */
+        final int generation;
+
+        CachedIp(String ip, int generation) {
+            this.ip = ip;
+            this.generation = generation;
+        }
+    }
+
     private NetworkUtils() {
     }
 
@@ -48,12 +82,7 @@ public class NetworkUtils {
      * @return boolean 不管wifi，还是mobile net，只有当前在连接状态（可有效传输数据）才返回true,反之false。
      */
     public static boolean isConnected(Context context) {
-        try {
-            NetworkInfo net = getConnManager(context).getActiveNetworkInfo();
-            return net != null && net.isConnected();
-        } catch(Exception e) {
-            return false;
-        }
+        return ConnectivityMonitor.getDefault(context).getState().isConnected();
     }
 
     /**
@@ -62,15 +91,7 @@ public class NetworkUtils {
      * @return boolean 不管wifi，还是mobile net，只有当前在连接状态（可有效传输数据）才返回true,反之false。
      */
     public static boolean isConnectedOrConnecting(Context context) {
-        NetworkInfo[] nets = getConnManager(context).getAllNetworkInfo();
-        if(nets != null) {
-            for(NetworkInfo net: nets) {
-                if(net.isConnectedOrConnecting()) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return ConnectivityMonitor.getDefault(context).getState().isConnectedOrConnecting();
     }
 
     /**
@@ -79,30 +100,14 @@ public class NetworkUtils {
      * @return
      */
     public static NetType getConnectedType(Context context) {
-        try {
-            NetworkInfo net = getConnManager(context).getActiveNetworkInfo();
-            if(net != null) {
-                switch(net.getType()) {
-                    case ConnectivityManager.TYPE_WIFI:
-                        return NetType.NET_WIFI;
-                    case ConnectivityManager.TYPE_MOBILE:
-                        return NetType.NET_MOBILE;
-                    default:
-                        return NetType.NET_OTHER;
-                }
-            }
-            return NetType.NET_NONE;
-        } catch(Exception e) {
-            return NetType.NET_OTHER;
-        }
+        return ConnectivityMonitor.getDefault(context).getState().getType();
     }
 
     /**
      * 是否存在有效的WIFI连接
      */
     public static boolean isWifiConnected(Context context) {
-        NetworkInfo net = getConnManager(context).getActiveNetworkInfo();
-        return net != null && net.getType() == ConnectivityManager.TYPE_WIFI && net.isConnected();
+        return ConnectivityMonitor.getDefault(context).getState().isWifiConnected();
     }
 
     /**
@@ -111,15 +116,14 @@ public class NetworkUtils {
      * @return boolean
      */
     public static boolean isMobileConnected(Context context) {
-        NetworkInfo net = getConnManager(context).getActiveNetworkInfo();
-        return net != null && net.getType() == ConnectivityManager.TYPE_MOBILE && net.isConnected();
+        return ConnectivityMonitor.getDefault(context).getState().isMobileConnected();
     }
 
     /**
      * 检测网络是否为可用状态
      */
     public static boolean isAvailable(Context context) {
-        return isWifiAvailable(context) || (isMobileAvailable(context) && isMobileEnabled(context));
+        return ConnectivityMonitor.getDefault(context).getState().isAvailable();
     }
 
     /**
@@ -128,15 +132,7 @@ public class NetworkUtils {
      * @return boolean wifi为可用状态（不一定成功连接，即Connected）即返回ture
      */
     public static boolean isWifiAvailable(Context context) {
-        NetworkInfo[] nets = getConnManager(context).getAllNetworkInfo();
-        if(nets != null) {
-            for(NetworkInfo net: nets) {
-                if(net.getType() == ConnectivityManager.TYPE_WIFI) {
-                    return net.isAvailable();
-                }
-            }
-        }
-        return false;
+        return ConnectivityMonitor.getDefault(context).getState().isWifiAvailable();
     }
 
     /**
@@ -146,15 +142,7 @@ public class NetworkUtils {
      * @return boolean
      */
     public static boolean isMobileAvailable(Context context) {
-        NetworkInfo[] nets = getConnManager(context).getAllNetworkInfo();
-        if(nets != null) {
-            for(NetworkInfo net: nets) {
-                if(net.getType() == ConnectivityManager.TYPE_MOBILE) {
-                    return net.isAvailable();
-                }
-            }
-        }
-        return false;
+        return ConnectivityMonitor.getDefault(context).getState().isMobileAvailable();
     }
 
     /**
@@ -163,10 +151,29 @@ public class NetworkUtils {
      * @return boolean 打开移动网络返回true，反之false
      */
     public static boolean isMobileEnabled(Context context) {
+        return ConnectivityMonitor.getDefault(context).getState().isMobileEnabled();
+    }
+
+    /**
+     * 直接查询移动网络开关，反射得到的Method缓存起来，找不到时不再重复查找
+     * @param manager
+     * @return 反射失败时默认开启
+     */
+    static boolean isMobileDataEnabled(ConnectivityManager manager) {
+        if(sMobileDataMethodMissing) {
+            return true;
+        }
         try {
-            Method getMobileDataEnabledMethod = ConnectivityManager.class.getDeclaredMethod("getMobileDataEnabled");
-            getMobileDataEnabledMethod.setAccessible(true);
-            return (Boolean)getMobileDataEnabledMethod.invoke(getConnManager(context));
+            Method method = sGetMobileDataEnabled;
+            if(method == null) {
+                method = ConnectivityManager.class.getDeclaredMethod("getMobileDataEnabled");
+                method.setAccessible(true);
+                sGetMobileDataEnabled = method;
+            }
+            return (Boolean)method.invoke(manager);
+        } catch(NoSuchMethodException e) {
+            sMobileDataMethodMissing = true;
+            DebugLog.i(e.getMessage());
         } catch(Exception e) {
             DebugLog.i(e.getMessage());
         }
@@ -223,49 +230,67 @@ public class NetworkUtils {
 
     /**
      * getIpAddress:获取本机网络IP. <br/>
+     * 结果缓存到下一次网络广播为止(同一网络重新分配地址时状态可能不变，因此不只在状态变化时清除)。IPv6-only网络下返回全局IPv6地址
      * @author adison
      * @param context
-     * @return
+     * @return 获取失败返回127.0.0.1
      */
     public static String getIpAddress(Context context) {
+        int generation = ConnectivityMonitor.getDefault(context).getGeneration();
+        String cached = cachedIpAddress(generation);
+        if(cached != null) {
+            return cached;
+        }
+        String ip = null;
         try {
             NetType type = NetworkUtils.getConnectedType(context);
-            if(type != null) {
-                if(NetType.NET_MOBILE == type) {
-                    return getMobileIPAddress();
-                } else if(NetType.NET_WIFI == type) {
-                    return getWifiIPAddress(context);
+            if(NetType.NET_MOBILE == type) {
+                ip = findInterfaceAddress();
+            } else if(NetType.NET_WIFI == type) {
+                ip = queryWifiIPAddress(context);
+                if(ip == null) {
+                    // 尚未分配IPv4地址，或者是IPv6-only的WIFI
+                    ip = findInterfaceAddress();
                 }
             }
         } catch(Exception e) {
             DebugLog.e("getIp-->Error::", e);
         }
-        return "127.0.0.1";
+        if(ip == null) {
+            // 失败不缓存，下次重新获取
+            return LOCALHOST;
+        }
+        cacheIpAddress(ip, generation);
+        return ip;
+    }
+
+    /**
+     * @return 与generation对应的缓存地址，没有时返回null
+     */
+    static String cachedIpAddress(int generation) {
+        CachedIp cached = sIpAddress;
+        return cached != null && cached.generation == generation ? cached.ip : null;
+    }
+
+    static void cacheIpAddress(String ip, int generation) {
+        sIpAddress = new CachedIp(ip, generation);
     }
 
     /**
-     * getMobileIPAddress:获取手机网络ip地址. <br/>
+     * getMobileIPAddress:获取手机网络ip地址，优先IPv4，没有时返回全局IPv6地址. <br/>
      * @author adison
      * @return
      */
     public static String getMobileIPAddress() {
         try {
-            for(Enumeration<NetworkInterface> en = NetworkInterface.getNetworkInterfaces(); en.hasMoreElements();) {
-                NetworkInterface intf = en.nextElement();
-                for(Enumeration<InetAddress> enumIpAddr = intf.getInetAddresses(); enumIpAddr.hasMoreElements();) {
-                    InetAddress inetAddress = enumIpAddr.nextElement();
-                    if( ! inetAddress.isLoopbackAddress() && inetAddress instanceof Inet4Address) {
-                        // if (!inetAddress.isLoopbackAddress() && inetAddress
-                        // instanceof Inet6Address) {
-                        return inetAddress.getHostAddress().toString();
-                    }
-                }
+            String ip = findInterfaceAddress();
+            if(ip != null) {
+                return ip;
             }
         } catch(Exception e) {
             DebugLog.e("getIp-->Error::", e);
-
         }
-        return "127.0.0.1";
+        return LOCALHOST;
     }
 
     /*
@@ -273,19 +298,87 @@ public class NetworkUtils {
      */
     public static String getWifiIPAddress(Context context) {
         try {
-            WifiManager wifiManager = (WifiManager)context.getSystemService(Context.WIFI_SERVICE);
-            WifiInfo wifiInfo = wifiManager.getConnectionInfo();
-            // 获取32位整型IP地址
-            int ipAddress = wifiInfo.getIpAddress();
-            // 返回整型地址转换成“*.*.*.*”地址
-            return String.format("%d.%d.%d.%d", (ipAddress & 0xff), (ipAddress >> 8 & 0xff), (ipAddress >> 16 & 0xff),
-                (ipAddress >> 24 & 0xff));
+            String ip = queryWifiIPAddress(context);
+            return ip == null ? formatIPv4(0) : ip;
         } catch(Exception e) {
-            
             DebugLog.e("getIp-->Error::", e);
-            
         }
-        return "127.0.0.1";
+        return LOCALHOST;
+    }
+
+    /**
+     * 把WifiInfo.getIpAddress()返回的32位整型地址(低字节在前)格式化为"a.b.c.d"，不使用String.format
+     * @param ipAddress
+     * @return
+     */
+    public static String formatIPv4(int ipAddress) {
+        char[] chars = new char[15];
+        int length = 0;
+        for(int shift = 0; shift < 32; shift += 8) {
+            int octet = ipAddress >> shift & 0xff;
+            if(shift > 0) {
+                chars[length ++ ] = '.';
+            }
+            if(octet >= 100) {
+                chars[length ++ ] = (char)('0' + octet / 100);
+            }
+            if(octet >= 10) {
+                chars[length ++ ] = (char)('0' + octet / 10 % 10);
+            }
+            chars[length ++ ] = (char)('0' + octet % 10);
+        }
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * @return WIFI的IPv4地址，未分配时返回null
+     */
+    private static String queryWifiIPAddress(Context context) {
+        WifiManager wifiManager = (WifiManager)context.getSystemService(Context.WIFI_SERVICE);
+        WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+        // 获取32位整型IP地址
+        int ipAddress = wifiInfo == null ? 0 : wifiInfo.getIpAddress();
+        return ipAddress == 0 ? null : formatIPv4(ipAddress);
+    }
+
+    /**
+     * 遍历网络接口，返回第一个非回环的IPv4地址；没有时返回第一个全局IPv6地址(不含链路本地、site-local和fc00::/7唯一本地地址)，
+     * 去掉%scope后缀
+     * @return 都没有返回null
+     * @throws SocketException
+     */
+    private static String findInterfaceAddress() throws SocketException {
+        String ipv6 = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        if(interfaces == null) {
+            return null;
+        }
+        while(interfaces.hasMoreElements()) {
+            NetworkInterface intf = interfaces.nextElement();
+            for(Enumeration<InetAddress> enumIpAddr = intf.getInetAddresses(); enumIpAddr.hasMoreElements();) {
+                InetAddress inetAddress = enumIpAddr.nextElement();
+                if(inetAddress.isLoopbackAddress()) {
+                    continue;
+                }
+                if(inetAddress instanceof Inet4Address) {
+                    return inetAddress.getHostAddress();
+                }
+                if(ipv6 == null && inetAddress instanceof Inet6Address && ! inetAddress.isLinkLocalAddress()
+                    && ! inetAddress.isSiteLocalAddress() && ! isUniqueLocal(inetAddress)) {
+                    String host = inetAddress.getHostAddress();
+                    int scope = host.indexOf('%');
+                    ipv6 = scope < 0 ? host : host.substring(0, scope);
+                }
+            }
+        }
+        return ipv6;
+    }
+
+    /**
+     * fc00::/7唯一本地地址(ULA)，只在内网可达，不能代表本机的公网地址
+     */
+    static boolean isUniqueLocal(InetAddress address) {
+        return (address.getAddress()[0] & 0xfe) == 0xfc;
     }
 
 }
@@ -0,0 +1,343 @@
+package com.topofwave.lib.utils.net;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @describe 合并相同的并发GET请求.
+ * <p>
+ * URL和请求头都相同的GET请求在进行中时，后来的请求不再建立新连接，而是等待同一次请求的结果，
+ * 完成后所有等待者得到同一个{@link HttpClient.Response}(响应体数组是共享的，不要修改)；
+ * 请求失败时每个等待者各自收到一个包装了同一原因的新异常，堆栈属于自己的调用。
+ * 请求完成即从进行中的表移除，之后的请求重新访问网络，不会拿到旧结果。
+ * </p>
+ * <p>
+ * 实际请求在后台线程执行。等待者通过CancellationSignal的OnCancelListener立即结束等待并抛出OperationCanceledException，
+ * 不影响其他等待者；最后一个等待者离开(取消或被中断)时实际请求也被取消并断开连接，之后的相同请求重新发起。
+ * 等待期间会占用调用者CancellationSignal的OnCancelListener。
+ * </p>
+ */
+public class RequestCoalescer {
+
+    private static final int MAX_THREADS = 8;
+
+    private static volatile RequestCoalescer sDefault;
+
+    private static volatile ThreadPoolExecutor sPool;
+
+    private final HttpClient client;
+
+    /**
+     * 进行中的请求，访问时锁住自身；Call的等待者列表也由这把锁保护
+     */
+    private final Map<String, Call> inFlight = new HashMap<String, Call>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong fetchCount = new AtomicLong();
+
+    private final AtomicLong savedCount = new AtomicLong();
+
+    private final AtomicLong canceledCount = new AtomicLong();
+
+    private final AtomicLong abortedCount = new AtomicLong();
+
+    /**
+     * 一次实际请求及其等待者
+     */
+    private class Call implements Runnable {
+
+        final String key;
+
+        final String url;
+
+        final Map<String, String> headers;
+
+        /**
+         * 取消实际请求，最后一个等待者离开时触发
+         */
+        final CancellationSignal fetchSignal = new CancellationSignal();
+
+        final List<Waiter> waiters = new ArrayList<Waiter>();
+
+        boolean finished;
+
+        volatile HttpClient.Response response;
+
+        volatile IOException error;
+
+        volatile RuntimeException failure;
+
+        Call(String key, String url, Map<String, String> headers) {
+            this.key = key;
+            this.url = url;
+            this.headers = headers;
+        }
+
+        @Override
+        public void run() {
+            try {
+                response = client.get(url, headers, fetchSignal);
+            } catch(IOException e) {
+                error = e;
+            } catch(RuntimeException e) {
+                failure = e;
+            } finally {
+                // 先移除再通知，之后的请求不会加入已完成的Call
+                List<Waiter> toWake;
+                synchronized(inFlight) {
+                    if(inFlight.get(key) == this) {
+                        inFlight.remove(key);
+                    }
+                    finished = true;
+                    toWake = new ArrayList<Waiter>(waiters);
+                    waiters.clear();
+                }
+                for(Waiter waiter: toWake) {
+                    waiter.done.countDown();
+                }
+            }
+        }
+
+        /**
+         * 等待者离开，是最后一个时取消实际请求
+         */
+        void leave(Waiter waiter) {
+            synchronized(inFlight) {
+                if( ! waiters.remove(waiter) || ! waiters.isEmpty() || finished) {
+                    return;
+                }
+                // 不再有人等待，之后的相同请求重新发起
+                if(inFlight.get(key) == this) {
+                    inFlight.remove(key);
+                }
+            }
+            abortedCount.incrementAndGet();
+            fetchSignal.cancel();
+        }
+    }
+
+    /**
+     * 一个调用者的等待
+     */
+    private static class Waiter {
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        volatile boolean canceled;
+    }
+
+    /**
+     * 使用{@link HttpClient#getDefault()}的全局实例
+     * @return
+     */
+    public static RequestCoalescer getDefault() {
+        if(sDefault == null) {
+            synchronized(RequestCoalescer.class) {
+                if(sDefault == null) {
+                    sDefault = new RequestCoalescer(HttpClient.getDefault());
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    public RequestCoalescer(HttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * GET请求，与进行中的相同请求合并
+     * @param url
+     * @return
+     * @throws IOException
+     */
+    public HttpClient.Response get(String url) throws IOException {
+        return get(url, null, null);
+    }
+
+    /**
+     * GET请求，与进行中的相同请求合并
+     * @param url
+     * @param headers 附加请求头，可为null。请求头不同的请求不会合并
+     * @param signal 取消信号，可为null。取消结束当前调用者的等待，所有等待者都取消时才取消实际请求
+     * @return 与其他等待者共享的响应
+     * @throws IOException 请求失败，每个等待者收到包装了同一原因的新异常
+     */
+    public HttpClient.Response get(String url, Map<String, String> headers, CancellationSignal signal) throws IOException {
+        if(signal != null) {
+            signal.throwIfCanceled();
+        }
+        requestCount.incrementAndGet();
+        String key = keyOf(url, headers);
+        Call call;
+        Waiter waiter = new Waiter();
+        boolean start = false;
+        synchronized(inFlight) {
+            call = inFlight.get(key);
+            if(call == null) {
+                call = new Call(key, url, headers == null ? null : new HashMap<String, String>(headers));
+                inFlight.put(key, call);
+                start = true;
+            }
+            call.waiters.add(waiter);
+        }
+        if(start) {
+            fetchCount.incrementAndGet();
+            getPool().execute(call);
+        } else {
+            savedCount.incrementAndGet();
+        }
+        await(call, waiter, signal);
+        if(call.error != null) {
+            throw wrap(call.error);
+        }
+        if(call.failure != null) {
+            throw new RuntimeException(call.failure.getMessage(), call.failure);
+        }
+        return call.response;
+    }
+
+    /**
+     * 收到的请求总数
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * 实际发出的网络请求数
+     */
+    public long getFetchCount() {
+        return fetchCount.get();
+    }
+
+    /**
+     * 因合并而省去的网络请求数
+     */
+    public long getSavedCount() {
+        return savedCount.get();
+    }
+
+    /**
+     * 等待中被取消的调用数
+     */
+    public long getCanceledCount() {
+        return canceledCount.get();
+    }
+
+    /**
+     * 因所有等待者都已离开而取消的实际请求数
+     */
+    public long getAbortedCount() {
+        return abortedCount.get();
+    }
+
+    /**
+     * 当前进行中的请求数
+     */
+    public int getInFlightCount() {
+        synchronized(inFlight) {
+            return inFlight.size();
+        }
+    }
+
+    private void await(final Call call, final Waiter waiter, CancellationSignal signal) throws IOException {
+        if(signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+
+                @Override
+                public void onCancel() {
+                    waiter.canceled = true;
+                    waiter.done.countDown();
+                }
+            });
+        }
+        try {
+            waiter.done.await();
+        } catch(InterruptedException e) {
+            canceledCount.incrementAndGet();
+            call.leave(waiter);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + call.url);
+        } finally {
+            if(signal != null) {
+                signal.setOnCancelListener(null);
+            }
+        }
+        if(waiter.canceled) {
+            canceledCount.incrementAndGet();
+            call.leave(waiter);
+            throw new OperationCanceledException();
+        }
+    }
+
+    /**
+     * 为当前调用者生成新的异常，保留常见的子类型以便调用者区分超时和中断
+     */
+    static IOException wrap(IOException shared) {
+        IOException copy;
+        if(shared instanceof SocketTimeoutException) {
+            copy = new SocketTimeoutException(shared.getMessage());
+        } else if(shared instanceof InterruptedIOException) {
+            copy = new InterruptedIOException(shared.getMessage());
+        } else {
+            copy = new IOException(shared.getMessage());
+        }
+        copy.initCause(shared);
+        return copy;
+    }
+
+    private static String keyOf(String url, Map<String, String> headers) {
+        if(headers == null || headers.isEmpty()) {
+            return url;
+        }
+        // 按名称排序，相同的请求头得到相同的key
+        StringBuilder sb = new StringBuilder(url);
+        for(Map.Entry<String, String> header: new TreeMap<String, String>(headers).entrySet()) {
+            sb.append('\n').append(header.getKey()).append(':').append(header.getValue());
+        }
+        return sb.toString();
+    }
+
+    private static ThreadPoolExecutor getPool() {
+        if(sPool == null) {
+            synchronized(RequestCoalescer.class) {
+                if(sPool == null) {
+                    ThreadPoolExecutor pool =
+                        new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                                private final AtomicInteger count = new AtomicInteger();
+
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    Thread thread = new Thread(r, "coalesce-" + count.incrementAndGet());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+                    pool.allowCoreThreadTimeOut(true);
+                    sPool = pool;
+                }
+            }
+        }
+        return sPool;
+    }
+}
@@ -0,0 +1,443 @@
+package com.topofwave.lib.utils.net;
+
+import android.content.Context;
+
+import com.topofwave.lib.utils.debug.DebugLog;
+
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @describe 按网络类型调度的优先级请求队列.
+ * <p>
+ * 任务按{@link Priority}和提交顺序排队，同时运行的任务数取决于当前网络：WIFI下最多{@link #WIFI_CONCURRENCY}个，
+ * 移动网络下{@link #MOBILE_CONCURRENCY}个，其他网络{@link #OTHER_CONCURRENCY}个，无网络时所有任务留在队列中。
+ * {@link Priority#PREFETCH}任务在移动网络或{@link NetworkUtils#isAvailable(Context)}为false时暂缓，
+ * 网络恢复(或切换到WIFI)后按批释放：上一批全部结束才释放下一批，批大小同样取决于网络类型，
+ * 让无线模块集中工作后尽快回到空闲状态，而不是被零散的预取请求反复唤醒。
+ * 网络状态由{@link ConnectivityMonitor}推送。统计排队等待时间、执行时间和吞吐量。
+ * </p>
+ */
+public class RequestScheduler {
+
+    public static final int WIFI_CONCURRENCY = 6;
+
+    public static final int MOBILE_CONCURRENCY = 3;
+
+    public static final int OTHER_CONCURRENCY = 2;
+
+    /**
+     * WIFI下每批释放的预取任务数
+     */
+    public static final int WIFI_PREFETCH_BATCH = 8;
+
+    /**
+     * 其他网络下每批释放的预取任务数
+     */
+    public static final int OTHER_PREFETCH_BATCH = 2;
+
+    /**
+     * 任务优先级，数值小的先执行
+     */
+    public enum Priority {
+        /**
+         * 用户正在等待的请求
+         */
+        HIGH,
+        /**
+         * 普通请求
+         */
+        NORMAL,
+        /**
+         * 预取，可以推迟到WIFI下执行
+         */
+        PREFETCH
+    }
+
+    private static volatile RequestScheduler sDefault;
+
+    private final ConnectivityMonitor monitor;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * 可以立即执行的任务(不含暂缓的预取)，访问时锁住this
+     */
+    private final PriorityQueue<Request> ready = new PriorityQueue<Request>();
+
+    /**
+     * 暂缓的预取任务，按提交顺序
+     */
+    private final ArrayDeque<Request> deferred = new ArrayDeque<Request>();
+
+    private NetType netType;
+
+    private boolean available;
+
+    private int running;
+
+    /**
+     * 当前批次中尚未结束的预取任务数
+     */
+    private int prefetchRunning;
+
+    private boolean shutdown;
+
+    private long sequence;
+
+    private final long createdAt = System.currentTimeMillis();
+
+    private final long[] queueWaitMillis = new long[Priority.values().length];
+
+    private final long[] completedCounts = new long[Priority.values().length];
+
+    private long maxQueueWaitMillis;
+
+    private long totalRunMillis;
+
+    private long failureCount;
+
+    private final ConnectivityMonitor.Listener listener = new ConnectivityMonitor.Listener() {
+
+        @Override
+        public void onConnectivityChanged(ConnectivityMonitor.State previous, ConnectivityMonitor.State current) {
+            onNetworkChanged();
+        }
+    };
+
+    /**
+     * 已提交的任务，可在开始执行前取消
+     */
+    public final class Request implements Comparable<Request> {
+
+        private final Runnable task;
+
+        private final Priority priority;
+
+        private final long seq;
+
+        private final long enqueuedAt;
+
+        private boolean started;
+
+        private boolean canceled;
+
+        Request(Runnable task, Priority priority, long seq) {
+            this.task = task;
+            this.priority = priority;
+            this.seq = seq;
+            this.enqueuedAt = System.currentTimeMillis();
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * 取消尚未开始的任务
+         * @return 任务已开始或已取消时返回false
+         */
+        public boolean cancel() {
+            synchronized(RequestScheduler.this) {
+                if(started || canceled) {
+                    return false;
+                }
+                canceled = true;
+                if( ! deferred.remove(this) && ready.remove(this) && priority == Priority.PREFETCH) {
+                    // 已释放到当前批次中
+                    prefetchRunning -- ;
+                    dispatch();
+                }
+                return true;
+            }
+        }
+
+        @Override
+        public int compareTo(Request another) {
+            if(priority != another.priority) {
+                return priority.ordinal() - another.priority.ordinal();
+            }
+            return seq < another.seq ? - 1 : (seq == another.seq ? 0 : 1);
+        }
+    }
+
+    /**
+     * 获取全局实例
+     * @param context
+     * @return
+     */
+    public static RequestScheduler getDefault(Context context) {
+        if(sDefault == null) {
+            synchronized(RequestScheduler.class) {
+                if(sDefault == null) {
+                    sDefault = new RequestScheduler(context);
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * 创建调度器并监听网络变化
+     * @param context
+     */
+    public RequestScheduler(Context context) {
+        this(ConnectivityMonitor.getDefault(context));
+    }
+
+    /**
+     * @param monitor 网络状态来源
+     */
+    public RequestScheduler(ConnectivityMonitor monitor) {
+        this.monitor = monitor;
+        this.executor =
+            new ThreadPoolExecutor(WIFI_CONCURRENCY, WIFI_CONCURRENCY, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "request-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+        readNetwork(monitor.getState());
+        monitor.addListener(listener);
+    }
+
+    /**
+     * 提交任务
+     * @param task 在调度器线程中执行，通常是一次同步的网络请求
+     * @param priority
+     * @return 可用于取消的句柄
+     */
+    public Request submit(Runnable task, Priority priority) {
+        if(task == null || priority == null) {
+            throw new IllegalArgumentException("task or priority is null");
+        }
+        synchronized(this) {
+            if(shutdown) {
+                throw new IllegalStateException("RequestScheduler is shut down");
+            }
+            Request request = new Request(task, priority, sequence ++ );
+            if(priority == Priority.PREFETCH) {
+                deferred.add(request);
+            } else {
+                ready.add(request);
+            }
+            dispatch();
+            return request;
+        }
+    }
+
+    /**
+     * 重新读取网络状态并调度等待中的任务，网络变化时由{@link ConnectivityMonitor}自动触发
+     */
+    public void refreshNetwork() {
+        monitor.refresh();
+        onNetworkChanged();
+    }
+
+    private void onNetworkChanged() {
+        synchronized(this) {
+            NetType previous = netType;
+            // 读取最新的快照而不是回调参数，即使通知晚到也不会退回旧状态
+            readNetwork(monitor.getState());
+            if(previous != netType) {
+                DebugLog.i("RequestScheduler: network " + previous + " -> " + netType + ", available=" + available + ", queued="
+                    + (ready.size() + deferred.size()));
+            }
+            dispatch();
+        }
+    }
+
+    /**
+     * 停止监听网络变化并丢弃排队中的任务，之后不再接受新任务，已开始的任务继续执行
+     */
+    public void shutdown() {
+        monitor.removeListener(listener);
+        synchronized(this) {
+            shutdown = true;
+            ready.clear();
+            deferred.clear();
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * 当前网络类型
+     */
+    public synchronized NetType getNetType() {
+        return netType;
+    }
+
+    /**
+     * 当前网络允许的并发数
+     */
+    public synchronized int getConcurrency() {
+        return concurrencyFor(netType);
+    }
+
+    /**
+     * 排队中的任务数，包括暂缓的预取任务
+     */
+    public synchronized int getQueuedCount() {
+        return ready.size() + deferred.size();
+    }
+
+    /**
+     * 暂缓的预取任务数
+     */
+    public synchronized int getDeferredCount() {
+        return deferred.size();
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    /**
+     * 已执行完的任务数(含抛出异常的)
+     */
+    public synchronized long getCompletedCount() {
+        long total = 0;
+        for(long count: completedCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * 执行时抛出异常的任务数
+     */
+    public synchronized long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * 某优先级任务的平均排队时间(毫秒)，从提交到开始执行，包括暂缓的时间
+     */
+    public synchronized float getAverageQueueWaitMillis(Priority priority) {
+        long count = completedCounts[priority.ordinal()];
+        return count == 0 ? 0 : (float)queueWaitMillis[priority.ordinal()] / count;
+    }
+
+    /**
+     * 最长排队时间(毫秒)
+     */
+    public synchronized long getMaxQueueWaitMillis() {
+        return maxQueueWaitMillis;
+    }
+
+    /**
+     * 平均执行时间(毫秒)
+     */
+    public synchronized float getAverageRunMillis() {
+        long completed = getCompletedCount();
+        return completed == 0 ? 0 : (float)totalRunMillis / completed;
+    }
+
+    /**
+     * 创建以来每秒完成的任务数
+     */
+    public synchronized float getThroughputPerSecond() {
+        long elapsed = System.currentTimeMillis() - createdAt;
+        return elapsed <= 0 ? 0 : getCompletedCount() * 1000f / elapsed;
+    }
+
+    /**
+     * 各网络类型下的并发数
+     */
+    static int concurrencyFor(NetType type) {
+        if(type == null) {
+            return 0;
+        }
+        switch(type) {
+            case NET_WIFI:
+                return WIFI_CONCURRENCY;
+            case NET_MOBILE:
+                return MOBILE_CONCURRENCY;
+            case NET_OTHER:
+                return OTHER_CONCURRENCY;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * 各网络类型下每批释放的预取任务数，0表示暂缓
+     */
+    private int prefetchBatchFor(NetType type) {
+        if( ! available) {
+            return 0;
+        }
+        if(type == NetType.NET_WIFI) {
+            return WIFI_PREFETCH_BATCH;
+        }
+        return type == NetType.NET_OTHER ? OTHER_PREFETCH_BATCH : 0;
+    }
+
+    private void readNetwork(ConnectivityMonitor.State state) {
+        netType = state.getType();
+        available = netType != NetType.NET_NONE && state.isAvailable();
+    }
+
+    /**
+     * 在持有锁时调用：释放一批预取任务，再按并发限制启动任务
+     */
+    private void dispatch() {
+        if(prefetchRunning == 0 && ! deferred.isEmpty()) {
+            int batch = prefetchBatchFor(netType);
+            for(int i = 0; i < batch && ! deferred.isEmpty(); i ++ ) {
+                ready.add(deferred.poll());
+                prefetchRunning ++ ;
+            }
+        }
+        int limit = concurrencyFor(netType);
+        while(running < limit && ! ready.isEmpty()) {
+            final Request request = ready.poll();
+            request.started = true;
+            running ++ ;
+            final long wait = System.currentTimeMillis() - request.enqueuedAt;
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    boolean failed = false;
+                    try {
+                        request.task.run();
+                    } catch(RuntimeException e) {
+                        failed = true;
+                        DebugLog.e("RequestScheduler: task failed", e);
+                    } finally {
+                        finished(request, wait, System.currentTimeMillis() - start, failed);
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void finished(Request request, long wait, long runMillis, boolean failed) {
+        running -- ;
+        if(request.priority == Priority.PREFETCH) {
+            prefetchRunning -- ;
+        }
+        completedCounts[request.priority.ordinal()] ++ ;
+        queueWaitMillis[request.priority.ordinal()] += wait;
+        maxQueueWaitMillis = Math.max(maxQueueWaitMillis, wait);
+        totalRunMillis += runMillis;
+        if(failed) {
+            failureCount ++ ;
+        }
+        dispatch();
+    }
+}
@@ -0,0 +1,510 @@
+package com.topofwave.lib.utils.net;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+
+import com.topofwave.lib.utils.debug.DebugLog;
+import com.topofwave.lib.utils.file.FileUtils;
+import com.topofwave.lib.utils.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @describe 多连接分段下载.
+ * <p>
+ * 先用Range: bytes=0-0探测资源大小和是否支持Range，支持时把文件分成若干段，在有界的共享连接池上并行下载，
+ * 每段通过FileChannel.transferFrom定位写入目标文件中的对应位置，不移动文件位置，各段不需要共享的写缓冲。
+ * 输入是用Channels.newChannel包装的HTTP流，transferFrom内部仍会经过一个临时缓冲区复制，并不是零拷贝。
+ * 段数根据{@link NetworkUtils#getConnectedType(Context)}决定：WIFI下较多，移动网络下较少；
+ * 服务器不支持Range或文件较小时退化为单连接。某一段连接中断时从该段已写入的位置重试，单连接时从头重试。
+ * 每段请求都带上探测得到的ETag(或Last-Modified)作为If-Range，下载过程中资源被修改时服务器返回完整内容，
+ * 此时放弃下载而不是把新旧两个版本拼在一起。
+ * </p>
+ */
+public class SegmentedDownloader {
+
+    /**
+     * 共享连接池大小，即所有下载合计的最大并发连接数
+     */
+    public static final int MAX_CONNECTIONS = 6;
+
+    /**
+     * WIFI下的段数
+     */
+    public static final int WIFI_SEGMENTS = 4;
+
+    /**
+     * 移动网络及其他网络下的段数
+     */
+    public static final int MOBILE_SEGMENTS = 2;
+
+    /**
+     * 每段最小字节数，小文件不分段
+     */
+    public static final long MIN_SEGMENT_SIZE = 512 * 1024;
+
+    /**
+     * 每次transferFrom的最大字节数，决定取消和进度的响应粒度
+     */
+    private static final long TRANSFER_CHUNK = 256 * 1024;
+
+    /**
+     * 每段连接中断后的重试次数
+     */
+    private static final int MAX_RETRIES = 2;
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static volatile ThreadPoolExecutor sPool;
+
+    private final Context context;
+
+    private int segmentCount;
+
+    private int connectTimeout = 15 * 1000;
+
+    private int readTimeout = 20 * 1000;
+
+    /**
+     * 下载结果
+     */
+    public static class Result {
+
+        private final long length;
+
+        private final int segments;
+
+        private final long elapsedMillis;
+
+        Result(long length, int segments, long elapsedMillis) {
+            this.length = length;
+            this.segments = segments;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * 实际使用的段数，1表示单连接
+         */
+        public int getSegments() {
+            return segments;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * 平均速度，字节/秒
+         */
+        public long getBytesPerSecond() {
+            return elapsedMillis == 0 ? length * 1000 : length * 1000 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "SegmentedDownloader.Result[" + length + " bytes, " + segments + " segments, " + elapsedMillis + "ms, "
+                + getBytesPerSecond() + " B/s]";
+        }
+    }
+
+    /**
+     * @param context 用于判断网络类型，可为null(按移动网络处理)
+     */
+    public SegmentedDownloader(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * 固定段数，不再根据网络类型决定。0表示恢复自动
+     */
+    public SegmentedDownloader setSegmentCount(int segmentCount) {
+        this.segmentCount = segmentCount;
+        return this;
+    }
+
+    public SegmentedDownloader setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    public SegmentedDownloader setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * 不同网络类型下的段数
+     * @param type
+     * @return
+     */
+    public static int segmentsFor(NetType type) {
+        return type == NetType.NET_WIFI ? WIFI_SEGMENTS : MOBILE_SEGMENTS;
+    }
+
+    /**
+     * 下载到目标文件，阻塞直到完成。失败或取消时删除目标文件
+     * @param url
+     * @param dest 目标文件，已存在时覆盖
+     * @param listener 进度回调，在调用线程中执行，可为null
+     * @param signal 取消信号，可为null。取消时抛出OperationCanceledException
+     * @return
+     * @throws IOException
+     */
+    public Result download(String url, File dest, FileUtils.ProgressListener listener, CancellationSignal signal)
+        throws IOException {
+        long start = System.currentTimeMillis();
+        URL uri = new URL(url);
+        Probe probe = probeLength(uri);
+        long length = probe.length;
+        int segments = 1;
+        if(length > 0) {
+            int wanted = segmentCount > 0 ? segmentCount : segmentsFor(context == null ? NetType.NET_MOBILE : NetworkUtils
+                .getConnectedType(context));
+            segments = (int)Math.max(1, Math.min(wanted, length / MIN_SEGMENT_SIZE));
+        }
+        File dir = dest.getAbsoluteFile().getParentFile();
+        if(dir != null && ! dir.exists()) {
+            dir.mkdirs();
+        }
+        RandomAccessFile raf = new RandomAccessFile(dest, "rw");
+        boolean completed = false;
+        try {
+            FileChannel channel = raf.getChannel();
+            if(length < 0) {
+                // 不支持Range或大小未知，单连接顺序写入
+                raf.setLength(0);
+                length = new Segment(uri, channel, 0, - 1, null, signal).downloadWithRetry(false);
+            } else if(length == 0) {
+                raf.setLength(0);
+            } else {
+                raf.setLength(length);
+                runSegments(uri, channel, length, segments, probe.validator, listener, signal);
+            }
+            channel.force(false);
+            completed = true;
+            if(listener != null) {
+                listener.onProgress(length, length);
+            }
+        } finally {
+            IOUtils.closeQuietly(raf);
+            if( ! completed) {
+                dest.delete();
+            }
+        }
+        Result result = new Result(length, segments, System.currentTimeMillis() - start);
+        DebugLog.i(result.toString());
+        return result;
+    }
+
+    private void runSegments(URL uri, FileChannel channel, long length, int count, String validator,
+        FileUtils.ProgressListener listener, CancellationSignal signal) throws IOException {
+        final CountDownLatch done = new CountDownLatch(count);
+        final Segment[] segments = new Segment[count];
+        // 第一个失败的原因，其他段随后因中止而失败
+        final AtomicReference<Throwable> firstError = new AtomicReference<Throwable>();
+        long size = length / count;
+        for(int i = 0; i < count; i ++ ) {
+            long from = i * size;
+            long to = i == count - 1 ? length - 1 : from + size - 1;
+            segments[i] = new Segment(uri, channel, from, to, validator, signal);
+        }
+        for(final Segment segment: segments) {
+            getPool().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        segment.downloadWithRetry(true);
+                    } catch(Throwable t) {
+                        firstError.compareAndSet(null, t);
+                        // 一段失败时尽快停止其他段
+                        for(Segment other: segments) {
+                            other.aborted = true;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        boolean interrupted = false;
+        while(true) {
+            try {
+                if(done.await(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch(InterruptedException e) {
+                interrupted = true;
+                for(Segment segment: segments) {
+                    segment.aborted = true;
+                }
+            }
+            if(listener != null) {
+                long current = 0;
+                for(Segment segment: segments) {
+                    current += segment.written.get();
+                }
+                listener.onProgress(current, length);
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted");
+        }
+        Throwable error = firstError.get();
+        if(error instanceof IOException) {
+            throw (IOException)error;
+        } else if(error instanceof RuntimeException) {
+            throw (RuntimeException)error;
+        } else if(error != null) {
+            throw new IOException(error.toString());
+        }
+    }
+
+    /**
+     * 探测结果
+     */
+    private static class Probe {
+
+        /**
+         * 支持Range时为总字节数，否则为-1
+         */
+        final long length;
+
+        /**
+         * 用作If-Range的强ETag或Last-Modified，没有时为null
+         */
+        final String validator;
+
+        Probe(long length, String validator) {
+            this.length = length;
+            this.validator = validator;
+        }
+    }
+
+    /**
+     * 探测资源大小和校验值
+     */
+    private Probe probeLength(URL uri) throws IOException {
+        HttpURLConnection connection = openConnection(uri);
+        try {
+            connection.setRequestProperty("Range", "bytes=0-0");
+            int code = connection.getResponseCode();
+            if(code == HTTP_RANGE_NOT_SATISFIABLE) {
+                // 空资源没有第0个字节，服务器返回416和Content-Range: bytes */0
+                if(parseTotalLength(connection.getHeaderField("Content-Range")) == 0) {
+                    return new Probe(0, null);
+                }
+                return new Probe(- 1, null);
+            }
+            if(code != HttpURLConnection.HTTP_PARTIAL) {
+                if(code / 100 != 2) {
+                    throw new IOException("HTTP " + code + " for " + uri);
+                }
+                return new Probe(- 1, null);
+            }
+            return new Probe(parseTotalLength(connection.getHeaderField("Content-Range")), validatorOf(connection));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * If-Range只能使用强ETag，没有时退回Last-Modified
+     */
+    static String validatorOf(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        if(etag != null && ! etag.startsWith("W/")) {
+            return etag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * 解析Content-Range: bytes 0-0/12345中的总长度
+     * @return 未知返回-1
+     */
+    static long parseTotalLength(String contentRange) {
+        if(contentRange == null) {
+            return - 1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if(slash < 0) {
+            return - 1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch(NumberFormatException e) {
+            // 总长度为*
+            return - 1;
+        }
+    }
+
+    private HttpURLConnection openConnection(URL uri) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)uri.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        // 压缩后的Range和长度与文件不对应
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    private static ThreadPoolExecutor getPool() {
+        if(sPool == null) {
+            synchronized(SegmentedDownloader.class) {
+                if(sPool == null) {
+                    ThreadPoolExecutor pool =
+                        new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, 30, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                                private final AtomicInteger count = new AtomicInteger();
+
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    Thread thread = new Thread(r, "download-" + count.incrementAndGet());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+                    pool.allowCoreThreadTimeOut(true);
+                    sPool = pool;
+                }
+            }
+        }
+        return sPool;
+    }
+
+    /**
+     * 文件中的一段[from, to]
+     */
+    private class Segment {
+
+        final URL uri;
+
+        final FileChannel channel;
+
+        final long from;
+
+        /**
+         * 包含，-1表示读到流结束
+         */
+        final long to;
+
+        /**
+         * If-Range的值，可为null
+         */
+        final String validator;
+
+        final CancellationSignal signal;
+
+        final AtomicLong written = new AtomicLong();
+
+        volatile boolean aborted;
+
+        Segment(URL uri, FileChannel channel, long from, long to, String validator, CancellationSignal signal) {
+            this.uri = uri;
+            this.channel = channel;
+            this.from = from;
+            this.to = to;
+            this.validator = validator;
+            this.signal = signal;
+        }
+
+        /**
+         * 下载本段，连接中断时重试：Range请求从已写入的位置继续，否则截断后从头下载
+         * @return 本段总字节数
+         */
+        long downloadWithRetry(boolean ranged) throws IOException {
+            for(int attempt = 0;; attempt ++ ) {
+                try {
+                    return download(ranged);
+                } catch(IOException e) {
+                    if(attempt >= MAX_RETRIES || aborted || (signal != null && signal.isCanceled())) {
+                        throw e;
+                    }
+                    DebugLog.w("Segment " + from + "-" + to + " failed at " + written.get() + ", retrying: " + e.getMessage());
+                    if( ! ranged) {
+                        channel.truncate(from);
+                        written.set(0);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 从已写入的位置继续下载本段
+         * @param ranged 是否发送Range请求
+         * @return 本段总字节数
+         */
+        long download(boolean ranged) throws IOException {
+            long position = from + written.get();
+            HttpURLConnection connection = openConnection(uri);
+            try {
+                if(ranged) {
+                    connection.setRequestProperty("Range", "bytes=" + position + "-" + to);
+                    if(validator != null) {
+                        connection.setRequestProperty("If-Range", validator);
+                    }
+                }
+                int code = connection.getResponseCode();
+                if(ranged && code == HttpURLConnection.HTTP_OK && validator != null) {
+                    // If-Range不匹配，资源已改变，重试也只会得到新版本的完整内容
+                    aborted = true;
+                    throw new IOException("Resource changed during download: " + uri);
+                }
+                if(ranged ? code != HttpURLConnection.HTTP_PARTIAL : code / 100 != 2) {
+                    throw new IOException("HTTP " + code + " for " + uri + (ranged ? " range " + position + "-" + to : ""));
+                }
+                InputStream in = connection.getInputStream();
+                ReadableByteChannel source = Channels.newChannel(in);
+                try {
+                    while(to < 0 || position <= to) {
+                        if(aborted) {
+                            throw new IOException("Aborted");
+                        }
+                        if(signal != null) {
+                            signal.throwIfCanceled();
+                        }
+                        long count = to < 0 ? TRANSFER_CHUNK : Math.min(TRANSFER_CHUNK, to - position + 1);
+                        long transferred = channel.transferFrom(source, position, count);
+                        if(transferred <= 0) {
+                            if(to < 0) {
+                                break;
+                            }
+                            throw new IOException("Unexpected end of stream at " + position + ", expected up to " + to);
+                        }
+                        position += transferred;
+                        written.addAndGet(transferred);
+                    }
+                } finally {
+                    IOUtils.closeQuietly(source);
+                }
+                return position - from;
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+}
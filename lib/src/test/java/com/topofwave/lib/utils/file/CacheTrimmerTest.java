@@ -0,0 +1,146 @@
+package com.topofwave.lib.utils.file;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CacheTrimmerTest {
+
+    private static final long HOUR = 3600 * 1000;
+
+    private File dir;
+
+    private long now;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("trimmer", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        now = System.currentTimeMillis();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * 超出容量时从最旧的文件开始删除，直到不超过目标值
+     */
+    @Test
+    public void budgetDeletesOldestFirst() throws IOException {
+        File sub = new File(dir, "sub");
+        assertTrue(sub.mkdir());
+        for(int i = 0; i < 10; i ++ ) {
+            // file-0最旧
+            write(new File(i % 2 == 0 ? dir : sub, "file-" + i), 100, now - (20 - i) * HOUR);
+        }
+        CacheTrimmer.Result result = CacheTrimmer.trim(new File[] {dir}, 450, CacheTrimmer.NO_LIMIT, null);
+        assertEquals(10, result.getFilesScanned());
+        assertEquals(1000, result.getBytesScanned());
+        assertEquals(6, result.getFilesDeleted());
+        assertEquals(600, result.getBytesFreed());
+        assertEquals(400, result.getBytesRemaining());
+        for(int i = 0; i < 10; i ++ ) {
+            assertEquals("file-" + i, i >= 6, new File(i % 2 == 0 ? dir : sub, "file-" + i).exists());
+        }
+        assertTrue(sub.isDirectory());
+    }
+
+    @Test
+    public void maxAgeDeletesExpired() throws IOException {
+        for(int i = 1; i <= 5; i ++ ) {
+            write(new File(dir, "day-" + i), 100, now - i * 24 * HOUR);
+        }
+        CacheTrimmer.Result result = CacheTrimmer.trim(new File[] {dir}, CacheTrimmer.NO_LIMIT, 60 * HOUR, null);
+        assertEquals(3, result.getFilesDeleted());
+        assertTrue(new File(dir, "day-1").exists());
+        assertTrue(new File(dir, "day-2").exists());
+        assertFalse(new File(dir, "day-3").exists());
+        // 没有任何限制时不删除
+        result = CacheTrimmer.trim(new File[] {dir}, CacheTrimmer.NO_LIMIT, CacheTrimmer.NO_LIMIT, null);
+        assertEquals(0, result.getFilesDeleted());
+    }
+
+    /**
+     * 最近修改的文件计入容量但不删除
+     */
+    @Test
+    public void keepsRecentlyModified() throws IOException {
+        write(new File(dir, "old"), 100, now - HOUR);
+        write(new File(dir, "fresh"), 100, now);
+        CacheTrimmer.Result result = CacheTrimmer.trim(new File[] {dir}, 0, CacheTrimmer.NO_LIMIT, null);
+        assertEquals(2, result.getFilesScanned());
+        assertEquals(1, result.getFilesDeleted());
+        assertEquals(100, result.getBytesRemaining());
+        assertTrue(new File(dir, "fresh").exists());
+        assertFalse(new File(dir, "old").exists());
+    }
+
+    @Test
+    public void skipsInProgressFiles() throws IOException {
+        String[] names = {"a" + FileUtils.TEMP_SUFFIX, "b" + ResumableSave.PART_SUFFIX, "b" + ResumableSave.CHECKPOINT_SUFFIX};
+        for(String name: names) {
+            write(new File(dir, name), 100, now - 48 * HOUR);
+        }
+        write(new File(dir, "c"), 100, now - 48 * HOUR);
+        CacheTrimmer.Result result = CacheTrimmer.trim(new File[] {dir}, 0, HOUR, null);
+        assertEquals(1, result.getFilesScanned());
+        assertEquals(1, result.getFilesDeleted());
+        for(String name: names) {
+            assertTrue(name, new File(dir, name).exists());
+        }
+    }
+
+    /**
+     * DiskLruCache和PackStore的目录连同子目录整个跳过
+     */
+    @Test
+    public void skipsManagedDirectories() throws IOException {
+        File lru = new File(dir, "lru");
+        DiskLruCache cache = DiskLruCache.open(lru, 1, 1024 * 1024);
+        cache.close();
+        File lruChild = new File(new File(lru, "nested"), "entry");
+        assertTrue(lruChild.getParentFile().mkdir());
+        write(lruChild, 100, now - 48 * HOUR);
+
+        File pack = new File(dir, "pack");
+        PackStore store = PackStore.open(pack);
+        store.put("key", new byte[100]);
+        store.close();
+        assertTrue(new File(pack, PackStore.MARKER_FILE).isFile());
+        for(File file: pack.listFiles()) {
+            assertTrue(file.setLastModified(now - 48 * HOUR));
+        }
+        int packFiles = pack.list().length;
+
+        write(new File(dir, "plain"), 100, now - 48 * HOUR);
+        CacheTrimmer.Result result = CacheTrimmer.trim(new File[] {dir}, 0, HOUR, null);
+        assertEquals(1, result.getFilesScanned());
+        assertEquals(1, result.getFilesDeleted());
+        assertTrue(lruChild.exists());
+        assertTrue(new File(lru, DiskLruCache.JOURNAL_FILE).exists());
+        assertEquals(packFiles, pack.list().length);
+        store = PackStore.open(pack);
+        try {
+            assertEquals(100, store.get("key").length);
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void write(File file, int length, long lastModified) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(new byte[length]);
+        os.close();
+        assertTrue(file.setLastModified(lastModified));
+    }
+}
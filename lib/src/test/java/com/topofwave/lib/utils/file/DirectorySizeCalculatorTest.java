@@ -0,0 +1,139 @@
+package com.topofwave.lib.utils.file;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DirectorySizeCalculatorTest {
+
+    private File dir;
+
+    private File sub;
+
+    private DirectorySizeCalculator calculator;
+
+    private long past;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("dirsize", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        sub = new File(dir, "sub");
+        assertTrue(sub.mkdir());
+        calculator = DirectorySizeCalculator.getDefault();
+        calculator.clear();
+        past = System.currentTimeMillis() / 1000 * 1000 - 3600 * 1000;
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void matchesUncachedSize() throws IOException {
+        write(new File(dir, "a"), 100);
+        write(new File(sub, "b"), 200);
+        age();
+        assertEquals(300, DirectorySizeCalculator.calculate(dir));
+        assertEquals(300, calculator.getSize(dir));
+        long reused = calculator.getDirsReused();
+        assertEquals(300, calculator.getSize(dir));
+        // 两个目录都没有变化
+        assertEquals(reused + 2, calculator.getDirsReused());
+        assertEquals(200, calculator.getSize(new File(dir, "sub/b")));
+        assertEquals(0, calculator.getSize(new File(dir, "missing")));
+    }
+
+    /**
+     * 每次增加、删除、原地改写后重复查询，原地改写只能靠写入路径的通知发现
+     */
+    @Test
+    public void repeatedQueriesSeeChanges() throws Exception {
+        write(new File(dir, "a"), 100);
+        check(100);
+
+        // 增加
+        FileUtils.save(new byte[200], new File(sub, "b").getPath());
+        check(300);
+
+        // 原地改写
+        FileUtils.save(new byte[500], new File(sub, "b").getPath());
+        check(600);
+        FileUtils.saveAtomic(new byte[50], new File(dir, "a").getPath());
+        check(550);
+        FileUtils.copy(new File(sub, "b"), new File(dir, "a"));
+        check(1000);
+        WriteBehindQueue queue = new WriteBehindQueue(1024 * 1024, 16, false);
+        queue.write(new File(sub, "b").getPath(), new byte[10]);
+        queue.close();
+        check(510);
+        PackStore store = PackStore.open(new File(sub, "pack"));
+        try {
+            check(510);
+            store.put("key", new byte[1000]);
+            store.flush();
+            check(DirectorySizeCalculator.calculate(dir));
+            assertTrue(calculator.getSize(dir) > 1510);
+        } finally {
+            store.close();
+        }
+
+        // 删除
+        assertTrue(FileUtils.deleteDirectory(new File(sub, "pack")));
+        assertTrue(new File(dir, "a").delete());
+        check(10);
+    }
+
+    /**
+     * 本库之外的原地改写需要调用invalidate
+     */
+    @Test
+    public void externalWriteNeedsInvalidate() throws IOException {
+        File file = new File(sub, "a");
+        write(file, 100);
+        age();
+        assertEquals(100, calculator.getSize(dir));
+        write(file, 300);
+        age();
+        assertEquals(100, calculator.getSize(dir));
+        calculator.invalidate(dir);
+        assertEquals(300, calculator.getSize(dir));
+    }
+
+    /**
+     * 查询一次，再把目录修改时间调回过去后用缓存查询一次。增删条目会改变目录修改时间，第一次查询能看到；
+     * 之后的缓存查询与原地改写一样，目录看起来没有变化
+     */
+    private void check(long expected) {
+        assertEquals(expected, calculator.getSize(dir));
+        age();
+        assertEquals(expected, calculator.getSize(dir));
+        assertEquals(expected, calculator.getSize(dir));
+    }
+
+    /**
+     * 把目录修改时间每次都调回同一个过去的时间，查询时目录看起来没有变化
+     */
+    private void age() {
+        File[] dirs = {dir, sub, new File(sub, "pack")};
+        for(File d: dirs) {
+            if(d.isDirectory()) {
+                assertTrue(d.setLastModified(past));
+            }
+        }
+    }
+
+    private static void write(File file, int length) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(new byte[length]);
+        os.close();
+    }
+}
@@ -0,0 +1,137 @@
+package com.topofwave.lib.utils.file;
+
+import android.os.StatFs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiskSpaceManagerTest {
+
+    private File dir;
+
+    /**
+     * 读数由测试控制的管理器
+     */
+    private static class FakeVolumeManager extends DiskSpaceManager {
+
+        volatile long available;
+
+        volatile long total;
+
+        FakeVolumeManager(long available, long total) {
+            super(60 * 1000);
+            this.available = available;
+            this.total = total;
+        }
+
+        @Override
+        StatFs stat(File root, StatFs statFs, long[] out) {
+            out[0] = available;
+            out[1] = total;
+            return null;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("diskspace", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * 回调中裁剪缓存会等待FileWorkers任务，回调本身不能占用FileWorkers线程
+     */
+    @Test
+    public void listenerCanTrimCaches() throws Exception {
+        for(int i = 0; i < 200; i ++ ) {
+            write(new File(dir, "cache-" + i), 100);
+        }
+        FakeVolumeManager manager = new FakeVolumeManager(1000, 10000);
+        manager.registerVolume(dir);
+        final CountDownLatch trimmed = new CountDownLatch(1);
+        final String[] thread = new String[1];
+        final CacheTrimmer.Result[] result = new CacheTrimmer.Result[1];
+        manager.addLowSpaceListener(dir, 500, new DiskSpaceManager.LowSpaceListener() {
+
+            @Override
+            public void onLowSpace(File volume, long availableBytes, long thresholdBytes) {
+                thread[0] = Thread.currentThread().getName();
+                result[0] = CacheTrimmer.trim(new File[] {dir}, 0, CacheTrimmer.NO_LIMIT, null);
+                trimmed.countDown();
+            }
+        });
+        manager.onWritten(new File(dir, "big"), 600);
+        assertTrue("listener did not finish trimming", trimmed.await(10, TimeUnit.SECONDS));
+        assertFalse(thread[0], thread[0].startsWith("file-worker-"));
+        assertEquals(200, result[0].getFilesDeleted());
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void firesOnceUntilRecovered() throws Exception {
+        FakeVolumeManager manager = new FakeVolumeManager(1000, 10000);
+        manager.registerVolume(dir);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch[] fired = {new CountDownLatch(1)};
+        manager.addLowSpaceListener(dir, 500, new DiskSpaceManager.LowSpaceListener() {
+
+            @Override
+            public void onLowSpace(File volume, long availableBytes, long thresholdBytes) {
+                calls.incrementAndGet();
+                fired[0].countDown();
+            }
+        });
+        File file = new File(dir, "file");
+        manager.onWritten(file, 600);
+        assertTrue(fired[0].await(10, TimeUnit.SECONDS));
+        manager.onWritten(file, 100);
+        // 回到阈值以上后重新生效
+        manager.onDeleted(file, 700);
+        fired[0] = new CountDownLatch(1);
+        manager.onWritten(file, 700);
+        assertTrue(fired[0].await(10, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void unknownVolumeDoesNotFire() throws Exception {
+        FakeVolumeManager manager = new FakeVolumeManager(0, 0);
+        manager.registerVolume(dir);
+        final AtomicInteger calls = new AtomicInteger();
+        manager.addLowSpaceListener(dir, 500, new DiskSpaceManager.LowSpaceListener() {
+
+            @Override
+            public void onLowSpace(File volume, long availableBytes, long thresholdBytes) {
+                calls.incrementAndGet();
+            }
+        });
+        manager.onWritten(new File(dir, "file"), 100);
+        assertTrue(manager.ensureSpace(new File(dir, "file"), 100));
+        assertEquals(0, calls.get());
+    }
+
+    private static void write(File file, int length) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(new byte[length]);
+        os.close();
+        // 早于CacheTrimmer保护的最近写入窗口
+        assertTrue(file.setLastModified(System.currentTimeMillis() - 3600 * 1000));
+    }
+}
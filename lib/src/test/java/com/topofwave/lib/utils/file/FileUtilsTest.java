@@ -0,0 +1,227 @@
+package com.topofwave.lib.utils.file;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class FileUtilsTest {
+
+    private static final int BENCHMARK_SIZE = 64 * 1024 * 1024;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("fileutils", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void copyInChunks() throws IOException {
+        int chunk = 4096;
+        int[] lengths = {0, 1, chunk - 1, chunk, chunk * 3 + 5};
+        for(int length: lengths) {
+            byte[] data = data(length);
+            File source = write(new File(dir, "source-" + length), data);
+            File dest = new File(dir, "copy/" + length);
+            final long[] last = {- 1, 0};
+            FileUtils.copy(source, dest, chunk, new FileUtils.ProgressListener() {
+
+                @Override
+                public void onProgress(long current, long total) {
+                    assertTrue(current > last[0]);
+                    last[0] = current;
+                    last[1] = total;
+                }
+            }, null);
+            assertArrayEquals("length " + length, data, read(dest));
+            if(length > 0) {
+                assertEquals(length, last[0]);
+                assertEquals(length, last[1]);
+            }
+        }
+    }
+
+    @Test
+    public void copyTruncatesLongerDest() throws IOException {
+        byte[] data = data(10000);
+        File source = write(new File(dir, "source"), data);
+        File dest = write(new File(dir, "dest"), data(50000));
+        FileUtils.copy(source, dest);
+        assertArrayEquals(data, read(dest));
+    }
+
+    @Test
+    public void copyMissingSource() {
+        try {
+            FileUtils.copy(new File(dir, "missing"), new File(dir, "dest"));
+            fail("missing source");
+        } catch(IOException expected) {
+            // 原实现只打印日志，现在抛出异常
+        }
+    }
+
+    @Test
+    public void cancelDeletesPartialCopy() throws IOException {
+        File source = write(new File(dir, "source"), data(100 * 1024));
+        File dest = new File(dir, "dest");
+        final CancellationSignal signal = new CancellationSignal();
+        try {
+            FileUtils.copy(source, dest, 8 * 1024, new FileUtils.ProgressListener() {
+
+                @Override
+                public void onProgress(long current, long total) {
+                    signal.cancel();
+                }
+            }, signal);
+            fail("canceled");
+        } catch(OperationCanceledException expected) {
+            // 第一块之后取消
+        }
+        assertFalse(dest.exists());
+    }
+
+    /**
+     * 与原来一次映射整个文件以及8KB流复制的方式对比耗时
+     */
+    @Test
+    public void copyBenchmark() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        File source = write(new File(dir, "source"), data(BENCHMARK_SIZE));
+        File dest = new File(dir, "dest");
+        // 预热
+        FileUtils.copy(source, dest);
+        mapCopy(source, dest);
+        streamCopy(source, dest);
+        long start = System.nanoTime();
+        FileUtils.copy(source, dest);
+        long chunked = System.nanoTime() - start;
+        assertEquals(BENCHMARK_SIZE, dest.length());
+        start = System.nanoTime();
+        mapCopy(source, dest);
+        long mapped = System.nanoTime() - start;
+        start = System.nanoTime();
+        streamCopy(source, dest);
+        long streamed = System.nanoTime() - start;
+        System.out.println("copy 64MB: transferTo in 8MB chunks " + chunked / 1000000 + "ms, map whole file "
+            + mapped / 1000000 + "ms, 8KB stream " + streamed / 1000000 + "ms");
+    }
+
+    @Test
+    public void moveRenamesWithinFileSystem() throws IOException {
+        byte[] data = data(100 * 1024);
+        File source = write(new File(dir, "source"), data);
+        File dest = new File(dir, "moved/dest");
+        assertEquals(FileUtils.MoveMethod.RENAME, FileUtils.moveFile(source.getPath(), dest.getPath()));
+        assertFalse(source.exists());
+        assertArrayEquals(data, read(dest));
+        // 覆盖已存在的目标
+        source = write(new File(dir, "source"), data(10));
+        assertEquals(FileUtils.MoveMethod.RENAME, FileUtils.moveFile(source.getPath(), dest.getPath()));
+        assertArrayEquals(data(10), read(dest));
+    }
+
+    @Test
+    public void moveMissingSource() {
+        try {
+            FileUtils.moveFile(new File(dir, "missing").getPath(), new File(dir, "dest").getPath());
+            fail("missing source");
+        } catch(IOException expected) {
+            // 源文件不存在
+        }
+    }
+
+    /**
+     * 同一文件系统内重命名与原来复制后删除的方式对比耗时
+     */
+    @Test
+    public void moveBenchmark() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        File source = write(new File(dir, "source"), data(BENCHMARK_SIZE));
+        File dest = new File(dir, "dest");
+        long start = System.nanoTime();
+        FileUtils.copy(source, dest);
+        assertTrue(source.delete());
+        long copied = System.nanoTime() - start;
+        start = System.nanoTime();
+        assertEquals(FileUtils.MoveMethod.RENAME, FileUtils.moveFile(dest.getPath(), source.getPath()));
+        long renamed = System.nanoTime() - start;
+        assertEquals(BENCHMARK_SIZE, source.length());
+        System.out.println("move 64MB: copy + delete " + copied / 1000 + "us, rename " + renamed / 1000 + "us");
+    }
+
+    /**
+     * 原来的实现：映射整个源文件后写入
+     */
+    private static void mapCopy(File source, File dest) throws IOException {
+        FileInputStream fis = new FileInputStream(source);
+        FileChannel fic = fis.getChannel();
+        MappedByteBuffer buffer = fic.map(FileChannel.MapMode.READ_ONLY, 0, source.length());
+        fis.close();
+        FileOutputStream fos = new FileOutputStream(dest);
+        fos.getChannel().write(buffer);
+        fos.close();
+    }
+
+    private static void streamCopy(File source, File dest) throws IOException {
+        InputStream is = new FileInputStream(source);
+        OutputStream os = new FileOutputStream(dest);
+        byte[] buffer = new byte[8 * 1024];
+        for(int len; (len = is.read(buffer)) != - 1;) {
+            os.write(buffer, 0, len);
+        }
+        is.close();
+        os.close();
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i ++ ) {
+            data[i] = (byte)(i * 31 + (i >> 8));
+        }
+        return data;
+    }
+
+    private static File write(File file, byte[] data) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        os.write(data);
+        os.close();
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int)raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.topofwave.lib.utils.file;
+
+import com.topofwave.lib.utils.io.IOUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class GroupCommitWriterTest {
+
+    private static final int BENCHMARK_THREADS = 8;
+
+    private static final int BENCHMARK_FILES = 50;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("groupcommit", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void singleSaveCommitsAlone() throws IOException {
+        GroupCommitWriter writer = new GroupCommitWriter(0, GroupCommitWriter.DEFAULT_MAX_BATCH);
+        File target = new File(dir, "file");
+        writer.save("hello".getBytes(), target.getPath());
+        assertArrayEquals("hello".getBytes(), IOUtils.toByteArray(target, Long.MAX_VALUE));
+        assertEquals(1, writer.getCommitCount());
+        assertEquals(1, writer.getDirectorySyncCount());
+        assertEquals(1, dir.list().length);
+    }
+
+    /**
+     * 批次达到上限时立即提交，不等合并窗口结束；同一目录只同步一次
+     */
+    @Test
+    public void concurrentSavesShareOneCommit() throws Exception {
+        GroupCommitWriter writer = new GroupCommitWriter(60 * 1000, 4);
+        File[] targets = new File[4];
+        for(int i = 0; i < targets.length; i ++ ) {
+            targets[i] = new File(dir, "file-" + i);
+        }
+        IOException[] errors = saveConcurrently(writer, targets);
+        for(int i = 0; i < targets.length; i ++ ) {
+            assertNull(errors[i]);
+            assertArrayEquals(content(i), IOUtils.toByteArray(targets[i], Long.MAX_VALUE));
+        }
+        assertEquals(4, writer.getFileCount());
+        assertEquals(1, writer.getCommitCount());
+        assertEquals(1, writer.getDirectorySyncCount());
+        assertEquals(4f, writer.getAverageBatchSize(), 0f);
+        assertEquals(4, dir.list().length);
+    }
+
+    /**
+     * 一个文件重命名失败只影响它自己的调用者，同批次其他文件正常提交
+     */
+    @Test
+    public void errorsAreReportedPerEntry() throws Exception {
+        GroupCommitWriter writer = new GroupCommitWriter(60 * 1000, 3);
+        File[] targets = {new File(dir, "a"), new File(dir, "blocked"), new File(dir, "c")};
+        // 目标是非空目录，无法重命名覆盖
+        assertTrue(targets[1].mkdir());
+        assertTrue(new File(targets[1], "child").createNewFile());
+        IOException[] errors = saveConcurrently(writer, targets);
+        assertNull(errors[0]);
+        assertNotNull(errors[1]);
+        assertNull(errors[2]);
+        assertArrayEquals(content(0), IOUtils.toByteArray(targets[0], Long.MAX_VALUE));
+        assertArrayEquals(content(2), IOUtils.toByteArray(targets[2], Long.MAX_VALUE));
+        assertTrue(targets[1].isDirectory());
+        assertEquals(1, writer.getCommitCount());
+        // 失败的临时文件已删除
+        for(String name: dir.list()) {
+            assertFalse(name, name.endsWith(FileUtils.TEMP_SUFFIX));
+        }
+    }
+
+    /**
+     * 多线程并发保存时，每次都单独提交与组提交的耗时对比。
+     * JVM上无法fsync目录，只有在设备上运行才能体现目录fsync的节省
+     */
+    @Test
+    public void perFileVersusGroupBenchmark() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final byte[] data = new byte[4 * 1024];
+        // 预热
+        runBenchmark(null, data);
+        runBenchmark(new GroupCommitWriter(0, GroupCommitWriter.DEFAULT_MAX_BATCH), data);
+        long perFile = runBenchmark(null, data);
+        GroupCommitWriter writer = new GroupCommitWriter(0, GroupCommitWriter.DEFAULT_MAX_BATCH);
+        long group = runBenchmark(writer, data);
+        System.out.println("saveAtomic " + BENCHMARK_THREADS + " threads x " + BENCHMARK_FILES + " x 4KB: per file "
+            + perFile / 1000000 + "ms, group commit " + group / 1000000 + "ms, " + writer.getAverageBatchSize()
+            + " files/batch, " + writer.getDirectorySyncCount() + " directory syncs");
+    }
+
+    /**
+     * @param writer 为null时每次调用{@link FileUtils#saveAtomic(byte[], String)}
+     * @return 总耗时(纳秒)
+     */
+    private long runBenchmark(final GroupCommitWriter writer, final byte[] data) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(BENCHMARK_THREADS);
+        final IOException[] error = new IOException[1];
+        for(int t = 0; t < BENCHMARK_THREADS; t ++ ) {
+            final int thread = t;
+            new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for(int i = 0; i < BENCHMARK_FILES; i ++ ) {
+                            String path = new File(dir, "bench-" + thread + "-" + i).getPath();
+                            if(writer == null) {
+                                FileUtils.saveAtomic(data, path);
+                            } else {
+                                writer.save(data, path);
+                            }
+                        }
+                    } catch(IOException e) {
+                        error[0] = e;
+                    } catch(InterruptedException e) {
+                        // 测试结束
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        assertTrue(done.await(5, TimeUnit.MINUTES));
+        long elapsed = System.nanoTime() - begin;
+        if(error[0] != null) {
+            throw error[0];
+        }
+        return elapsed;
+    }
+
+    /**
+     * 每个目标由一个线程同时保存
+     * @return 各线程的异常，成功时为null
+     */
+    private static IOException[] saveConcurrently(final GroupCommitWriter writer, final File[] targets)
+        throws InterruptedException {
+        final IOException[] errors = new IOException[targets.length];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(targets.length);
+        for(int i = 0; i < targets.length; i ++ ) {
+            final int index = i;
+            new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        writer.save(content(index), targets[index].getPath());
+                    } catch(IOException e) {
+                        errors[index] = e;
+                    } catch(InterruptedException e) {
+                        // 测试结束
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        assertTrue("batch was not committed", done.await(30, TimeUnit.SECONDS));
+        return errors;
+    }
+
+    private static byte[] content(int index) {
+        return ("content-" + index).getBytes();
+    }
+}
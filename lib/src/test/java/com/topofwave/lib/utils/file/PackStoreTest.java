@@ -0,0 +1,190 @@
+package com.topofwave.lib.utils.file;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class PackStoreTest {
+
+    private static final int SEGMENT_SIZE = 16 * 1024;
+
+    private static final int KEYS = 64;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("packstore", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File file: files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void reopenCountsEachRecordOnce() throws IOException {
+        PackStore store = PackStore.open(dir, SEGMENT_SIZE);
+        fill(store, 1);
+        long live = store.getLiveBytes();
+        assertEquals(store.getTotalBytes(), live);
+        store.close();
+
+        store = PackStore.open(dir, SEGMENT_SIZE);
+        try {
+            assertEquals(KEYS, store.size());
+            assertEquals(live, store.getLiveBytes());
+            assertEquals(store.getTotalBytes(), store.getLiveBytes());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void reopenThenCompact() throws IOException {
+        PackStore store = PackStore.open(dir, SEGMENT_SIZE);
+        fill(store, 1);
+        store.close();
+
+        store = PackStore.open(dir, SEGMENT_SIZE);
+        long before = store.getTotalBytes();
+        fill(store, 2);
+        store.compact();
+        // 只剩重新打开后继续追加的那个段里有少量旧记录
+        assertTrue("old segments should be reclaimed", store.getTotalBytes() - store.getLiveBytes() < SEGMENT_SIZE);
+        assertTrue(store.getTotalBytes() < before + SEGMENT_SIZE);
+        assertTrue(store.remove(key(0)));
+        store.close();
+
+        store = PackStore.open(dir, SEGMENT_SIZE);
+        try {
+            assertTrue(store.getLiveBytes() < store.getTotalBytes());
+            assertEquals(KEYS - 1, store.size());
+            assertNull(store.get(key(0)));
+            assertFalse(store.contains(key(0)));
+            for(int i = 1; i < KEYS; i ++ ) {
+                assertArrayEquals(value(i, 2), store.get(key(i)));
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * 与每个数据一个文件的方式对比写入、读取耗时和占用的磁盘块
+     */
+    @Test
+    public void packVersusFilePerBlobBenchmark() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        int count = 2000;
+        byte[] value = new byte[2 * 1024];
+        Arrays.fill(value, (byte)7);
+        File blobs = new File(dir, "blobs");
+        assertTrue(blobs.mkdir());
+        File packs = new File(dir, "packs");
+        assertTrue(packs.mkdir());
+
+        long start = System.nanoTime();
+        for(int i = 0; i < count; i ++ ) {
+            FileOutputStream os = new FileOutputStream(new File(blobs, key(i)));
+            os.write(value);
+            os.close();
+        }
+        long fileWrite = System.nanoTime() - start;
+        start = System.nanoTime();
+        for(int i = 0; i < count; i ++ ) {
+            assertEquals(value.length, readFile(new File(blobs, key(i))).length);
+        }
+        long fileRead = System.nanoTime() - start;
+
+        PackStore store = PackStore.open(packs);
+        try {
+            start = System.nanoTime();
+            for(int i = 0; i < count; i ++ ) {
+                store.put(key(i), value);
+            }
+            store.flush();
+            long packWrite = System.nanoTime() - start;
+            start = System.nanoTime();
+            for(int i = 0; i < count; i ++ ) {
+                assertEquals(value.length, store.get(key(i)).length);
+            }
+            long packRead = System.nanoTime() - start;
+            System.out.println("PackStore " + count + " x 2KB: one file per blob write " + fileWrite / 1000000 + "ms read "
+                + fileRead / 1000000 + "ms " + diskBlocks(blobs) + " x 4KB blocks, pack write " + packWrite / 1000000
+                + "ms read " + packRead / 1000000 + "ms " + diskBlocks(packs) + " x 4KB blocks");
+            assertTrue(diskBlocks(packs) < diskBlocks(blobs));
+        } finally {
+            store.close();
+            for(File file: blobs.listFiles()) {
+                file.delete();
+            }
+            for(File file: packs.listFiles()) {
+                file.delete();
+            }
+            blobs.delete();
+            packs.delete();
+        }
+    }
+
+    /**
+     * 按4KB块估算目录中文件占用的磁盘空间
+     */
+    private static long diskBlocks(File dir) {
+        long blocks = 0;
+        for(File file: dir.listFiles()) {
+            blocks += (file.length() + 4095) / 4096;
+        }
+        return blocks;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream is = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int)file.length()];
+            int off = 0;
+            for(int len; off < data.length && (len = is.read(data, off, data.length - off)) != - 1;) {
+                off += len;
+            }
+            return data;
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void fill(PackStore store, int version) throws IOException {
+        for(int i = 0; i < KEYS; i ++ ) {
+            store.put(key(i), value(i, version));
+        }
+    }
+
+    private static String key(int i) {
+        return "key-" + i;
+    }
+
+    private static byte[] value(int i, int version) {
+        byte[] value = new byte[1024];
+        Arrays.fill(value, (byte)(i * 31 + version));
+        return value;
+    }
+}
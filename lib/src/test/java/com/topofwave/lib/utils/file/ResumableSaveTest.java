@@ -0,0 +1,286 @@
+package com.topofwave.lib.utils.file;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResumableSaveTest {
+
+    private static final int LENGTH = 1024 * 1024;
+
+    private static final int INTERVAL = 64 * 1024;
+
+    private static final String ETAG = "\"v1\"";
+
+    private final byte[] body = new byte[LENGTH];
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * 下一次响应只发送这么多字节就断开，-1表示完整发送
+     */
+    private volatile long cutAfter = - 1;
+
+    private volatile long lastRangeStart = - 1;
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    private String url;
+
+    private File dir;
+
+    private String path;
+
+    @Before
+    public void setUp() throws IOException {
+        for(int i = 0; i < body.length; i ++ ) {
+            body[i] = (byte)(i * 7 + (i >> 10));
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newFixedThreadPool(2);
+        server.setExecutor(serverExecutor);
+        server.createContext("/file", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                long start = 0;
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if(range != null && range.startsWith("bytes=") && range.endsWith("-")) {
+                    start = Long.parseLong(range.substring(6, range.length() - 1));
+                }
+                lastRangeStart = start;
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                if(start > 0) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (LENGTH - 1) + "/" + LENGTH);
+                }
+                exchange.sendResponseHeaders(start > 0 ? 206 : 200, LENGTH - start);
+                long count = LENGTH - start;
+                if(cutAfter >= 0) {
+                    count = Math.min(count, cutAfter);
+                    cutAfter = - 1;
+                }
+                OutputStream os = exchange.getResponseBody();
+                try {
+                    os.write(body, (int)start, (int)count);
+                    os.flush();
+                    bytesSent.addAndGet(count);
+                } finally {
+                    // 发送不足Content-Length时直接断开连接
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file";
+        dir = File.createTempFile("resumable", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        path = new File(dir, "download.bin").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * 连接在中途断开后，从检查点用Range请求剩余部分，只多传输检查点之后未确认的数据
+     */
+    @Test
+    public void resumesAfterDroppedConnection() throws IOException {
+        cutAfter = 300 * 1024;
+        ResumableSave save = ResumableSave.open(path, ETAG, INTERVAL);
+        assertFalse(save.isResumed());
+        download(save);
+        long received = save.getOffset();
+        assertTrue("received " + received, received > 0 && received < LENGTH);
+        save.close();
+        assertEquals(received, ResumableSave.getCheckpointOffset(path));
+
+        save = ResumableSave.open(path, ETAG, INTERVAL);
+        assertTrue(save.isResumed());
+        assertEquals(received, save.getOffset());
+        download(save);
+        assertEquals(received, lastRangeStart);
+        File target = save.finish(LENGTH);
+        assertArrayEquals(body, read(target));
+        assertFalse(new File(path + ResumableSave.PART_SUFFIX).exists());
+        assertFalse(new File(path + ResumableSave.CHECKPOINT_SUFFIX).exists());
+        assertEquals(LENGTH, bytesSent.get());
+    }
+
+    @Test
+    public void changedValidatorRestarts() throws IOException {
+        cutAfter = 300 * 1024;
+        ResumableSave save = ResumableSave.open(path, ETAG, INTERVAL);
+        download(save);
+        save.close();
+        save = ResumableSave.open(path, "\"v2\"", INTERVAL);
+        try {
+            assertFalse(save.isResumed());
+            assertEquals(0, save.getOffset());
+            assertEquals(0, new File(path + ResumableSave.PART_SUFFIX).length());
+        } finally {
+            save.discard();
+        }
+    }
+
+    /**
+     * 检查点之后写入的数据没有确认过，重新打开时截掉
+     */
+    @Test
+    public void truncatesUncommittedTail() throws IOException {
+        cutAfter = 200 * 1024;
+        ResumableSave save = ResumableSave.open(path, ETAG, INTERVAL);
+        download(save);
+        long committed = save.getOffset();
+        save.close();
+        File part = new File(path + ResumableSave.PART_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(part, "rw");
+        raf.seek(committed);
+        raf.write(new byte[5000]);
+        raf.close();
+
+        save = ResumableSave.open(path, ETAG, INTERVAL);
+        assertEquals(committed, save.getOffset());
+        assertEquals(committed, part.length());
+        download(save);
+        assertArrayEquals(body, read(save.finish(LENGTH)));
+    }
+
+    @Test
+    public void corruptPartFailsChecksum() throws IOException {
+        cutAfter = 200 * 1024;
+        ResumableSave save = ResumableSave.open(path, ETAG, INTERVAL);
+        download(save);
+        save.close();
+        File part = new File(path + ResumableSave.PART_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(part, "rw");
+        raf.seek(1000);
+        raf.write(~ body[1000]);
+        raf.close();
+
+        save = ResumableSave.open(path, ETAG, INTERVAL);
+        download(save);
+        try {
+            save.finish(LENGTH);
+            fail("corrupt part");
+        } catch(IOException expected) {
+            // 校验失败，需要重新开始
+        }
+        assertFalse(new File(path).exists());
+        assertFalse(part.exists());
+        assertFalse(new File(path + ResumableSave.CHECKPOINT_SUFFIX).exists());
+    }
+
+    @Test
+    public void incompleteFinishKeepsCheckpoint() throws IOException {
+        cutAfter = 100 * 1024;
+        ResumableSave save = ResumableSave.open(path, ETAG, INTERVAL);
+        download(save);
+        try {
+            save.finish(LENGTH);
+            fail("incomplete");
+        } catch(IOException expected) {
+            // 长度不足，可以继续
+        }
+        download(save);
+        assertArrayEquals(body, read(save.finish(LENGTH)));
+    }
+
+    @Test
+    public void cancelWritesCheckpoint() throws IOException {
+        ResumableSave save = ResumableSave.open(path, ETAG, INTERVAL);
+        final CancellationSignal signal = new CancellationSignal();
+        HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        try {
+            save.append(connection.getInputStream(), new FileUtils.ProgressListener() {
+
+                @Override
+                public void onProgress(long current, long total) {
+                    if(current >= 100 * 1024) {
+                        signal.cancel();
+                    }
+                }
+            }, signal);
+            fail("canceled");
+        } catch(OperationCanceledException expected) {
+            // 取消前已写检查点
+        } finally {
+            connection.disconnect();
+        }
+        long offset = save.getOffset();
+        save.close();
+        assertTrue(offset >= 100 * 1024);
+        assertEquals(offset, ResumableSave.getCheckpointOffset(path));
+    }
+
+    @Test
+    public void checksumMatchesCrc32() {
+        CRC32 crc32 = new CRC32();
+        crc32.update(body, 0, 12345);
+        int crc = ResumableSave.updateCrc(0, body, 0, 5000);
+        crc = ResumableSave.updateCrc(crc, body, 5000, 7345);
+        assertEquals(crc32.getValue(), crc & 0xffffffffL);
+    }
+
+    /**
+     * 从当前偏移量请求剩余部分并追加，连接断开时保留已写入的数据
+     */
+    private void download(ResumableSave save) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        connection.setRequestProperty("Range", "bytes=" + save.getOffset() + "-");
+        try {
+            InputStream is = connection.getInputStream();
+            try {
+                save.append(is, null, null);
+            } finally {
+                is.close();
+            }
+        } catch(IOException e) {
+            // 连接断开，检查点已写入
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int)raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.topofwave.lib.utils.file;
+
+import com.topofwave.lib.utils.io.IOUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteBehindQueueTest {
+
+    private File dir;
+
+    /**
+     * 记录写入顺序，写入"blocked"时等待测试放行
+     */
+    private static class RecordingQueue extends WriteBehindQueue {
+
+        final List<String> saved = Collections.synchronizedList(new ArrayList<String>());
+
+        final List<byte[]> data = Collections.synchronizedList(new ArrayList<byte[]>());
+
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        RecordingQueue(long maxPendingBytes, int maxPendingEntries) {
+            super(maxPendingBytes, maxPendingEntries, false);
+        }
+
+        @Override
+        void save(String path, byte[] bytes) throws IOException {
+            if(path.equals("blocked")) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch(InterruptedException e) {
+                    throw new IOException(e);
+                }
+            } else if(path.equals("runtime")) {
+                throw new IllegalStateException("runtime");
+            } else if(path.equals("error")) {
+                throw new AssertionError("error");
+            } else if(path.equals("io")) {
+                throw new IOException("io");
+            }
+            saved.add(path);
+            data.add(bytes);
+        }
+
+        /**
+         * 提交一个会阻塞写线程的条目，返回时写线程已在写它
+         */
+        void block() throws InterruptedException {
+            write("blocked", new byte[1]);
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("writebehind", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void writesToDisk() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(1024, 16, true);
+        String path = new File(dir, "file").getPath();
+        queue.write(path, "hello".getBytes());
+        queue.flush();
+        assertArrayEquals("hello".getBytes(), IOUtils.toByteArray(new File(path), Long.MAX_VALUE));
+        assertEquals(1, queue.getWrittenCount());
+        assertEquals(0, queue.getQueueDepth());
+        queue.close();
+    }
+
+    /**
+     * 写线程忙时同一路径的多次提交合并为一次写入，保留最新数据
+     */
+    @Test
+    public void coalescesWhileWriterBusy() throws Exception {
+        RecordingQueue queue = new RecordingQueue(1024, 16);
+        queue.block();
+        queue.write("a", new byte[] {1});
+        queue.write("a", new byte[] {2});
+        queue.write("b", new byte[] {3});
+        queue.write("a", new byte[] {4});
+        assertArrayEquals(new byte[] {4}, queue.peek("a"));
+        queue.release.countDown();
+        queue.flush();
+        assertEquals(3, queue.saved.size());
+        assertEquals("a", queue.saved.get(1));
+        assertArrayEquals(new byte[] {4}, queue.data.get(1));
+        assertEquals(2, queue.getCoalescedCount());
+        assertEquals(3, queue.getWrittenCount());
+    }
+
+    @Test
+    public void backpressureWhenFull() throws Exception {
+        final RecordingQueue queue = new RecordingQueue(100, 2);
+        queue.block();
+        assertTrue(queue.tryWrite("a", new byte[10]));
+        assertTrue(queue.tryWrite("b", new byte[10]));
+        assertFalse(queue.tryWrite("c", new byte[10]));
+        // 同一路径合并不增加条目
+        assertTrue(queue.tryWrite("a", new byte[20]));
+        assertEquals(30, queue.getPendingBytes());
+
+        final CountDownLatch accepted = new CountDownLatch(1);
+        Thread producer = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    queue.write("c", new byte[10]);
+                    accepted.countDown();
+                } catch(InterruptedException e) {
+                    // 测试结束
+                }
+            }
+        };
+        producer.start();
+        assertFalse(accepted.await(200, TimeUnit.MILLISECONDS));
+        queue.release.countDown();
+        assertTrue(accepted.await(10, TimeUnit.SECONDS));
+        queue.flush();
+        assertEquals(4, queue.saved.size());
+    }
+
+    @Test
+    public void byteLimitRejects() throws Exception {
+        RecordingQueue queue = new RecordingQueue(100, 16);
+        queue.block();
+        assertTrue(queue.tryWrite("a", new byte[60]));
+        assertFalse(queue.tryWrite("b", new byte[60]));
+        queue.release.countDown();
+        queue.flush();
+        // 队列为空时超大条目也能放入
+        assertTrue(queue.tryWrite("b", new byte[200]));
+        queue.flush();
+        assertEquals(3, queue.getWrittenCount());
+    }
+
+    /**
+     * flush只在之前提交的条目都写完后返回，写入按提交顺序进行
+     */
+    @Test
+    public void flushWaitsForEarlierWrites() throws Exception {
+        RecordingQueue queue = new RecordingQueue(1024, 16);
+        queue.block();
+        queue.write("a", new byte[1]);
+        queue.write("b", new byte[1]);
+        queue.write("c", new byte[1]);
+        assertFalse(queue.await(200));
+        assertEquals(4, queue.getQueueDepth());
+        queue.release.countDown();
+        assertTrue(queue.await(10000));
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(4, queue.saved.size());
+        assertEquals("blocked", queue.saved.get(0));
+        assertEquals("a", queue.saved.get(1));
+        assertEquals("b", queue.saved.get(2));
+        assertEquals("c", queue.saved.get(3));
+    }
+
+    /**
+     * 单个条目抛出的异常只计为失败，写线程继续工作，flush不会一直等待
+     */
+    @Test
+    public void failuresDoNotStopWriter() throws Exception {
+        RecordingQueue queue = new RecordingQueue(1024, 16);
+        queue.write("io", new byte[1]);
+        queue.write("runtime", new byte[1]);
+        queue.write("a", new byte[1]);
+        assertTrue(queue.await(10000));
+        assertEquals(2, queue.getFailedCount());
+        assertEquals(1, queue.getWrittenCount());
+
+        // Error使写线程退出，下一次提交时重新启动
+        queue.write("error", new byte[1]);
+        assertTrue(queue.await(10000));
+        assertEquals(3, queue.getFailedCount());
+        queue.write("b", new byte[1]);
+        assertTrue(queue.await(10000));
+        assertEquals(2, queue.getWrittenCount());
+        queue.close();
+    }
+
+    @Test
+    public void rejectsNullAndClosed() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(1024, 16, false);
+        try {
+            queue.tryWrite(null, new byte[1]);
+            fail("null path");
+        } catch(IllegalArgumentException expected) {
+            // 空路径
+        }
+        try {
+            queue.write("a", null);
+            fail("null data");
+        } catch(IllegalArgumentException expected) {
+            // 空数据
+        }
+        queue.close();
+        try {
+            queue.write(new File(dir, "file").getPath(), new byte[1]);
+            fail("closed");
+        } catch(IllegalStateException expected) {
+            // 已关闭
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.topofwave.lib.utils.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class ByteArrayPoolTest {
+
+    private static final int ITERATIONS = 20000;
+
+    @Test
+    public void roundsUpToSizeClass() {
+        ByteArrayPool pool = new ByteArrayPool(64 * 1024, 8, 512 * 1024);
+        assertEquals(1024, pool.getBuf(1).length);
+        assertEquals(16 * 1024, pool.getBuf(10 * 1024).length);
+        assertEquals(64 * 1024, pool.getBuf(64 * 1024).length);
+        // 超出最大级别时按原大小分配
+        assertEquals(64 * 1024 + 1, pool.getBuf(64 * 1024 + 1).length);
+    }
+
+    @Test
+    public void reusesReturnedBuffers() {
+        ByteArrayPool pool = new ByteArrayPool(64 * 1024, 8, 512 * 1024);
+        byte[] buf = pool.getBuf(10 * 1024);
+        pool.returnBuf(buf);
+        assertSame(buf, pool.getBuf(9 * 1024));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertNotSame(buf, pool.getBuf(9 * 1024));
+    }
+
+    @Test
+    public void respectsCaps() {
+        ByteArrayPool pool = new ByteArrayPool(64 * 1024, 2, 40 * 1024);
+        pool.returnBuf(new byte[16 * 1024]);
+        pool.returnBuf(new byte[16 * 1024]);
+        // 每级最多2个
+        pool.returnBuf(new byte[16 * 1024]);
+        assertEquals(32 * 1024, pool.getPooledBytes());
+        // 总字节数上限
+        pool.returnBuf(new byte[32 * 1024]);
+        // 不是2的幂
+        pool.returnBuf(new byte[3000]);
+        assertEquals(32 * 1024, pool.getPooledBytes());
+        assertEquals(3, pool.getDiscardCount());
+        pool.clear();
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    /**
+     * 与每次new byte[]的读取循环对比分配的字节数和耗时
+     */
+    @Test
+    public void allocationBenchmark() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        byte[] payload = new byte[4 * 1024];
+        ByteArrayPool pool = new ByteArrayPool(64 * 1024, 8, 512 * 1024);
+        // 预热
+        copy(payload, null, 1000);
+        copy(payload, pool, 1000);
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        copy(payload, null, ITERATIONS);
+        long plainNanos = System.nanoTime() - start;
+        long plainBytes = allocatedBytes() - allocated;
+        allocated = allocatedBytes();
+        start = System.nanoTime();
+        copy(payload, pool, ITERATIONS);
+        long pooledNanos = System.nanoTime() - start;
+        long pooledBytes = allocatedBytes() - allocated;
+        System.out.println("ByteArrayPool " + ITERATIONS + " x 10KB loops: new byte[] " + plainBytes / ITERATIONS + " B/op "
+            + plainNanos / ITERATIONS + "ns/op, pooled " + pooledBytes / ITERATIONS + " B/op " + pooledNanos / ITERATIONS
+            + "ns/op, hits=" + pool.getHitCount() + " misses=" + pool.getMissCount());
+        if(plainBytes > 0) {
+            // 不支持统计分配量的虚拟机上返回-1，只在支持时比较
+            assertTrue(pooledBytes < plainBytes / 2);
+        }
+    }
+
+    private static void copy(byte[] payload, ByteArrayPool pool, int times) throws IOException {
+        for(int i = 0; i < times; i ++ ) {
+            InputStream is = new ByteArrayInputStream(payload);
+            byte[] cache = pool == null ? new byte[10 * 1024] : pool.getBuf(10 * 1024);
+            try {
+                while(is.read(cache) != - 1) {
+                    // 只读取
+                }
+            } finally {
+                if(pool != null) {
+                    pool.returnBuf(cache);
+                }
+            }
+        }
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return - 1;
+    }
+}
@@ -0,0 +1,174 @@
+package com.topofwave.lib.utils.io;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class CharsetDetectorTest {
+
+    private static final int ITERATIONS = 20000;
+
+    private static final String HEAD = "<!DOCTYPE html>\n<html>\n<head>\n<title>test</title>\n";
+
+    @Test
+    public void metaCharset() throws IOException {
+        assertDetected("utf-8", CharsetDetector.Source.META, HEAD + "<meta charset=\"utf-8\">\n</head><body></body>");
+        assertDetected("GBK", CharsetDetector.Source.META, HEAD + "<META CHARSET='GBK'/>\n</head>");
+        assertDetected("gb2312", CharsetDetector.Source.META, HEAD
+            + "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=gb2312\">\n</head>");
+    }
+
+    @Test
+    public void xmlDeclaration() throws IOException {
+        assertDetected("ISO-8859-1", CharsetDetector.Source.XML, "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<rss/>");
+    }
+
+    @Test
+    public void byteOrderMark() throws IOException {
+        assertEquals("UTF-8", detect(new byte[] {(byte)0xEF, (byte)0xBB, (byte)0xBF, '<', 'a', '>'}).getCharset());
+        assertEquals("UTF-16BE", detect(new byte[] {(byte)0xFE, (byte)0xFF, 0, '<'}).getCharset());
+        assertEquals("UTF-16LE", detect(new byte[] {(byte)0xFF, (byte)0xFE, '<', 0}).getCharset());
+        // BOM优先于meta
+        byte[] html = bytes("\uFEFF" + HEAD + "<meta charset=\"gbk\">");
+        CharsetDetector.Result result = detect(html);
+        assertEquals("UTF-8", result.getCharset());
+        assertEquals(CharsetDetector.Source.BOM, result.getSource());
+    }
+
+    @Test
+    public void ignoresCommentsAndBody() throws IOException {
+        assertDetected("utf-8", CharsetDetector.Source.META, HEAD + "<!-- <meta charset=\"big5\"> -->\n<meta charset=\"utf-8\">");
+        // meta只能出现在head中
+        assertDetected(null, CharsetDetector.Source.NONE, HEAD + "</head>\n<body><meta charset=\"big5\"></body>");
+        assertDetected(null, CharsetDetector.Source.NONE, HEAD + "<p>no charset</p>");
+        assertDetected(null, CharsetDetector.Source.NONE, "");
+    }
+
+    @Test
+    public void scanLimit() throws IOException {
+        StringBuilder padding = new StringBuilder(HEAD);
+        while(padding.length() < 5000) {
+            padding.append("<link rel=\"stylesheet\" href=\"a.css\">\n");
+        }
+        byte[] html = bytes(padding + "<meta charset=\"utf-8\">");
+        assertNull(CharsetDetector.detect(new ByteArrayInputStream(html)).getCharset());
+        assertEquals("utf-8", CharsetDetector.detect(new ByteArrayInputStream(html), 8 * 1024).getCharset());
+    }
+
+    /**
+     * 每次只返回1到7字节时标签跨块也能识别，之后的流从头返回完整内容
+     */
+    @Test
+    public void tagsSplitAcrossReadsAndReplay() throws IOException {
+        String html = HEAD + "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=Shift_JIS\">\n</head><body>"
+            + "あい</body>";
+        byte[] data = bytes(html);
+        for(int chunk = 1; chunk <= 7; chunk ++ ) {
+            CharsetDetector.Result result = CharsetDetector.detect(new ChunkedInputStream(data, chunk));
+            assertEquals("chunk " + chunk, "Shift_JIS", result.getCharset());
+            assertArrayEquals(data, IOUtils.toByteArray(result.getInputStream()));
+        }
+    }
+
+    /**
+     * 与原来BufferedInputStream+new String+每次编译正则的实现对比耗时和分配量
+     */
+    @Test
+    public void benchmark() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        StringBuilder sb = new StringBuilder(HEAD);
+        for(int i = 0; i < 20; i ++ ) {
+            sb.append("<link rel=\"stylesheet\" href=\"/static/css/style").append(i).append(".css\">\n");
+        }
+        sb.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=gb2312\">\n</head><body>");
+        while(sb.length() < 64 * 1024) {
+            sb.append("<p>paragraph</p>\n");
+        }
+        byte[] html = bytes(sb.toString());
+        assertEquals("gb2312", regexCharset(new ByteArrayInputStream(html)));
+        assertEquals("gb2312", IOUtils.getEncodingFromHTML(new ByteArrayInputStream(html)));
+        // 预热
+        for(int i = 0; i < 2000; i ++ ) {
+            regexCharset(new ByteArrayInputStream(html));
+            IOUtils.getEncodingFromHTML(new ByteArrayInputStream(html));
+        }
+        long allocated = IOUtilsTest.allocatedBytes();
+        long start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i ++ ) {
+            regexCharset(new ByteArrayInputStream(html));
+        }
+        long regexNanos = System.nanoTime() - start;
+        long regexBytes = IOUtilsTest.allocatedBytes() - allocated;
+        allocated = IOUtilsTest.allocatedBytes();
+        start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i ++ ) {
+            IOUtils.getEncodingFromHTML(new ByteArrayInputStream(html));
+        }
+        long scanNanos = System.nanoTime() - start;
+        long scanBytes = IOUtilsTest.allocatedBytes() - allocated;
+        System.out.println("charset detection " + ITERATIONS + " x 64KB page: regex " + regexNanos / ITERATIONS + "ns/op "
+            + regexBytes / ITERATIONS + " B/op, byte scan " + scanNanos / ITERATIONS + "ns/op " + scanBytes / ITERATIONS
+            + " B/op");
+        if(allocated >= 0) {
+            assertTrue(scanBytes < regexBytes / 4);
+        }
+    }
+
+    /**
+     * 原来的getEncodingFromHTML
+     */
+    private static String regexCharset(InputStream is) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(is);
+        bis.mark(4 * 1024);
+        byte[] cache = new byte[4 * 1024];
+        bis.read(cache);
+        bis.reset();
+        Matcher m = Pattern.compile("<meta.*charset=\"?([a-zA-Z0-9-_/]+)\"?").matcher(new String(cache));
+        return m.find() ? m.group(1) : null;
+    }
+
+    private static void assertDetected(String charset, CharsetDetector.Source source, String html) throws IOException {
+        CharsetDetector.Result result = detect(bytes(html));
+        assertEquals(html, charset, result.getCharset());
+        assertEquals(html, source, result.getSource());
+    }
+
+    private static CharsetDetector.Result detect(byte[] data) throws IOException {
+        CharsetDetector.Result result = CharsetDetector.detect(new ByteArrayInputStream(data));
+        assertArrayEquals(data, IOUtils.toByteArray(result.getInputStream()));
+        return result;
+    }
+
+    private static byte[] bytes(String s) throws IOException {
+        return s.getBytes("UTF-8");
+    }
+
+    /**
+     * 每次最多返回chunk字节
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+
+        private final int chunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            super(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.topofwave.lib.utils.io;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class CompareFileAndStreamTest {
+
+    private final byte[] body = new byte[8 * 1024 * 1024];
+
+    private final AtomicInteger heads = new AtomicInteger();
+
+    private final AtomicInteger gets = new AtomicInteger();
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    private String base;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        for(int i = 0; i < body.length; i ++ ) {
+            body[i] = (byte)(i % 251);
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverExecutor);
+        // 支持HEAD，带Content-Length
+        server.createContext("/sized", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if("HEAD".equals(exchange.getRequestMethod())) {
+                    heads.incrementAndGet();
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(body.length));
+                    exchange.sendResponseHeaders(200, - 1);
+                    exchange.close();
+                    return;
+                }
+                gets.incrementAndGet();
+                exchange.sendResponseHeaders(200, body.length);
+                write(exchange);
+            }
+        });
+        // 不支持HEAD，分块传输，没有Content-Length
+        server.createContext("/chunked", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if("HEAD".equals(exchange.getRequestMethod())) {
+                    heads.incrementAndGet();
+                    exchange.sendResponseHeaders(405, - 1);
+                    exchange.close();
+                    return;
+                }
+                gets.incrementAndGet();
+                exchange.sendResponseHeaders(200, 0);
+                write(exchange);
+            }
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        file = File.createTempFile("compare", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        file.delete();
+    }
+
+    @Test
+    public void sizeOnlyUsesHead() throws IOException {
+        writeFile(body.length);
+        assertTrue(IOUtils.compareFileAndStream(file, base + "/sized"));
+        writeFile(body.length - 1);
+        assertFalse(IOUtils.compareFileAndStream(file, base + "/sized"));
+        assertFalse(IOUtils.compareFileAndStream(file, base + "/sized", true));
+        assertEquals(3, heads.get());
+        // 大小由HEAD确定，不需要下载响应体
+        assertEquals(0, gets.get());
+    }
+
+    @Test
+    public void sizeOnlyWithoutHead() throws IOException {
+        writeFile(body.length);
+        assertTrue(IOUtils.compareFileAndStream(file, base + "/chunked"));
+        writeFile(body.length - 1);
+        assertFalse(IOUtils.compareFileAndStream(file, base + "/chunked"));
+        writeFile(body.length + 1);
+        assertFalse(IOUtils.compareFileAndStream(file, base + "/chunked"));
+        assertEquals(3, gets.get());
+    }
+
+    @Test
+    public void compareContent() throws IOException {
+        String[] urls = {base + "/sized", base + "/chunked"};
+        for(String url: urls) {
+            writeFile(body.length);
+            assertTrue(url, IOUtils.compareFileAndStream(file, url, true));
+            writeFile(body.length, 0);
+            assertFalse(url, IOUtils.compareFileAndStream(file, url, true));
+            writeFile(body.length, body.length - 1);
+            assertFalse(url, IOUtils.compareFileAndStream(file, url, true));
+        }
+    }
+
+    @Test
+    public void missingFileOrUrl() throws IOException {
+        file.delete();
+        assertFalse(IOUtils.compareFileAndStream(file, base + "/sized"));
+        writeFile(10);
+        assertFalse(IOUtils.compareFileAndStream(file, null));
+        assertEquals(0, heads.get() + gets.get());
+    }
+
+    /**
+     * 与原来把响应体和文件都读入内存的实现对比分配量，分块传输时也只使用固定大小的缓冲区
+     */
+    @Test
+    public void memoryBenchmark() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        writeFile(body.length);
+        // 预热
+        assertTrue(loadBoth(file, base + "/chunked"));
+        assertTrue(IOUtils.compareFileAndStream(file, base + "/chunked", true));
+        long before = IOUtilsTest.allocatedBytes();
+        long start = System.nanoTime();
+        assertTrue(loadBoth(file, base + "/chunked"));
+        long loadNanos = System.nanoTime() - start;
+        long loadBytes = IOUtilsTest.allocatedBytes() - before;
+        before = IOUtilsTest.allocatedBytes();
+        start = System.nanoTime();
+        assertTrue(IOUtils.compareFileAndStream(file, base + "/chunked", true));
+        long streamNanos = System.nanoTime() - start;
+        long streamBytes = IOUtilsTest.allocatedBytes() - before;
+        System.out.println("compareFileAndStream 8MB chunked: load into memory " + loadBytes / 1024 + "KB "
+            + loadNanos / 1000000 + "ms, streaming " + streamBytes / 1024 + "KB " + streamNanos / 1000000 + "ms");
+        if(before >= 0) {
+            assertTrue("allocated " + streamBytes, streamBytes < 1024 * 1024);
+        }
+    }
+
+    /**
+     * 原来的实现：响应体和文件都完整读入内存后比较长度
+     */
+    private static boolean loadBoth(File file, String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        InputStream in = connection.getInputStream();
+        ByteArrayOutputStream remote = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for(int len; (len = in.read(buffer)) != - 1;) {
+            remote.write(buffer, 0, len);
+        }
+        in.close();
+        byte[] local = new byte[(int)file.length()];
+        InputStream fis = new FileInputStream(file);
+        for(int off = 0, len; off < local.length && (len = fis.read(local, off, local.length - off)) != - 1;) {
+            off += len;
+        }
+        fis.close();
+        return remote.toByteArray().length == local.length;
+    }
+
+    private void writeFile(int length) throws IOException {
+        writeFile(length, - 1);
+    }
+
+    /**
+     * @param flip 取反此位置的字节，-1表示不修改
+     */
+    private void writeFile(int length, int flip) throws IOException {
+        byte[] data = new byte[length];
+        System.arraycopy(body, 0, data, 0, Math.min(length, body.length));
+        if(flip >= 0) {
+            data[flip] = (byte) ~ data[flip];
+        }
+        OutputStream os = new FileOutputStream(file);
+        os.write(data);
+        os.close();
+    }
+
+    private void write(HttpExchange exchange) throws IOException {
+        OutputStream os = exchange.getResponseBody();
+        try {
+            os.write(body);
+        } catch(IOException e) {
+            // 客户端提前断开
+        } finally {
+            exchange.close();
+        }
+    }
+}
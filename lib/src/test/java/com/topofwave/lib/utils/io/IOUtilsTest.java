@@ -0,0 +1,297 @@
+package com.topofwave.lib.utils.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class IOUtilsTest {
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i ++ ) {
+            data[i] = (byte)(i * 13);
+        }
+        return data;
+    }
+
+    @Test
+    public void exactHint() throws IOException {
+        byte[] data = data(300 * 1024);
+        assertArrayEquals(data, IOUtils.toByteArray(new ByteArrayInputStream(data), data.length));
+        assertArrayEquals(new byte[0], IOUtils.toByteArray(new ByteArrayInputStream(new byte[0]), 0));
+    }
+
+    @Test
+    public void hintLongerThanStream() throws IOException {
+        byte[] data = data(100 * 1024);
+        assertArrayEquals(data, IOUtils.toByteArray(new ByteArrayInputStream(data), data.length + 5000));
+    }
+
+    @Test
+    public void hintShorterThanStream() throws IOException {
+        byte[] data = data(100 * 1024);
+        assertArrayEquals(data, IOUtils.toByteArray(new ByteArrayInputStream(data), 1000));
+        assertArrayEquals(data, IOUtils.toByteArray(new ByteArrayInputStream(data), data.length - 1));
+    }
+
+    @Test
+    public void unknownLength() throws IOException {
+        byte[] data = data(70 * 1024);
+        assertArrayEquals(data, IOUtils.toByteArray(new ByteArrayInputStream(data), - 1));
+        assertArrayEquals(data, IOUtils.toByteArray(new ByteArrayInputStream(data)));
+    }
+
+    @Test
+    public void bogusHugeHintDoesNotAllocateUpFront() throws IOException {
+        byte[] data = data(10 * 1024);
+        long before = allocatedBytes();
+        assertArrayEquals(data, IOUtils.toByteArray(new ByteArrayInputStream(data), 500L * 1024 * 1024));
+        long allocated = allocatedBytes() - before;
+        if(before >= 0) {
+            assertTrue("allocated " + allocated, allocated < 1024 * 1024);
+        }
+    }
+
+    @Test
+    public void maxBytesGuard() throws IOException {
+        byte[] data = data(10 * 1024);
+        assertArrayEquals(data, IOUtils.toByteArray(new ByteArrayInputStream(data), data.length, data.length));
+        try {
+            IOUtils.toByteArray(new ByteArrayInputStream(data), data.length, data.length - 1);
+            fail("hint over limit");
+        } catch(IOException expected) {
+            // 按提示长度直接拒绝
+        }
+        try {
+            IOUtils.toByteArray(new ByteArrayInputStream(data), 100, 5000);
+            fail("stream longer than hint and limit");
+        } catch(IOException expected) {
+            // 回退读取时超出上限
+        }
+        try {
+            IOUtils.toByteArray(new ByteArrayInputStream(data), - 1, 5000);
+            fail("unknown length over limit");
+        } catch(IOException expected) {
+            // 未知长度超出上限
+        }
+    }
+
+    @Test
+    public void fileUsesChannelSize() throws IOException {
+        byte[] data = data(200 * 1024);
+        File file = File.createTempFile("ioutils", ".bin");
+        try {
+            FileOutputStream os = new FileOutputStream(file);
+            os.write(data);
+            os.close();
+            assertArrayEquals(data, IOUtils.toByteArray(file, IOUtils.NO_LIMIT));
+            try {
+                IOUtils.toByteArray(file, data.length - 1);
+                fail("file over limit");
+            } catch(IOException expected) {
+                // 超出上限
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * 文件大小是准确的，按大小一次分配，不经过倍增扩容
+     */
+    @Test
+    public void fileAllocatesExactSize() throws IOException {
+        byte[] data = data(8 * 1024 * 1024);
+        File file = File.createTempFile("ioutils", ".bin");
+        try {
+            FileOutputStream os = new FileOutputStream(file);
+            os.write(data);
+            os.close();
+            IOUtils.toByteArray(file, IOUtils.NO_LIMIT);
+            long before = allocatedBytes();
+            byte[] read = IOUtils.toByteArray(file, IOUtils.NO_LIMIT);
+            long allocated = allocatedBytes() - before;
+            assertArrayEquals(data, read);
+            if(before >= 0) {
+                assertTrue("allocated " + allocated, allocated < data.length + 256 * 1024);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void base64MatchesAndroidDefault() throws IOException {
+        int[] lengths = {0, 1, 2, 3, 56, 57, 58, 76, 57 * 64 - 1, 57 * 64, 57 * 64 + 1, 57 * 128 + 2, 1024 * 1024 + 7};
+        for(int length: lengths) {
+            byte[] data = data(length);
+            String expected = androidDefaultBase64(data);
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            IOUtils.encodeBase64(new TrickleInputStream(data), os);
+            assertEquals("length " + length, expected, new String(os.toByteArray(), "US-ASCII"));
+            StringWriter writer = new StringWriter();
+            IOUtils.encodeBase64(new ByteArrayInputStream(data), writer);
+            assertEquals("length " + length, expected, writer.toString());
+        }
+    }
+
+    @Test
+    public void base64FileToString() throws IOException {
+        byte[] data = data(300 * 1024 + 1);
+        File file = File.createTempFile("base64", ".bin");
+        try {
+            FileOutputStream os = new FileOutputStream(file);
+            os.write(data);
+            os.close();
+            assertEquals(androidDefaultBase64(data), IOUtils.encodeBase64ToString(file));
+            assertEquals(androidDefaultBase64(data), IOUtils.fileToString(file.getPath()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * 编码20MB数据时的分配量与数据大小无关
+     */
+    @Test
+    public void base64StreamingMemory() throws IOException {
+        final long size = 20L * 1024 * 1024;
+        InputStream source = new InputStream() {
+
+            private long remaining = size;
+
+            @Override
+            public int read() {
+                return remaining -- > 0 ? 7 : - 1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if(remaining <= 0) {
+                    return - 1;
+                }
+                int n = (int)Math.min(len, remaining);
+                Arrays.fill(b, off, off + n, (byte)7);
+                remaining -= n;
+                return n;
+            }
+        };
+        final long[] written = new long[1];
+        OutputStream sink = new OutputStream() {
+
+            @Override
+            public void write(int b) {
+                written[0] ++ ;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written[0] += len;
+            }
+        };
+        long before = allocatedBytes();
+        IOUtils.encodeBase64(source, sink);
+        long allocated = allocatedBytes() - before;
+        long chars = (size + 2) / 3 * 4;
+        assertEquals(chars + (chars + 75) / 76, written[0]);
+        if(before >= 0) {
+            assertTrue("allocated " + allocated, allocated < 1024 * 1024);
+        }
+    }
+
+    /**
+     * android.util.Base64.DEFAULT：每76个字符换行，最后一行不足76个字符时也以换行结束
+     */
+    private static String androidDefaultBase64(byte[] data) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder encoded = new StringBuilder();
+        for(int i = 0; i < data.length; i += 3) {
+            int b0 = data[i] & 0xff;
+            int b1 = i + 1 < data.length ? data[i + 1] & 0xff : 0;
+            int b2 = i + 2 < data.length ? data[i + 2] & 0xff : 0;
+            encoded.append(alphabet.charAt(b0 >> 2)).append(alphabet.charAt((b0 & 3) << 4 | b1 >> 4));
+            encoded.append(i + 1 < data.length ? alphabet.charAt((b1 & 15) << 2 | b2 >> 6) : '=');
+            encoded.append(i + 2 < data.length ? alphabet.charAt(b2 & 63) : '=');
+        }
+        String plain = encoded.toString();
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < plain.length(); i += 76) {
+            sb.append(plain, i, Math.min(plain.length(), i + 76)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 每次最多返回少量字节的输入流，检查分块边界
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+
+        private int next = 1;
+
+        TrickleInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            next = next % 1000 + 1;
+            return super.read(b, off, Math.min(len, next));
+        }
+    }
+
+    /**
+     * 与原来ByteArrayOutputStream倍增再拷贝的方式对比分配量
+     */
+    @Test
+    public void allocationBenchmark() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        byte[] data = data(4 * 1024 * 1024);
+        // 预热
+        readWithByteArrayOutputStream(new ByteArrayInputStream(data));
+        IOUtils.toByteArray(new ByteArrayInputStream(data), data.length);
+        long before = allocatedBytes();
+        byte[] old = readWithByteArrayOutputStream(new ByteArrayInputStream(data));
+        long oldBytes = allocatedBytes() - before;
+        before = allocatedBytes();
+        byte[] hinted = IOUtils.toByteArray(new ByteArrayInputStream(data), data.length);
+        long hintedBytes = allocatedBytes() - before;
+        assertTrue(Arrays.equals(old, hinted));
+        System.out.println("toByteArray 4MB: ByteArrayOutputStream allocated " + oldBytes / 1024 + "KB, with length hint "
+            + hintedBytes / 1024 + "KB");
+        if(before >= 0) {
+            assertTrue(hintedBytes < oldBytes);
+        }
+    }
+
+    private static byte[] readWithByteArrayOutputStream(InputStream is) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] cache = new byte[1024];
+        for(int length; (length = is.read(cache)) != - 1;) {
+            buffer.write(cache, 0, length);
+        }
+        return buffer.toByteArray();
+    }
+
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return - 1;
+    }
+}
@@ -0,0 +1,176 @@
+package com.topofwave.lib.utils.net;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+public class HttpClientTest {
+
+    private static final int BENCHMARK_REQUESTS = 300;
+
+    private final byte[] body = new byte[32 * 1024];
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    private String base;
+
+    @Before
+    public void setUp() throws IOException {
+        for(int i = 0; i < body.length; i ++ ) {
+            body[i] = (byte)(i % 61);
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverExecutor);
+        server.createContext("/plain", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 200, null, body);
+            }
+        });
+        server.createContext("/gzip", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                OutputStream os = new GZIPOutputStream(bytes);
+                os.write(body);
+                os.close();
+                send(exchange, 200, "gzip", bytes.toByteArray());
+            }
+        });
+        server.createContext("/deflate", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                OutputStream os = new DeflaterOutputStream(bytes);
+                os.write(body);
+                os.close();
+                send(exchange, 200, "deflate", bytes.toByteArray());
+            }
+        });
+        server.createContext("/not-modified", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 304, "gzip", new byte[0]);
+            }
+        });
+        server.createContext("/no-content", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 204, "gzip", new byte[0]);
+            }
+        });
+        server.createContext("/empty-gzip", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 200, "gzip", new byte[0]);
+            }
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void decodesCompressedBodies() throws IOException {
+        HttpClient client = new HttpClient();
+        assertArrayEquals(body, client.get(base + "/plain").getBody());
+        assertArrayEquals(body, client.get(base + "/gzip").getBody());
+        assertArrayEquals(body, client.get(base + "/deflate").getBody());
+    }
+
+    @Test
+    public void emptyBodiesSkipDecoding() throws IOException {
+        HttpClient client = new HttpClient();
+        HttpClient.Response response = client.get(base + "/not-modified");
+        assertEquals(304, response.getCode());
+        assertEquals(0, response.getBody().length);
+        response = client.get(base + "/no-content");
+        assertEquals(204, response.getCode());
+        assertEquals(0, response.getBody().length);
+        response = client.get(base + "/empty-gzip");
+        assertEquals(200, response.getCode());
+        assertEquals(0, response.getBody().length);
+        assertEquals(0, client.getFailureCount());
+    }
+
+    @Test
+    public void defaultPortSharesHostLimit() throws IOException {
+        HttpClient client = new HttpClient();
+        assertEquals(client.hostLimitKey(new URL("http://example.com/a")), client.hostLimitKey(new URL("http://example.com:80/b")));
+        assertEquals(client.hostLimitKey(new URL("https://example.com/a")),
+            client.hostLimitKey(new URL("https://example.com:443/b")));
+    }
+
+    /**
+     * 同一个客户端连续请求(连接复用)与每次请求都关闭连接的对比
+     */
+    @Test
+    public void keepAliveBenchmark() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        HttpClient client = new HttpClient();
+        // 预热
+        run(client, false, 20);
+        long reuse = run(client, false, BENCHMARK_REQUESTS);
+        long close = run(client, true, BENCHMARK_REQUESTS);
+        System.out.println("HttpClient " + BENCHMARK_REQUESTS + " x 32KB gzip: keep-alive " + reuse / 1000 + "us/req ("
+            + 1000000000L / Math.max(1, reuse) + " req/s), Connection: close " + close / 1000 + "us/req ("
+            + 1000000000L / Math.max(1, close) + " req/s)");
+        assertEquals(0, client.getFailureCount());
+    }
+
+    /**
+     * @return 平均每次请求的纳秒数
+     */
+    private long run(HttpClient client, boolean closeConnection, int count) throws IOException {
+        long start = System.nanoTime();
+        for(int i = 0; i < count; i ++ ) {
+            HttpClient.Response response =
+                client.get(base + "/gzip", closeConnection ? Collections.singletonMap("Connection", "close") : null);
+            assertEquals(body.length, response.getBody().length);
+        }
+        return (System.nanoTime() - start) / count;
+    }
+
+    private static void send(HttpExchange exchange, int code, String encoding, byte[] data) throws IOException {
+        if(encoding != null) {
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+        exchange.sendResponseHeaders(code, data.length == 0 ? - 1 : data.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(data);
+        os.close();
+    }
+}
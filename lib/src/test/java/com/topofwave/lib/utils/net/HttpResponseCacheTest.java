@@ -0,0 +1,276 @@
+package com.topofwave.lib.utils.net;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.topofwave.lib.utils.file.DiskLruCache;
+import com.topofwave.lib.utils.file.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class HttpResponseCacheTest {
+
+    private static final int BENCHMARK_REQUESTS = 200;
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    private String base;
+
+    private File dir;
+
+    private DiskLruCache disk;
+
+    private HttpResponseCache cache;
+
+    /**
+     * 测试用的资源：固定的响应头和内容，If-None-Match与ETag相同时返回304
+     */
+    private static class Resource implements HttpHandler {
+
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+        final Map<String, String> notModifiedHeaders = new LinkedHashMap<String, String>();
+
+        volatile byte[] body = "hello".getBytes();
+
+        volatile String etag;
+
+        final AtomicInteger requests = new AtomicInteger();
+
+        final AtomicInteger conditional = new AtomicInteger();
+
+        Resource header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        Resource etag(String etag) {
+            this.etag = etag;
+            return this;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if(ifNoneMatch != null) {
+                conditional.incrementAndGet();
+            }
+            if(etag != null) {
+                exchange.getResponseHeaders().set("ETag", etag);
+            }
+            if(ifNoneMatch != null && ifNoneMatch.equals(etag)) {
+                for(Map.Entry<String, String> header: notModifiedHeaders.entrySet()) {
+                    exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+                }
+                exchange.sendResponseHeaders(304, - 1);
+                exchange.close();
+                return;
+            }
+            for(Map.Entry<String, String> header: headers.entrySet()) {
+                exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+            }
+            byte[] data = body;
+            exchange.sendResponseHeaders(200, data.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(data);
+            os.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newFixedThreadPool(2);
+        server.setExecutor(serverExecutor);
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        dir = File.createTempFile("httpcache", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        disk = DiskLruCache.open(dir, 1, HttpResponseCache.DEFAULT_DISK_BYTES);
+        cache = new HttpResponseCache(disk, new HttpClient(), HttpResponseCache.DEFAULT_MEMORY_BYTES);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        disk.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void maxAgeServedFromMemoryThenDisk() throws IOException {
+        Resource resource = serve("/max-age", new Resource().header("Cache-Control", "max-age=60"));
+        assertArrayEquals(resource.body, cache.get(base + "/max-age").getBody());
+        assertArrayEquals(resource.body, cache.get(base + "/max-age").getBody());
+        assertEquals(1, cache.getMemoryHitCount());
+        cache.evictMemory();
+        HttpClient.Response response = cache.get(base + "/max-age");
+        assertArrayEquals(resource.body, response.getBody());
+        assertEquals(200, response.getCode());
+        assertEquals(1, resource.requests.get());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMemoryHitCount());
+    }
+
+    @Test
+    public void noCacheRevalidatesWithEtag() throws IOException {
+        Resource resource = serve("/no-cache", new Resource().header("Cache-Control", "no-cache").etag("\"a\""));
+        cache.get(base + "/no-cache");
+        HttpClient.Response response = cache.get(base + "/no-cache");
+        assertEquals(200, response.getCode());
+        assertArrayEquals(resource.body, response.getBody());
+        assertEquals(2, resource.requests.get());
+        assertEquals(1, resource.conditional.get());
+        assertEquals(1, cache.getConditionalHitCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    /**
+     * 304中的新有效期生效，之后不再访问网络
+     */
+    @Test
+    public void notModifiedRefreshesFreshness() throws IOException {
+        Resource resource = serve("/expired", new Resource().header("Cache-Control", "max-age=0").etag("\"a\""));
+        resource.notModifiedHeaders.put("Cache-Control", "max-age=60");
+        cache.get(base + "/expired");
+        cache.get(base + "/expired");
+        assertEquals(1, cache.getConditionalHitCount());
+        cache.evictMemory();
+        assertArrayEquals(resource.body, cache.get(base + "/expired").getBody());
+        assertEquals(2, resource.requests.get());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void changedResourceReplacesEntry() throws IOException {
+        Resource resource = serve("/changed", new Resource().header("Cache-Control", "no-cache").etag("\"a\""));
+        cache.get(base + "/changed");
+        resource.body = "world".getBytes();
+        resource.etag = "\"b\"";
+        assertArrayEquals("world".getBytes(), cache.get(base + "/changed").getBody());
+        assertArrayEquals("world".getBytes(), cache.get(base + "/changed").getBody());
+        assertEquals(1, cache.getConditionalHitCount());
+        assertEquals(3, resource.requests.get());
+    }
+
+    @Test
+    public void ageReducesFreshness() throws IOException {
+        Resource resource = serve("/aged", new Resource().header("Cache-Control", "max-age=60").header("Age", "120"));
+        cache.get(base + "/aged");
+        cache.get(base + "/aged");
+        assertEquals(2, resource.requests.get());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void expiresAndHeuristicFreshness() throws IOException {
+        long now = System.currentTimeMillis();
+        Resource expires =
+            serve("/expires", new Resource().header("Date", httpDate(now)).header("Expires", httpDate(now + 60000)));
+        Resource heuristic = serve("/heuristic",
+            new Resource().header("Date", httpDate(now)).header("Last-Modified", httpDate(now - 10L * 24 * 3600 * 1000)));
+        Resource past = serve("/past", new Resource().header("Date", httpDate(now)).header("Expires", httpDate(now - 60000))
+            .header("Last-Modified", httpDate(now - 10L * 24 * 3600 * 1000)));
+        for(int i = 0; i < 3; i ++ ) {
+            cache.get(base + "/expires");
+            cache.get(base + "/heuristic");
+            cache.get(base + "/past");
+        }
+        assertEquals(1, expires.requests.get());
+        // 10天前修改，估算有效期1天
+        assertEquals(1, heuristic.requests.get());
+        // Expires优先于估算
+        assertEquals(3, past.requests.get());
+    }
+
+    @Test
+    public void uncacheableResponses() throws IOException {
+        Resource noStore = serve("/no-store", new Resource().header("Cache-Control", "no-store, max-age=60"));
+        Resource vary = serve("/vary", new Resource().header("Cache-Control", "max-age=60").header("Vary", "Cookie"));
+        Resource gzipVary =
+            serve("/vary-encoding", new Resource().header("Cache-Control", "max-age=60").header("Vary", "Accept-Encoding"));
+        Resource plain = serve("/plain", new Resource());
+        for(int i = 0; i < 2; i ++ ) {
+            cache.get(base + "/no-store");
+            cache.get(base + "/vary");
+            cache.get(base + "/vary-encoding");
+            cache.get(base + "/plain");
+        }
+        assertEquals(2, noStore.requests.get());
+        assertEquals(2, vary.requests.get());
+        assertEquals(1, gzipVary.requests.get());
+        // 没有验证器也没有有效期
+        assertEquals(2, plain.requests.get());
+    }
+
+    /**
+     * 命中(内存、磁盘)与每次访问网络的耗时对比
+     */
+    @Test
+    public void latencyBenchmark() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        Resource resource = serve("/bench", new Resource().header("Cache-Control", "max-age=60"));
+        resource.body = new byte[32 * 1024];
+        HttpClient client = new HttpClient();
+        String url = base + "/bench";
+        // 预热
+        for(int i = 0; i < 20; i ++ ) {
+            client.get(url);
+            cache.get(url);
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < BENCHMARK_REQUESTS; i ++ ) {
+            client.get(url);
+        }
+        long network = (System.nanoTime() - start) / BENCHMARK_REQUESTS;
+        start = System.nanoTime();
+        for(int i = 0; i < BENCHMARK_REQUESTS; i ++ ) {
+            cache.get(url);
+        }
+        long memory = (System.nanoTime() - start) / BENCHMARK_REQUESTS;
+        start = System.nanoTime();
+        for(int i = 0; i < BENCHMARK_REQUESTS; i ++ ) {
+            cache.evictMemory();
+            cache.get(url);
+        }
+        long fromDisk = (System.nanoTime() - start) / BENCHMARK_REQUESTS;
+        System.out.println("HttpResponseCache 32KB: network " + network / 1000 + "us/req, memory hit " + memory / 1000
+            + "us/req, disk hit " + fromDisk / 1000 + "us/req, hit ratio " + cache.getHitRatio());
+    }
+
+    private Resource serve(String path, Resource resource) {
+        server.createContext(path, resource);
+        return resource;
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+}
@@ -0,0 +1,88 @@
+package com.topofwave.lib.utils.net;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class NetworkUtilsTest {
+
+    private static final int ITERATIONS = 200000;
+
+    @Test
+    public void formatIPv4MatchesStringFormat() {
+        Random random = new Random(25);
+        int[] edges = {0, - 1, 0x0100007f, 0x0101a8c0, 0x64646464, 0x0a0a0a0a};
+        for(int ip: edges) {
+            assertEquals(formatOld(ip), NetworkUtils.formatIPv4(ip));
+        }
+        for(int i = 0; i < 100000; i ++ ) {
+            int ip = random.nextInt();
+            assertEquals(formatOld(ip), NetworkUtils.formatIPv4(ip));
+        }
+    }
+
+    @Test
+    public void uniqueLocalAddresses() throws Exception {
+        assertTrue(NetworkUtils.isUniqueLocal(InetAddress.getByName("fd12:3456:789a::1")));
+        assertTrue(NetworkUtils.isUniqueLocal(InetAddress.getByName("fc00::1")));
+        assertFalse(NetworkUtils.isUniqueLocal(InetAddress.getByName("2001:db8::1")));
+        assertFalse(NetworkUtils.isUniqueLocal(InetAddress.getByName("fe80::1")));
+    }
+
+    @Test
+    public void cacheFollowsGeneration() {
+        NetworkUtils.cacheIpAddress("10.0.0.2", 7);
+        assertEquals("10.0.0.2", NetworkUtils.cachedIpAddress(7));
+        // 收到新的广播后失效
+        assertNull(NetworkUtils.cachedIpAddress(8));
+    }
+
+    /**
+     * 每次调用的开销：原来的遍历网络接口和String.format，与缓存命中和formatIPv4对比
+     */
+    @Test
+    public void perCallBenchmark() {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        int sink = 0;
+        int lookups = ITERATIONS / 100;
+        long start = System.nanoTime();
+        for(int i = 0; i < lookups; i ++ ) {
+            sink += NetworkUtils.getMobileIPAddress().length();
+        }
+        long enumerate = (System.nanoTime() - start) / lookups;
+        NetworkUtils.cacheIpAddress(NetworkUtils.getMobileIPAddress(), 1);
+        start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i ++ ) {
+            sink += NetworkUtils.cachedIpAddress(1).length();
+        }
+        long cached = (System.nanoTime() - start) / ITERATIONS;
+        start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i ++ ) {
+            sink += formatOld(i).length();
+        }
+        long format = (System.nanoTime() - start) / ITERATIONS;
+        start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i ++ ) {
+            sink += NetworkUtils.formatIPv4(i).length();
+        }
+        long formatNew = (System.nanoTime() - start) / ITERATIONS;
+        System.out.println("NetworkUtils per call: interface enumeration " + enumerate + "ns, cached " + cached
+            + "ns; String.format " + format + "ns, formatIPv4 " + formatNew + "ns (" + sink + ")");
+        assertTrue(sink > 0);
+    }
+
+    /**
+     * 原getWifiIPAddress的格式化方式
+     */
+    private static String formatOld(int ipAddress) {
+        return String.format("%d.%d.%d.%d", (ipAddress & 0xff), (ipAddress >> 8 & 0xff), (ipAddress >> 16 & 0xff),
+            (ipAddress >> 24 & 0xff));
+    }
+}
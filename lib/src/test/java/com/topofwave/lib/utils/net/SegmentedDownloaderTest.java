@@ -0,0 +1,297 @@
+package com.topofwave.lib.utils.net;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.topofwave.lib.utils.file.FileUtils;
+import com.topofwave.lib.utils.io.IOUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class SegmentedDownloaderTest {
+
+    private static final int LENGTH = (int)(4 * SegmentedDownloader.MIN_SEGMENT_SIZE + 3);
+
+    private static final int BENCHMARK_LENGTH = 8 * 1024 * 1024;
+
+    private final byte[] body = new byte[BENCHMARK_LENGTH];
+
+    /**
+     * 收到的Range请求头，没有时为"none"
+     */
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    private String base;
+
+    private File dir;
+
+    private File dest;
+
+    /**
+     * 支持Range和If-Range的资源
+     */
+    private class Resource implements HttpHandler {
+
+        final int length;
+
+        /**
+         * 当前的ETag，null表示不支持Range
+         */
+        volatile String etag = "\"v1\"";
+
+        /**
+         * 从该位置开始的Range请求只发送cutBytes字节就断开一次，-1表示不断开
+         */
+        volatile long cutAt = - 1;
+
+        volatile long cutBytes;
+
+        /**
+         * 每个连接每发送64KB暂停的毫秒数，模拟单连接带宽有限
+         */
+        volatile long throttleMillis;
+
+        Resource(int length) {
+            this.length = length;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            ranges.add(range == null ? "none" : range);
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            boolean partial = range != null && etag != null && (ifRange == null || ifRange.equals(etag));
+            if(etag != null) {
+                exchange.getResponseHeaders().set("ETag", etag);
+            }
+            if( ! partial) {
+                send(exchange, 200, 0, length);
+                return;
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            long start = Long.parseLong(bounds[0]);
+            long end = bounds.length > 1 ? Math.min(length - 1, Long.parseLong(bounds[1])) : length - 1;
+            if(start >= length) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                exchange.sendResponseHeaders(416, - 1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            send(exchange, 206, start, end - start + 1);
+        }
+
+        private void send(HttpExchange exchange, int code, long start, long count) throws IOException {
+            exchange.sendResponseHeaders(code, count);
+            long limit = count;
+            if(start == cutAt) {
+                limit = Math.min(count, cutBytes);
+                cutAt = - 1;
+            }
+            OutputStream os = exchange.getResponseBody();
+            try {
+                for(long sent = 0; sent < limit;) {
+                    int n = (int)Math.min(64 * 1024, limit - sent);
+                    os.write(body, (int)(start + sent), n);
+                    sent += n;
+                    if(throttleMillis > 0) {
+                        os.flush();
+                        Thread.sleep(throttleMillis);
+                    }
+                }
+                os.flush();
+            } catch(InterruptedException e) {
+                // 服务器停止
+            } finally {
+                // 发送不足Content-Length时直接断开连接
+                exchange.close();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        for(int i = 0; i < body.length; i ++ ) {
+            body[i] = (byte)(i * 31 + (i >> 12));
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newFixedThreadPool(8);
+        server.setExecutor(serverExecutor);
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        dir = File.createTempFile("segmented", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        dest = new File(dir, "download.bin");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * 各段首尾相接，最后一段包含除不尽的余数
+     */
+    @Test
+    public void segmentBoundaries() throws IOException {
+        serve("/file", new Resource(LENGTH));
+        SegmentedDownloader.Result result = new SegmentedDownloader(null).setSegmentCount(4)
+            .download(base + "/file", dest, null, null);
+        assertEquals(LENGTH, result.getLength());
+        assertEquals(4, result.getSegments());
+        assertContent(LENGTH);
+        long size = LENGTH / 4;
+        assertEquals("bytes=0-0", ranges.get(0));
+        assertTrue(ranges.contains("bytes=0-" + (size - 1)));
+        assertTrue(ranges.contains("bytes=" + size + "-" + (2 * size - 1)));
+        assertTrue(ranges.contains("bytes=" + 2 * size + "-" + (3 * size - 1)));
+        assertTrue(ranges.contains("bytes=" + 3 * size + "-" + (LENGTH - 1)));
+        assertEquals(5, ranges.size());
+    }
+
+    /**
+     * 每段不小于MIN_SEGMENT_SIZE，小文件不分段
+     */
+    @Test
+    public void smallFilesUseFewerSegments() throws IOException {
+        serve("/small", new Resource((int)(SegmentedDownloader.MIN_SEGMENT_SIZE * 2 - 1)));
+        SegmentedDownloader.Result result = new SegmentedDownloader(null).setSegmentCount(4)
+            .download(base + "/small", dest, null, null);
+        assertEquals(1, result.getSegments());
+        assertContent(SegmentedDownloader.MIN_SEGMENT_SIZE * 2 - 1);
+    }
+
+    /**
+     * 一段连接中断后只从该段已写入的位置重新请求
+     */
+    @Test
+    public void resumesDroppedSegment() throws IOException {
+        Resource resource = serve("/file", new Resource(LENGTH));
+        long size = LENGTH / 4;
+        long from = 2 * size;
+        resource.cutAt = from;
+        resource.cutBytes = 100 * 1024;
+        SegmentedDownloader.Result result = new SegmentedDownloader(null).setSegmentCount(4)
+            .download(base + "/file", dest, null, null);
+        assertEquals(4, result.getSegments());
+        assertContent(LENGTH);
+        // 探测、4段、中断段的重试
+        assertEquals(6, ranges.size());
+        long resumedFrom = - 1;
+        for(String range: ranges) {
+            long start = Long.parseLong(range.substring("bytes=".length(), range.indexOf('-')));
+            if(start > from && start < from + size) {
+                resumedFrom = start;
+                assertEquals("bytes=" + start + "-" + (3 * size - 1), range);
+            }
+        }
+        assertTrue("resumed from " + resumedFrom, resumedFrom > from && resumedFrom <= from + 100 * 1024);
+    }
+
+    /**
+     * 空资源没有第0个字节，探测得到416
+     */
+    @Test
+    public void emptyResourceProbe() throws IOException {
+        serve("/empty", new Resource(0));
+        SegmentedDownloader.Result result = new SegmentedDownloader(null).setSegmentCount(4)
+            .download(base + "/empty", dest, null, null);
+        assertEquals(0, result.getLength());
+        assertTrue(dest.isFile());
+        assertEquals(0, dest.length());
+        assertEquals(1, ranges.size());
+    }
+
+    @Test
+    public void withoutRangeSupportUsesOneConnection() throws IOException {
+        Resource resource = serve("/plain", new Resource(LENGTH));
+        resource.etag = null;
+        SegmentedDownloader.Result result = new SegmentedDownloader(null).setSegmentCount(4)
+            .download(base + "/plain", dest, null, null);
+        assertEquals(1, result.getSegments());
+        assertEquals(LENGTH, result.getLength());
+        assertContent(LENGTH);
+        assertEquals(2, ranges.size());
+        assertEquals("none", ranges.get(1));
+    }
+
+    /**
+     * 探测后资源改变，If-Range不匹配时服务器返回完整内容，放弃下载且不重试
+     */
+    @Test
+    public void ifRangeMismatchAborts() throws IOException {
+        serve("/changing", new Resource(LENGTH) {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                super.handle(exchange);
+                // 探测之后立即改变
+                etag = "\"v2\"";
+            }
+        });
+        try {
+            new SegmentedDownloader(null).setSegmentCount(4).download(base + "/changing", dest, null, null);
+            fail("resource changed");
+        } catch(IOException expected) {
+            // 资源已改变
+        }
+        assertFalse(dest.exists());
+        // 探测加每段最多一次请求
+        assertTrue("requests " + ranges.size(), ranges.size() >= 2 && ranges.size() <= 5);
+    }
+
+    /**
+     * 每个连接限速时1、2、4段的吞吐量对比
+     */
+    @Test
+    public void segmentsBenchmark() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        Resource resource = serve("/bench", new Resource(BENCHMARK_LENGTH));
+        resource.throttleMillis = 10;
+        StringBuilder sb = new StringBuilder("SegmentedDownloader 8MB, 64KB per 10ms per connection:");
+        for(int segments = 1; segments <= 4; segments *= 2) {
+            SegmentedDownloader.Result result = new SegmentedDownloader(null).setSegmentCount(segments)
+                .download(base + "/bench", dest, null, null);
+            assertEquals(segments, result.getSegments());
+            assertContent(BENCHMARK_LENGTH);
+            sb.append(' ').append(segments).append(" segments ").append(result.getBytesPerSecond() / 1024).append("KB/s");
+        }
+        System.out.println(sb);
+    }
+
+    private Resource serve(String path, Resource resource) {
+        server.createContext(path, resource);
+        return resource;
+    }
+
+    private void assertContent(long length) throws IOException {
+        byte[] expected = new byte[(int)length];
+        System.arraycopy(body, 0, expected, 0, expected.length);
+        assertArrayEquals(expected, IOUtils.toByteArray(dest, Long.MAX_VALUE));
+    }
+}